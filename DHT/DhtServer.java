@@ -1,6 +1,7 @@
 /** Server for simple distributed hash table that stores (key,value) strings.
  *  
- *  usage: DhtServer myIp numRoutes cfgFile [ cache ] [ debug ] [ predFile ]
+ *  usage: DhtServer myIp numRoutes cfgFile [ cache ] [ offheap ] [ debug ]
+ *                   [ predFile ]
  *  
  *  myIp    is the IP address to use for this server's socket
  *  numRoutes    is the max number of nodes allowed in the DHT's routing table;
@@ -10,6 +11,10 @@
  *  cache    is an optional argument; if present it is the literal string
  *        "cache"; when cache is present, the caching feature of the
  *        server is enabled; otherwise it is not
+ *  offheap    is an optional argument; if present it is the literal string
+ *        "offheap"; when offheap is present, the server's pairs are stored
+ *        as raw bytes outside the Java heap (see OffHeapMapStore), which
+ *        suits servers holding very large numbers of pairs
  *  debug    is an optional argument; if present it is the literal string
  *        "debug"; when debug is present, a copy of every packet received
  *        and sent is printed on stdout
@@ -110,7 +115,7 @@ public class DhtServer {
 	private static boolean cacheOn;	// enables caching when true
 	private static boolean debug;	// enables debug messages when true
 
-	private static HashMap<String,String> map;	// key/value pairs
+	private static MapStore map;	// key/value pairs
 	private static HashMap<String,String> cache;	// cached pairs
 	private static List<Pair<InetSocketAddress,Integer>> rteTbl;
 
@@ -133,16 +138,19 @@ public class DhtServer {
 		// process command-line arguments
 		if (args.length < 3) {
 			System.err.println("usage: DhtServer myIp numRoutes " +
-					   "cfgFile [debug] [ predFile ] ");
+					   "cfgFile [ cache ] [ offheap ] [ debug ] " +
+					   "[ predFile ] ");
 			System.exit(1);
 		}
 		numRoutes = Integer.parseInt(args[1]);
 		String cfgFile = args[2];
 		cacheOn = debug = false;
 		stopFlag = false;
+		boolean offHeap = false;
 		String predFile = null;
 		for (int i = 3; i < args.length; i++) {
 			if (args[i].equals("cache")) cacheOn = true;
+			else if (args[i].equals("offheap")) offHeap = true;
 			else if (args[i].equals("debug")) debug = true;
 			else predFile = args[i];
 		}
@@ -176,14 +184,14 @@ public class DhtServer {
 			}
 		} catch(Exception e) {
 			System.err.println("usage: DhtServer myIp numRoutes " +
-					   "cfgFile [ cache ] [ debug ] " +
+					   "cfgFile [ cache ] [ offheap ] [ debug ] " +
 					   "[ predFile ] ");
 			System.exit(1);
 		}
 		myAdr = new InetSocketAddress(myIp,sock.getLocalPort());
 		
 		// initialize data structures	
-		map = new HashMap<String,String>();
+		map = (offHeap ? new OffHeapMapStore() : new StripedMapStore());
 		cache = new HashMap<String,String>();
 		rteTbl = new LinkedList<Pair<InetSocketAddress,Integer>>();
 
@@ -322,15 +330,15 @@ public class DhtServer {
         leavePkt.clear();
         leavePkt.type = "transfer";
         leavePkt.senderInfo = myInfo;
-        //iterate through the map and transfer every pair
+        //collect every pair, then transfer and remove them
         //eventually, map will be emptied
-        Iterator it = map.entrySet().iterator();
-        while(it.hasNext()){
-        	String currKey = (String)((Map.Entry)it.next()).getKey();
-        	leavePkt.key = currKey;
-        	leavePkt.val = map.get(currKey);
+        final List<Pair<String,String>> pairs = new ArrayList<Pair<String,String>>();
+        map.forEach((key, val) -> pairs.add(new Pair<String,String>(key, val)));
+        for(Pair<String,String> pair: pairs){
+        	leavePkt.key = pair.left;
+        	leavePkt.val = pair.right;
         	leavePkt.send(sock,predecessor,debug);
-        	it.remove();
+        	map.remove(pair.left);
         }
         
         //clear cache and table
@@ -481,18 +489,19 @@ public class DhtServer {
         sendTag ++;
         transPkt.tag = sendTag;
 
-        //use iterator to iterate through hashmap
-        Iterator it = map.entrySet().iterator();
-        while(it.hasNext()){
-        	String currKey = (String)((Map.Entry)it.next()).getKey();
-        	 //if a key is found to belong to top half,
-             //set key and val in transfer packet and send it
-        	if(hashit(currKey) >= firstHash){
-        		transPkt.key = currKey;
-        		transPkt.val = map.get(currKey);
-        		transPkt.send(sock,succAdr,debug);
-        		it.remove();
+        //collect the pairs whose keys belong to top half
+        final List<Pair<String,String>> pairs = new ArrayList<Pair<String,String>>();
+        map.forEach((key, val) -> {
+        	if(hashit(key) >= firstHash){
+        		pairs.add(new Pair<String,String>(key, val));
         	}
+        });
+        //set key and val in transfer packet, send it and remove the pair
+        for(Pair<String,String> pair: pairs){
+        	transPkt.key = pair.left;
+        	transPkt.val = pair.right;
+        	transPkt.send(sock,succAdr,debug);
+        	map.remove(pair.left);
         }
 	}
 	
@@ -529,8 +538,9 @@ public class DhtServer {
 			} else {
 				replyAdr = senderAdr;
 			}
-			if (map.containsKey(p.key)) {
-				p.type = "success"; p.val = map.get(p.key);
+			String val = map.get(p.key);
+			if (val != null) {
+				p.type = "success"; p.val = val;
 			} else {
 				p.type = "no match";
 			}
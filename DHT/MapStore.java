@@ -0,0 +1,60 @@
+/** Key/value store used by the map servers.
+ *
+ *  A MapStore holds (key,value) string pairs and may be shared by
+ *  several threads serving requests at the same time. Every method is
+ *  a single atomic operation on one key, so a request never needs a
+ *  containsKey/remove/put sequence to decide how to reply.
+ */
+
+import java.util.function.*;
+
+public interface MapStore {
+	/** Look up a key.
+	 *  @param key is the key to look up
+	 *  @return the value paired with key, or null if there is none
+	 */
+	String get(String key);
+
+	/** Add a pair, replacing any existing value for the key.
+	 *  @param key is the key of the pair
+	 *  @param val is the new value
+	 *  @return the previous value, or null if the key was not present
+	 */
+	String put(String key, String val);
+
+	/** Add a pair only if the key is not present yet.
+	 *  @param key is the key of the pair
+	 *  @param val is the value to store
+	 *  @return the existing value (which is left unchanged),
+	 *  or null if the pair was added
+	 */
+	String putIfAbsent(String key, String val);
+
+	/** Replace the value of a key only if the key is present.
+	 *  @param key is the key of the pair
+	 *  @param val is the new value
+	 *  @return the previous value, or null if the key was not present
+	 *  (in which case nothing is stored)
+	 */
+	String replace(String key, String val);
+
+	/** Remove a pair.
+	 *  @param key is the key of the pair to remove
+	 *  @return the removed value, or null if the key was not present
+	 */
+	String remove(String key);
+
+	/** Return the number of stored pairs. */
+	int size();
+
+	/** Return true if no pairs are stored. */
+	boolean isEmpty();
+
+	/** Apply an action to every stored pair.
+	 *  The iteration is weakly consistent: pairs added or removed while
+	 *  it runs may or may not be seen. The action must not call back
+	 *  into the store.
+	 *  @param action is called once with each key and its value
+	 */
+	void forEach(BiConsumer<String, String> action);
+}
@@ -0,0 +1,91 @@
+/** Lock-striped implementation of MapStore.
+ *
+ *  The pairs are spread over a fixed number of segments by key hash.
+ *  Each segment is a plain HashMap guarded by its own lock, so threads
+ *  working on keys in different segments never wait for each other,
+ *  and every operation does a single hash probe in a single segment.
+ */
+
+import java.util.*;
+import java.util.function.*;
+
+public class StripedMapStore implements MapStore {
+	private HashMap<String, String>[] segments;
+	private int mask;	// segments.length - 1, a power of 2 minus 1
+
+	/** Initialize a new store with 64 segments. */
+	public StripedMapStore() { this(64); }
+
+	/** Initialize a new store.
+	 *  @param stripes is the minimum number of segments; it is rounded
+	 *  up to a power of 2
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public StripedMapStore(int stripes) {
+		int n = 1;
+		while (n < stripes) n <<= 1;
+		segments = (HashMap<String, String>[]) new HashMap[n];
+		for (int i = 0; i < n; i++)
+			segments[i] = new HashMap<String, String>();
+		mask = n - 1;
+	}
+
+	/** Find the segment responsible for a key. */
+	private HashMap<String, String> segmentFor(String key) {
+		int h = key.hashCode();
+		return segments[(h ^ (h >>> 16)) & mask];
+	}
+
+	public String get(String key) {
+		HashMap<String, String> seg = segmentFor(key);
+		synchronized (seg) { return seg.get(key); }
+	}
+
+	public String put(String key, String val) {
+		HashMap<String, String> seg = segmentFor(key);
+		synchronized (seg) { return seg.put(key, val); }
+	}
+
+	public String putIfAbsent(String key, String val) {
+		HashMap<String, String> seg = segmentFor(key);
+		synchronized (seg) { return seg.putIfAbsent(key, val); }
+	}
+
+	public String replace(String key, String val) {
+		HashMap<String, String> seg = segmentFor(key);
+		synchronized (seg) { return seg.replace(key, val); }
+	}
+
+	public String remove(String key) {
+		HashMap<String, String> seg = segmentFor(key);
+		synchronized (seg) { return seg.remove(key); }
+	}
+
+	public int size() {
+		int n = 0;
+		for (HashMap<String, String> seg : segments) {
+			synchronized (seg) { n += seg.size(); }
+		}
+		return n;
+	}
+
+	public boolean isEmpty() {
+		for (HashMap<String, String> seg : segments) {
+			synchronized (seg) { if (!seg.isEmpty()) return false; }
+		}
+		return true;
+	}
+
+	/** Apply an action to every stored pair, one segment at a time.
+	 *  Only the segment being visited is locked, so writers to other
+	 *  segments proceed while the iteration runs.
+	 */
+	public void forEach(BiConsumer<String, String> action) {
+		for (HashMap<String, String> seg : segments) {
+			synchronized (seg) {
+				for (Map.Entry<String, String> e : seg.entrySet())
+					action.accept(e.getKey(), e.getValue());
+			}
+		}
+	}
+}
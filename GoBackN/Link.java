@@ -0,0 +1,34 @@
+/** Packet interface of an Rdt.
+ *
+ *  An Rdt sends and receives its packets through a Link: a Substrate,
+ *  which has a socket of its own, or one connection of an RdtMux,
+ *  which shares a Substrate with other connections.
+ */
+
+public interface Link {
+	/** Send a packet.
+	 *  @param p is a packet to be sent
+	 */
+	void send(Packet p);
+
+	/** Test if the link is ready to send more packets.
+	 *  @return true if the link is ready
+	 */
+	boolean ready();
+
+	/** Retrieve the next incoming packet.
+	 *  @return the next incoming packet
+	 */
+	Packet receive();
+
+	/** Test for the presence of incoming packets.
+	 *  @return true if there are packets available to be received
+	 */
+	boolean incoming();
+
+	/** Set the action to take when a packet arrives, or when there is
+	 *  room to send a packet after the link was not ready.
+	 *  @param wakeup is run by the link's threads
+	 */
+	void setWakeup(Runnable wakeup);
+}
@@ -7,8 +7,15 @@ import java.nio.*;
 public class Packet {
 	// packet fields - note: all are public
 	public byte type;		// packet type
+	public short connId;		// connection id, 0 unless multiplexed
+	public boolean opener;		// sent by the side that opened the
+					// connection; packed as the top bit
+					// of the type byte
 	public short seqNum;		// sequence number in [0,2^15)
 	public String payload;		// application payload
+	// address of the peer the packet comes from or goes to, when a
+	// Substrate exchanges packets with any peer; not packed
+	public InetSocketAddress peer;
 
 	/** Constructor, initializes fields to default values. */
 	public Packet() { clear(); }
@@ -17,7 +24,8 @@ public class Packet {
 	 *  Initializes all fields to an undefined value.
  	 */
 	public void clear() {
-		type = 0; seqNum = 0; payload = "";
+		type = 0; connId = 0; opener = false; seqNum = 0; payload = "";
+		peer = null;
 	}
 
 	/** Pack attributes defining packet fields into buffer.
@@ -30,10 +38,11 @@ public class Packet {
 		byte[] pbuf;
 		try { pbuf = payload.getBytes("US-ASCII");
 		} catch(Exception e) { return null; }
-		if (pbuf.length > 1400 - 3) return null;
-		ByteBuffer bbuf = ByteBuffer.allocate(3 + pbuf.length);
+		if (pbuf.length > 1400 - 5) return null;
+		ByteBuffer bbuf = ByteBuffer.allocate(5 + pbuf.length);
 		bbuf.order(ByteOrder.BIG_ENDIAN);
-		bbuf.put(type); bbuf.putShort(seqNum);
+		bbuf.put((byte) (opener ? type | 0x80 : type));
+		bbuf.putShort(connId); bbuf.putShort(seqNum);
 		bbuf.put(pbuf);
 		return bbuf.array();
 	}
@@ -44,11 +53,12 @@ public class Packet {
 	 *  @param bufLen is the number of valid bytes in buf
 	 */
 	public boolean unpack(byte[] buf, int bufLen) {
-		if (bufLen < 3) return false;
+		if (bufLen < 5) return false;
 		ByteBuffer bbuf = ByteBuffer.wrap(buf);
 		bbuf.order(ByteOrder.BIG_ENDIAN);
-		type = bbuf.get(); seqNum = bbuf.getShort();
-		try { payload = new String(buf,3,bufLen-3,"US-ASCII");
+		type = bbuf.get(); opener = (type & 0x80) != 0; type &= 0x7f;
+		connId = bbuf.getShort(); seqNum = bbuf.getShort();
+		try { payload = new String(buf,5,bufLen-5,"US-ASCII");
 		} catch(Exception e) { return false; }
 		return true;
 	}
@@ -59,9 +69,10 @@ public class Packet {
 	 *  allowing it to be used as the actual buffer contents.
 	 */
 	public String toString() {
+		String id = (connId == 0 ? "" : connId + ":");
 		if (type == 0)
-			return "data[" + seqNum + "] " + payload;
+			return "data[" + id + seqNum + "] " + payload;
 		else
-			return "ack[" + seqNum + "]";
+			return "ack[" + id + seqNum + "]";
 	}
 }
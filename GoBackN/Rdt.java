@@ -1,25 +1,107 @@
 /** Reliable Data Transport class.
  *
  *  This class implements a reliable data transport service.
- *  It uses a go-back-N sliding window protocol on a packet basis.
+ *  It uses a go-back-N sliding window protocol on a packet basis,
+ *  or optionally, a selective repeat protocol.
  *
  *  An application layer thread provides new packet payloads to be
  *  sent using the provided send() method, and retrieves newly arrived
  *  payloads with the receive() method. Each application layer payload
  *  is sent as a separate UDP packet, along with a sequence number and
  *  a type flag that identifies a packet as a data packet or an
- *  acknowledgment. The sequence numbers are 15 bits.
+ *  acknowledgment. The sequence numbers are 15 bits. An Rdt normally
+ *  has a thread and a Substrate of its own; many Rdt connections can
+ *  instead share one of each through an RdtMux.
+ *
+ *  In go-back-N mode, the receiver accepts only the next packet in
+ *  sequence, and only while fewer than wSize packets wait to be
+ *  delivered, and acks cumulatively; the sender resends the whole
+ *  window on a timeout or on the 4th ack of the same packet. In
+ *  selective repeat mode, the receiver buffers any packet in its
+ *  window, delivers them in order and acks each packet separately;
+ *  the sender keeps a resend time per packet and resends only the
+ *  packets whose time has passed, so one lost packet costs one
+ *  retransmission. Both ends must use the same mode.
+ *
+ *  The retransmission timeout adapts to the round trip time, as in TCP
+ *  (Jacobson's algorithm): each ack of a packet that was sent only
+ *  once gives an RTT sample, which updates a smoothed RTT and a mean
+ *  deviation, and the timeout is the smoothed RTT plus 4 deviations,
+ *  but at least MIN_RTO. Acks of resent packets give no sample, since
+ *  it is unknown which copy they ack (Karn's algorithm). When a timer
+ *  expires, the timeout is doubled, up to MAX_RTO, and stays so until
+ *  the next ack that moves the window, which sets it back to the value
+ *  given by the estimates even if the ack gives no sample; otherwise,
+ *  under steady loss, where the acks of a resent window are all of
+ *  resent packets, the timeout would double at every loss. In
+ *  selective repeat mode, where each packet has a timer, it is doubled
+ *  at most once per timeout.
+ *
+ *  Optionally, the sender limits the packets in flight to a congestion
+ *  window, cwnd, as well as to wSize. With LOSS_CC (TCP Reno style),
+ *  cwnd starts at 1 packet and grows by 1 per packet acked (slow start)
+ *  until it reaches ssthresh, then by 1 per window acked (additive
+ *  increase). A loss detected from acks halves cwnd, and a timer
+ *  expiry sets ssthresh to half of cwnd and cwnd back to 1; losses of
+ *  packets sent before the last decrease count as the same loss and
+ *  do not decrease cwnd again. DELAY_CC (TCP Vegas style) handles
+ *  losses the same way, but also compares the lowest RTT of each
+ *  round trip with the lowest RTT ever measured, less VEGAS_SLACK, to
+ *  estimate the packets queued on the path: slow start ends when the estimate
+ *  exceeds 1, and from then on cwnd grows by 1 per round trip while
+ *  it is below VEGAS_ALPHA and shrinks by 1 while it is above
+ *  VEGAS_BETA, so the window stops growing before queues overflow.
+ *  Resent packets are held to the window too: after a loss, only the
+ *  packets within cwnd of sendBase are resent at once, and the rest
+ *  as acks open the window.
+ *
+ *  The Rdt thread never polls. When it has nothing to do, it parks
+ *  until the next resend time, or without a time limit if no packet
+ *  is waiting for an ack, and the substrate's threads and send() wake
+ *  it when a packet arrives, when there is room in the substrate after
+ *  it was full, and when a message is queued for sending. They wake
+ *  it only when their queue was empty (or full), since otherwise the
+ *  thread is not waiting on that queue.
  */
 
 import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 public class Rdt implements Runnable {
 	private int wSize;	// protocol window size
-	private long timeout;	// retransmission timeout in ns
-	private Substrate sub;	// Substrate object for packet IO
+	private long timeout;	// initial retransmission timeout in ns
+	private long rto;	// current retransmission timeout in ns
+	private long srtt = 0;	// smoothed round trip time in ns, 0 if unknown
+	private long rttVar = 0; // mean deviation of round trip time in ns
+
+	// bounds of the retransmission timeout in ns
+	public static final long MIN_RTO = 5000000;
+	public static final long MAX_RTO = 60000000000L;
+
+	// congestion control modes
+	public static final int NO_CC = 0;	// window is wSize
+	public static final int LOSS_CC = 1;	// slow start and AIMD
+	public static final int DELAY_CC = 2;	// RTT-based, as TCP Vegas
+	// bounds of packets queued on the path, for DELAY_CC
+	public static final int VEGAS_ALPHA = 2;
+	public static final int VEGAS_BETA = 4;
+	// RTT increase in ns taken as timing noise rather than queueing,
+	// for DELAY_CC; threads on a busy host may wait that long to run
+	public static final long VEGAS_SLACK = 2000000;
+
+	// Congestion control state
+	private double cwnd = 1;	// congestion window in packets
+	private double ssthresh;	// slow start threshold in packets
+	private long recoverAt = 0;	// time of the last decrease of cwnd
+	private long baseRtt = Long.MAX_VALUE; // lowest RTT measured
+	private long roundRtt = Long.MAX_VALUE; // lowest RTT in this round
+	private long roundEnd = 0;	// end time of this round trip
+	private Link sub;	// Substrate (or RdtMux connection) for packet IO
+	private boolean selRepeat; // use selective repeat, not go-back-N
+	private int cc;		// congestion control: NO_CC, LOSS_CC or DELAY_CC
 
 	private ArrayBlockingQueue<String> fromSrc;
 	private ArrayBlockingQueue<String> toSnk;
@@ -29,6 +111,16 @@ public class Rdt implements Runnable {
 	private short sendBase = 0;	// seq# of first packet in send window
 	private short sendSeqNum = 0;	// next seq# after send window
 	private short dupAcks = 0; // should only happen for sendBase-1 packet
+	// sendBase was resent after later acks (selective repeat)
+	private boolean fastRetransmitted = false;
+	private long[] resendAt; // resend time of each packet (selective repeat)
+	private long lastBackoff = -MAX_RTO; // time the timeout was last doubled
+	private short resendNext = 0;	// next packet to resend (go-back-N);
+				// sendSeqNum if none is waiting
+	private boolean resendHeld = false; // a packet is due for resending
+				// but outside the window (selective repeat)
+	private long[] sentAt;	// time each packet was first sent
+	private boolean[] resent; // true for packets sent more than once
 
 	// Receiving structures and necessary information
 	private Packet[] recvBuf; // undelivered packets
@@ -37,32 +129,86 @@ public class Rdt implements Runnable {
 	private short lastRcvd = -1; // last packet received properly
 
 	// Time keeping variabels
+	private long t0 = System.nanoTime(); // time the Rdt was created
 	private long now = 0;		// current time (relative to t0)
 	private long sendAgain = 0;	// time when we send all unacked packets
+				// (selective repeat: earliest resend time)
 
-	private Thread myThread;
-	private boolean quit;
+	//stopTimer is used to stop the timer when sendBuf is empty
+	//and host is still waiting for packets to arrive
+	private boolean stopTimer = false;
+	private boolean firstTime = false;
+	//enableDupAck is used to determine if duplicate acks
+	//functionality is turned on/off
+	private boolean enableDupAck = true;
+
+	private volatile Thread myThread;
+	private volatile boolean quit;
+	private volatile boolean woken; // wakeup() called since last check
+	private volatile Runnable waker; // wakes the RdtMux, if any
 
 	/** Initialize a new Rdt object.
 	 *  @param wSize is the window size used by protocol; the sequence #
 	 *  space is twice the window size
-	 *  @param timeout is the time to wait before retransmitting
-	 *  @param sub is a reference to the Substrate object that this object
-	 *  uses to handle the socket IO
+	 *  @param timeout is the time to wait before retransmitting, until
+	 *  round trip times have been measured
+	 *  @param sub is a reference to the Substrate object (or other Link)
+	 *  that this object uses to handle the socket IO
 	 */
-	Rdt(int wSize, double timeout, Substrate sub) 
+	Rdt(int wSize, double timeout, Link sub) 
 	{
-		this.wSize = Math.min(wSize,(1 << 14) - 1);
+		this(wSize, timeout, sub, false);
+	}
+
+	/** Initialize a new Rdt object.
+	 *  @param wSize is the window size used by protocol; the sequence #
+	 *  space is twice the window size
+	 *  @param timeout is the time to wait before retransmitting, until
+	 *  round trip times have been measured
+	 *  @param sub is a reference to the Substrate object (or other Link)
+	 *  that this object uses to handle the socket IO
+	 *  @param selRepeat is true to use selective repeat, false to use
+	 *  go-back-N
+	 */
+	Rdt(int wSize, double timeout, Link sub, boolean selRepeat)
+	{
+		this(wSize, timeout, sub, selRepeat, NO_CC);
+	}
+
+	/** Initialize a new Rdt object.
+	 *  @param wSize is the window size used by protocol; the sequence #
+	 *  space is twice the window size
+	 *  @param timeout is the time to wait before retransmitting, until
+	 *  round trip times have been measured
+	 *  @param sub is a reference to the Substrate object (or other Link)
+	 *  that this object uses to handle the socket IO
+	 *  @param selRepeat is true to use selective repeat, false to use
+	 *  go-back-N
+	 *  @param cc is the congestion control mode, NO_CC, LOSS_CC or
+	 *  DELAY_CC
+	 */
+	Rdt(int wSize, double timeout, Link sub, boolean selRepeat, int cc)
+	{
+		this.wSize = wSize = Math.min(wSize,(1 << 14) - 1);
 		this.timeout = ((long) (timeout * 1000000000)); // sec to ns
+		this.rto = this.timeout;
 		this.sub = sub;
+		sub.setWakeup(this::wakeup);
+		this.selRepeat = selRepeat;
+		this.cc = cc;
+		this.ssthresh = wSize;
 
 		// create queues for application layer interface
-		fromSrc = new ArrayBlockingQueue<String>(1000,true);
-		toSnk = new ArrayBlockingQueue<String>(1000,true);
+		fromSrc = new ArrayBlockingQueue<String>(1000);
+		toSnk = new ArrayBlockingQueue<String>(1000);
 		quit = false;
 
 		sendBuf = new Packet[2*wSize];
 		recvBuf = new Packet[2*wSize];
+		resendAt = new long[2*wSize];
+		sentAt = new long[2*wSize];
+		resent = new boolean[2*wSize];
+		if (selRepeat) sendAgain = Long.MAX_VALUE; // no packet to resend
 	}
 
 	/** Start the Rdt running. */
@@ -71,7 +217,9 @@ public class Rdt implements Runnable {
 	}
 
 	/** Stop the Rdt.  */
-	public void stop() throws Exception { quit = true; myThread.join(); }
+	public void stop() throws Exception {
+		quit = true; wakeup(); myThread.join();
+	}
 
 	/** Increment sequence number, handling wrap-around.
 	 *  @param x is a sequence number
@@ -111,46 +259,60 @@ public class Rdt implements Runnable {
 	 *  window protocol with the go-back-N feature.
 	 */
 	public void run(){
-		long t0 = System.nanoTime();
-		long now = 0;		// current time (relative to t0)
-		//stopTimer is used to stop the timer when sendBuf is empty
-		//and host is still waiting for packets to arrive
-		boolean stopTimer = false;
-		boolean firstTime = false;
-		//enableDupAck is used to determine if duplicate acks
-		//functionality is turned on/off
-		boolean enableDupAck = true;
-
 		while (!quit || sendBuf[sendBase]!=null ) {
-			now = System.nanoTime() - t0;
-			// if receive buffer has a packet that can be
-			//    delivered, deliver it to sink
-            if(recvBuf[recvBase] != null){
-            	//get the packet from receive buffer
-            	Packet p = recvBuf[recvBase];
-                //deliver the packet to sink and increment recvBase
-            	try{ 
-            	    toSnk.put(p.payload);
-            	    recvBuf[recvBase] = null;
-            	    recvBase = incr(recvBase);
-            	}catch(InterruptedException e){
-            		e.printStackTrace();
-            	}
-            }
-
-			// else if the substrate has an incoming packet
-			//      get the packet from the substrate and process it
-			// 	if it's a data packet, ack it and add it
-			//	   to receive buffer as appropriate
-			//	if it's an ack, update the send buffer and
-			//	   related data as appropriate
-			//	   reset the timer if necessary
-			else if(sub.incoming()){
+			if(step(System.nanoTime())) continue;
+			// nothing to do, so wait for an incoming packet,
+			//      a message from the source, room in the substrate,
+			//      room in toSnk, a stop or the resend time,
+			//      whichever comes first
+			long d = deadline();
+			//a wakeup since step() checked may have been
+			//missed, so check again
+			if(woken){ woken = false; continue; }
+			if(d == Long.MAX_VALUE) LockSupport.park(this);
+			else if(d > System.nanoTime())
+				LockSupport.parkNanos(this, d - System.nanoTime());
+		}
+	}
+
+	/** Do the next thing there is to do, if any: deliver a payload,
+	 *  process an incoming packet, resend packets or send a new one.
+	 *  Called by run(), or for a connection without a thread of its
+	 *  own, by RdtMux.
+	 *  @param time is the current System.nanoTime()
+	 *  @return true if something was done, false if there is nothing
+	 *  to do until an event or deadline()
+	 */
+	boolean step(long time){
+		now = time - t0;
+		// if receive buffer has a packet that can be
+		//    delivered and toSnk has room, deliver it to sink
+		if(recvBuf[recvBase] != null && toSnk.offer(recvBuf[recvBase].payload)){
+			recvBuf[recvBase] = null;
+			recvBase = incr(recvBase);
+		}
+
+		// else if the substrate has an incoming packet
+		//      get the packet from the substrate and process it
+		// 	if it's a data packet, ack it and add it
+		//	   to receive buffer as appropriate
+		//	if it's an ack, update the send buffer and
+		//	   related data as appropriate
+		//	   reset the timer if necessary
+		else if(sub.incoming()){
                  Packet p = sub.receive();
+                 if(selRepeat){
+                     if(p.type == 0) srData(p);
+                     else if(p.type == 1) srAck(p);
+                 }
                  //data packet
-                 if(p.type == 0){
+                 else if(p.type == 0){
+                 	 //packet arrive in order, but recvBuf holds a window
+                 	 //of undelivered packets until toSnk has room:
+                 	 //drop it without an ack, the sender will resend it
+                 	 if(p.seqNum == expSeqNum && diff(expSeqNum, recvBase) >= wSize){
                  	 //packet arrive in order, store in recvBuf and send ack
-                 	 if(p.seqNum == expSeqNum){ 	
+                 	 }else if(p.seqNum == expSeqNum){
                  	 	 recvBuf[expSeqNum] = p;
                  	 	 lastRcvd = expSeqNum;
                  	 	 //build ack packet
@@ -177,38 +339,35 @@ public class Rdt implements Runnable {
                  	 	 //resend packets in the sendBuf if number of duplicate acks >=4
                  	 	 //(1 original ack and 3 duplicate acks) and functionality is turned on
                  	 	 if(dupAcks >= 4 && enableDupAck){
-                 	 	 	 short temp = sendBase;
-                 	 	 	 //resend all packets in the sendBuf
-				             for(int i=1; i<=diff(sendSeqNum, sendBase); i++){
-				             	  //sleep if sub is not ready
-					              while (!sub.ready()) {
-					              	 try{ 
-								    		Thread.sleep(1);
-						            	}catch(InterruptedException e){
-						            		e.printStackTrace();
-						            	}
-					              }
-					              sub.send(sendBuf[temp]);
-					              temp = incr(temp);
-				             }
-				             //reset timer and dupAck
-				             sendAgain = now + timeout;
-				             dupAcks = 0;
-				             //turn off dupAck functionality 
-				             enableDupAck = false;
+                 	 	 	 ccLoss(sendBase, false);
+                 	 	 	 //resend all packets in the sendBuf, as
+                 	 	 	 //the window allows
+                 	 	 	 resendNext = sendBase;
+			             //reset timer and dupAck
+			             sendAgain = now + rto;
+			             dupAcks = 0;
+			             //turn off dupAck functionality 
+			             enableDupAck = false;
                  	 	 }
                  	 //seqNum of ack packet is in the range of sendBuf
                  	 //also, cumulative acks have been taken into consideration
                  	 }else if(diff(p.seqNum, sendBase) < wSize && sendBuf[p.seqNum] != null){
                  	 	 //reset dupAcks to zero because of receiving a different ack
                  	 	 dupAcks = 0;
+                 	 	 //measure the round trip time, unless the
+                 	 	 //acked packet was resent
+                 	 	 if(!resent[p.seqNum]) rttSample(now - sentAt[p.seqNum]);
+                 	 	 else unbackoff();
+                 	 	 ccAck(diff(incr(p.seqNum), sendBase));
                  	 	 //ack corresponding un-acked packets in sendBuf
                  	 	 while(sendBase != incr(p.seqNum)){
+                 	 	 	  //no need to resend what is acked
+                 	 	 	  if(resendNext == sendBase) resendNext = incr(resendNext);
                  	 	 	  sendBuf[sendBase] = null;
                  	 	 	  sendBase = incr(sendBase);
                  	 	 }
                          //reset timer
-                 	 	 sendAgain = now + timeout;
+                 	 	 sendAgain = now + rto;
                  	 	 //stop the timer if sendBuf is empty
                  	 	 if(sendBuf[sendBase] == null){
                  	 	    stopTimer = true;           	 	
@@ -216,75 +375,314 @@ public class Rdt implements Runnable {
                  	 }
                 }
 
+		}
+		// else if the earliest resend time has passed (selective
+		//      repeat), re-send the packets whose time has passed
+		else if(selRepeat && now >= sendAgain){
+			srResend();
+		}
+		// else if the resend timer has expired, re-send all
+		//      packets in the window and reset the timer
+		else if(!selRepeat && (now >= sendAgain) && (sendBase != sendSeqNum) && !stopTimer){
+			ccLoss(sendBase, true);
+			//resend all packets in the sendBuf, as the window allows
+			resendNext = sendBase;
+			//back off and reset timer
+			rto = Math.min(2*rto, MAX_RTO);
+			sendAgain = now + rto;
+			//turn on duplicate ack functionality
+			enableDupAck = true;
+		}
+
+		// else if packets are waiting to be resent (go-back-N) and
+		//      the window and the substrate have room, resend the next
+		else if(resendNext != sendSeqNum && sub.ready()
+			&& diff(resendNext, sendBase) < window()){
+			sub.send(sendBuf[resendNext]);
+			resent[resendNext] = true;
+			resendNext = incr(resendNext);
+		}
+
+		// else if there is a message from the source waiting
+		//      to be sent and the send window is not full
+		//	and the substrate can accept a packet
+		//      create a packet containing the message,
+		//	and send it, after updating the send buffer
+		//	and related data
+		else if(!fromSrc.isEmpty() && sub.ready() && diff(sendSeqNum,sendBase)<window()){
+			//build data packet
+			Packet p = new Packet();
+			p.type = 0;
+			p.seqNum = sendSeqNum;
+			p.payload = fromSrc.poll();
+			//put packet into sendBuf
+			sendBuf[sendSeqNum] = p;
+			sentAt[sendSeqNum] = now;
+			resent[sendSeqNum] = false;
+			//start the timer if it is the first packet added to sendBuf
+			if(!firstTime){
+				firstTime = true;
+				sendAgain = now + rto;
+			}
+			sendSeqNum = incr(sendSeqNum);
+			resendNext = sendSeqNum;
+			sub.send(p);
+			//enable timer
+			stopTimer = false;
+			//reset timer after retransmission
+			if(selRepeat){
+				resendAt[p.seqNum] = now + rto;
+				sendAgain = Math.min(sendAgain, resendAt[p.seqNum]);
+			}else{
+				sendAgain = now + rto;
+			}
+		}
+		else return false;
+		return true;
+	}
+
+	/** Get the time of the next resend.
+	 *  @return the System.nanoTime() at which packets are to be resent
+	 *  if they are still unacked, or Long.MAX_VALUE if none is waiting
+	 *  for an ack
+	 */
+	long deadline(){
+		if(selRepeat){
+			if(sendAgain != Long.MAX_VALUE) return t0 + sendAgain;
+		}else if(sendBase != sendSeqNum && !stopTimer){
+			return t0 + sendAgain;
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/** Test if the Rdt is waiting for room in the substrate.
+	 *  @return true if a message could be sent or a packet resent but
+	 *  for the substrate
+	 */
+	boolean waitingForSub(){
+		if(sub.ready()) return false;
+		if(resendNext != sendSeqNum) return diff(resendNext,sendBase)<window();
+		return !fromSrc.isEmpty() && diff(sendSeqNum,sendBase)<window();
+	}
+
+	/** Test if all messages sent have been acked.
+	 *  @return true if there is nothing left to send or resend
+	 */
+	boolean flushed(){
+		return fromSrc.isEmpty() && sendBase == sendSeqNum;
+	}
+
+	/** Wake the Rdt thread if it is waiting for something to do.
+	 *  Called by other threads when there is a new message to send,
+	 *  a new incoming packet or room in the substrate. A wakeup that
+	 *  comes before the thread waits is not lost: the thread finds
+	 *  woken set and checks for work again. The flag is needed as well
+	 *  as unpark(), since the thread's blocking queue operations may
+	 *  use up the permit unpark() leaves.
+	 */
+	public void wakeup() {
+		woken = true;
+		Runnable w = waker;
+		if(w != null){ w.run(); return; }
+		Thread t = myThread;
+		if(t != null) LockSupport.unpark(t);
+	}
+
+	/** Set the action wakeup() takes in place of waking the Rdt
+	 *  thread, for a connection run by an RdtMux.
+	 *  @param waker is run by the threads that call wakeup()
+	 */
+	void setWaker(Runnable waker) { this.waker = waker; }
+
+	/** Handle a data packet in selective repeat mode.
+	 *  A packet in the receive window, which starts at expSeqNum, is
+	 *  buffered and acked, unless it is wSize or more ahead of recvBase,
+	 *  since its slot may still hold an undelivered packet; its sender
+	 *  will resend it. A packet in the wSize sequence numbers before
+	 *  expSeqNum was received before and is acked again, as its ack may
+	 *  have been lost.
+	 *  @param p is a data packet from the substrate
+	 */
+	private void srData(Packet p) {
+		if(diff(p.seqNum, expSeqNum) < wSize){
+			if(diff(p.seqNum, recvBase) >= wSize) return;
+			if(recvBuf[p.seqNum] == null) recvBuf[p.seqNum] = p;
+			//move expSeqNum past the packets now in order
+			while(recvBuf[expSeqNum] != null) expSeqNum = incr(expSeqNum);
+		}
+		Packet pAck = new Packet();
+		pAck.type = 1;
+		pAck.seqNum = p.seqNum;
+		sub.send(pAck);
+	}
+
+	/** Handle an ack in selective repeat mode.
+	 *  The acked packet is removed from the send buffer, and the window
+	 *  moves past the acked packets at its start. Acks for packets not
+	 *  in the window are duplicates and are ignored. When 3 packets
+	 *  after sendBase are acked while sendBase is not, sendBase is
+	 *  resent once without waiting for its resend time, as go-back-N
+	 *  does on duplicate acks; otherwise one loss would stall the full
+	 *  window for the whole timeout. Any ack may make room in the window
+	 *  for packets held back by srResend(), so it makes the resend time
+	 *  now if there are any.
+	 *  @param p is an ack packet from the substrate
+	 */
+	private void srAck(Packet p) {
+		if(diff(p.seqNum, sendBase) >= diff(sendSeqNum, sendBase)
+		   || sendBuf[p.seqNum] == null) return;
+		if(!resent[p.seqNum]) rttSample(now - sentAt[p.seqNum]);
+		ccAck(1);
+		sendBuf[p.seqNum] = null;
+		if(resendHeld){ resendHeld = false; sendAgain = now; }
+		if(p.seqNum != sendBase){
+			//resend at the 3rd later ack, or at the first one after
+			//it that finds room in the substrate
+			if(++dupAcks >= 3 && !fastRetransmitted && sub.ready()){
+				ccLoss(sendBase, false);
+				sub.send(sendBuf[sendBase]);
+				resent[sendBase] = true;
+				resendAt[sendBase] = now + rto;
+				fastRetransmitted = true;
 			}
-			// else if the resend timer has expired, re-send all
-			//      packets in the window and reset the timer
-			else if((now >= sendAgain) && (sendBase != sendSeqNum) && !stopTimer){
-				short temp = sendBase;
-				//resend all packets in the sendBuf
-				for(int i=1; i<=diff(sendSeqNum, sendBase); i++){
-					//sleep if sub is not ready
-					while (!sub.ready()) {
-					   try{ 
-				    		Thread.sleep(1);
-		            	}catch(InterruptedException e){
-		            		e.printStackTrace();
-		            	}
-					}
-					sub.send(sendBuf[temp]);
-					temp = incr(temp);
+			return;
+		}
+		dupAcks = 0; fastRetransmitted = false;
+		if(resent[p.seqNum]) unbackoff();
+		while(sendBase != sendSeqNum && sendBuf[sendBase] == null)
+			sendBase = incr(sendBase);
+	}
+
+	/** Resend the packets whose resend time has passed, in selective
+	 *  repeat mode, and set sendAgain to the earliest resend time of
+	 *  the packets still unacked. Resending backs off the timeout, at
+	 *  most once per timeout. Packets outside the window are held
+	 *  back until an ack makes room for them.
+	 */
+	private void srResend() {
+		long next = Long.MAX_VALUE;
+		for(short s = sendBase; s != sendSeqNum; s = incr(s)){
+			if(sendBuf[s] == null) continue;
+			if(resendAt[s] <= now && diff(s, sendBase) >= window()){
+				resendHeld = true;
+				continue;
+			}
+			if(resendAt[s] <= now){
+				//the packets of a window expire one after another;
+				//back off once per timeout, not once per packet
+				if(now - lastBackoff >= rto){
+					ccLoss(s, true);
+					rto = Math.min(2*rto, MAX_RTO);
+					lastBackoff = now;
 				}
-				//reset timer
-				sendAgain = now + timeout;
-				//turn on duplicate ack functionality
-				enableDupAck = true;
+				sub.send(sendBuf[s]); //waits if sub is not ready
+				resent[s] = true;
+				resendAt[s] = now + rto;
 			}
+			next = Math.min(next, resendAt[s]);
+		}
+		sendAgain = next;
+	}
 
-			// else if there is a message from the source waiting
-			//      to be sent and the send window is not full
-			//	and the substrate can accept a packet
-			//      create a packet containing the message,
-			//	and send it, after updating the send buffer
-			//	and related data
-			else if(!fromSrc.isEmpty() && sub.ready() && diff(sendSeqNum,sendBase)<wSize){
-				//build data packet
-				Packet p = new Packet();
-				p.type = 0;
-				p.seqNum = sendSeqNum;
-				p.payload = fromSrc.poll();
-				//put packet into sendBuf
-				sendBuf[sendSeqNum] = p;
-				//start the timer if it is the first packet added to sendBuf
-				if(!firstTime){
-					firstTime = true;
-					sendAgain = now + timeout;
+	/** Update the round trip time estimates and the timeout with a
+	 *  new sample.
+	 *  @param rtt is the time from sending a packet to receiving its ack
+	 */
+	private void rttSample(long rtt) {
+		if(srtt == 0){
+			srtt = Math.max(rtt, 1); rttVar = rtt/2;
+		}else{
+			rttVar += (Math.abs(srtt - rtt) - rttVar)/4;
+			srtt += (rtt - srtt)/8;
+		}
+		unbackoff();
+		baseRtt = Math.min(baseRtt, rtt);
+		roundRtt = Math.min(roundRtt, rtt);
+	}
+
+	/** Set the timeout from the round trip time estimates, undoing any
+	 *  back off, or back to its initial value if there are none yet.
+	 */
+	private void unbackoff() {
+		if(srtt == 0) rto = timeout;
+		else rto = Math.max(MIN_RTO, Math.min(srtt + 4*rttVar, MAX_RTO));
+	}
+
+	/** Get the number of packets that may be in flight.
+	 *  @return wSize, or the congestion window if it is smaller
+	 */
+	private int window() {
+		if(cc == NO_CC) return wSize;
+		return (int) Math.max(1, Math.min(cwnd, wSize));
+	}
+
+	/** Grow the congestion window when packets are acked.
+	 *  @param n is the number of packets newly acked
+	 */
+	private void ccAck(int n) {
+		if(cc == NO_CC) return;
+		if(cc == DELAY_CC && now >= roundEnd){
+			// once per round trip, estimate the packets queued
+			// on the path from the lowest RTT of the round
+			if(roundRtt != Long.MAX_VALUE){
+				long qdelay = Math.max(0, roundRtt - baseRtt - VEGAS_SLACK);
+				double queued = cwnd * qdelay / roundRtt;
+				if(cwnd < ssthresh){
+					if(queued > 1) ssthresh = cwnd;
+				}else if(queued < VEGAS_ALPHA){
+					cwnd += 1;
+				}else if(queued > VEGAS_BETA){
+					cwnd = Math.max(2, cwnd - 1);
 				}
-				sendSeqNum = incr(sendSeqNum);
-				sub.send(p);
-				//enable timer
-				stopTimer = false;
-				//reset timer after retransmission
-				sendAgain = now + timeout;
 			}
-			// else nothing to do, so sleep for 1 ms
-		    else{
-		    	try{ 
-		    		Thread.sleep(1);
-            	}catch(InterruptedException e){
-            		e.printStackTrace();
-            	}
-		    }
+			roundRtt = Long.MAX_VALUE;
+			roundEnd = now + Math.max(srtt, MIN_RTO);
+		}
+		for(int i = 0; i < n; i++){
+			if(cwnd < ssthresh) cwnd += 1;
+			else if(cc == LOSS_CC) cwnd += 1/cwnd;
 		}
+		cwnd = Math.min(cwnd, wSize);
 	}
 
+	/** Shrink the congestion window when a packet is lost.
+	 *  @param s is the sequence number of the lost packet
+	 *  @param expired is true if the loss was detected by a timer
+	 *  expiry, and false if it was detected from acks
+	 */
+	private void ccLoss(short s, boolean expired) {
+		if(cc == NO_CC) return;
+		if(!expired && sentAt[s] < recoverAt) return; // same loss
+		ssthresh = Math.max(cwnd/2, 2);
+		cwnd = (expired ? 1 : ssthresh);
+		recoverAt = now;
+	}
+
+	/** Get the congestion window.
+	 *  @return the number of packets that may be in flight
+	 */
+	public int cwnd() { return window(); }
+
+	/** Get the smoothed round trip time.
+	 *  @return the smoothed round trip time in seconds, or 0 if no
+	 *  round trip time has been measured
+	 */
+	public double srtt() { return srtt / 1e9; }
+
+	/** Get the retransmission timeout.
+	 *  @return the current retransmission timeout in seconds
+	 */
+	public double rto() { return rto / 1e9; }
+
 	/** Send a message to peer.
 	 *  @param message is a string to be sent to the peer
 	 */
 	public void send(String message) {
 		try {
 			fromSrc.put(message);
-			//System.err.println("put message into fromSrc");
-			//System.err.println(fromSrc.size());
+			//if fromSrc held other messages, the Rdt thread has
+			//yet to send them, so it is not waiting for one
+			if(fromSrc.size() <= 1) wakeup();
 		} catch(Exception e) {
 			System.err.println("Rdt:send: put exception" + e);
 			System.exit(1);
@@ -307,6 +705,25 @@ public class Rdt implements Runnable {
 			System.err.println("Rdt:send: take exception" + e);
 			System.exit(1);
 		}
+		//toSnk was full if at most one slot is free now, so the
+		//Rdt thread may be waiting to deliver
+		if(toSnk.remainingCapacity() <= 1) wakeup();
+		return s;
+	}
+
+	/** Get an incoming message, waiting for one for a limited time.
+	 *  @param timeout is the longest time to wait in ns
+	 *  @return next message, or null if none arrived in time
+	 */
+	public String receive(long timeout) {
+		String s = null;
+		try {
+			s = toSnk.poll(timeout, TimeUnit.NANOSECONDS);
+		} catch(Exception e) {
+			System.err.println("Rdt:receive: poll exception" + e);
+			System.exit(1);
+		}
+		if(s != null && toSnk.remainingCapacity() <= 1) wakeup();
 		return s;
 	}
 	
@@ -0,0 +1,340 @@
+/** Multiplexer of Rdt connections over one Substrate.
+ *
+ *  An RdtMux runs any number of Rdt connections, to any number of
+ *  peers, over a single socket: one Substrate, with its Sender and
+ *  Receiver threads, and one thread of its own that runs the protocol
+ *  of every connection. A connection is identified by the peer's
+ *  address, a connection id and the side that opened it, the last two
+ *  carried in every packet; the side that opens a connection picks an
+ *  id not in use among the connections it opened. As with the port
+ *  pair of TCP, the ids picked by the two sides of a socket pair for
+ *  connections opened at the same time can be equal, but the
+ *  connections are still told apart.
+ *
+ *  connect() opens a connection to a peer, and accept() returns the
+ *  next connection opened by a peer, which the RdtMux creates when the
+ *  first packet of an unknown connection arrives. The Rdt objects
+ *  returned are used as usual with send(), receive() and related
+ *  methods, but are not started; close() removes a connection once
+ *  the peer has acked all it was sent.
+ *
+ *  There is no closing handshake, so packets of a connection may still
+ *  arrive after it is removed: the peer's last acks, or data it resends
+ *  because an ack was lost. A packet with sequence number 0 would then
+ *  open a new connection. So the id of a closed connection lingers: for
+ *  LINGER after the last packet that arrives for it, its packets are
+ *  dropped, and connect() does not reuse it. Data packets are still
+ *  acked, though their payloads are discarded, so that a peer that
+ *  lost an ack can finish sending and close its side as well.
+ *
+ *  The thread waits for an incoming packet, a message sent on any
+ *  connection, room in the substrate, or the earliest resend time of
+ *  any connection, kept in a timer queue ordered by time. Each event
+ *  runs only the connections it concerns, so the cost per packet does
+ *  not grow with the number of connections. An entry in the timer
+ *  queue is stale if the connection's resend time has changed since;
+ *  stale entries are skipped when they come up.
+ *
+ *  Connection ids are 16 bits, so one socket can open up to 65535
+ *  connections at a time, and accept as many.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+public class RdtMux implements Runnable {
+	// time in ns the id of a closed connection stays reserved after
+	// the last packet that arrives for it; a peer resending a packet
+	// resends it at least this often
+	public static final long LINGER = Rdt.MAX_RTO;
+
+	private Substrate sub;	// shared by all connections
+	private int wSize;	// window size of new connections
+	private double timeout;	// initial timeout of new connections
+	private boolean selRepeat; // new connections use selective repeat
+	private int cc;		// congestion control of new connections
+
+	private ConcurrentHashMap<Key, Conn> conns; // open connections
+	private ConcurrentHashMap<Rdt, Conn> byRdt; // the same, by Rdt
+	// closed connections, with the time the last packet for each arrived
+	private ConcurrentHashMap<Key, Long> closed;
+	private long pruneAt;	// time to forget ids closed for LINGER
+	private LinkedBlockingQueue<Rdt> accepted; // connections from peers
+	private ConcurrentLinkedQueue<Conn> woken; // connections to run
+	private PriorityQueue<Timer> timers;	// resend times by time
+	private ArrayList<Conn> waitingForSub;	// waiting for room in sub
+	private short nextId = 1;	// next connection id to try
+
+	private volatile Thread myThread;
+	private volatile boolean quit;
+	private volatile boolean signaled; // wakeup since last check
+
+	/** Peer address, connection id and opening side of a connection. */
+	private static class Key {
+		InetSocketAddress peer; short id;
+		boolean opener;	// opened by this side, with connect()
+
+		Key(InetSocketAddress peer, short id, boolean opener) {
+			this.peer = peer; this.id = id; this.opener = opener;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return id == k.id && opener == k.opener && peer.equals(k.peer);
+		}
+
+		public int hashCode() {
+			return (peer.hashCode() * 31 + id) * 2 + (opener ? 1 : 0);
+		}
+	}
+
+	/** A resend time of a connection. */
+	private static class Timer {
+		long time; Conn conn;
+
+		Timer(long time, Conn conn) { this.time = time; this.conn = conn; }
+	}
+
+	/** One connection: the Link its Rdt uses. Packets sent are stamped
+	 *  with the connection's id, opening side and peer and passed to
+	 *  the Substrate;
+	 *  packets received are queued here by the RdtMux thread, which is
+	 *  the only thread that runs the Rdt's protocol.
+	 */
+	private class Conn implements Link {
+		Key key;
+		Rdt rdt;
+		ArrayDeque<Packet> in;	// incoming packets
+		long timerAt = Long.MAX_VALUE; // time of its Timer, if any
+		boolean waiting;	// in waitingForSub
+		volatile boolean closing; // remove when flushed
+
+		Conn(Key key) {
+			this.key = key;
+			in = new ArrayDeque<Packet>();
+			rdt = new Rdt(wSize, timeout, this, selRepeat, cc);
+			rdt.setWaker(() -> wakeup(this));
+		}
+
+		public void send(Packet p) {
+			p.connId = key.id; p.opener = key.opener; p.peer = key.peer;
+			sub.send(p);
+		}
+
+		public boolean ready() { return sub.ready(); }
+
+		public Packet receive() { return in.poll(); }
+
+		public boolean incoming() { return !in.isEmpty(); }
+
+		public void setWakeup(Runnable wakeup) { } // see Conn()
+	}
+
+	/** Initialize a new RdtMux object.
+	 *  @param sub is a Substrate created to exchange packets with any
+	 *  peer
+	 *  @param wSize is the window size of each connection
+	 *  @param timeout is the initial retransmission timeout of each
+	 *  connection, in seconds
+	 *  @param selRepeat is true to use selective repeat, false to use
+	 *  go-back-N
+	 *  @param cc is the congestion control mode of each connection
+	 */
+	RdtMux(Substrate sub, int wSize, double timeout, boolean selRepeat, int cc) {
+		this.sub = sub; this.wSize = wSize; this.timeout = timeout;
+		this.selRepeat = selRepeat; this.cc = cc;
+		conns = new ConcurrentHashMap<Key, Conn>();
+		byRdt = new ConcurrentHashMap<Rdt, Conn>();
+		closed = new ConcurrentHashMap<Key, Long>();
+		pruneAt = System.nanoTime() + LINGER;
+		accepted = new LinkedBlockingQueue<Rdt>();
+		woken = new ConcurrentLinkedQueue<Conn>();
+		timers = new PriorityQueue<Timer>((a, b) -> Long.compare(a.time, b.time));
+		waitingForSub = new ArrayList<Conn>();
+		sub.setWakeup(this::signal);
+	}
+
+	/** Start the RdtMux running. */
+	public void start() {
+		myThread = new Thread(this); myThread.start();
+	}
+
+	/** Stop the RdtMux and its Substrate. */
+	public void stop() throws Exception {
+		quit = true; signal(); myThread.join(); sub.stop();
+	}
+
+	/** Open a connection to a peer.
+	 *  @param peer is the address of the peer's RdtMux
+	 *  @return the new connection
+	 */
+	public synchronized Rdt connect(InetSocketAddress peer) {
+		for (int i = 0; i < 65535; i++) {
+			Key key = new Key(peer, nextId, true);
+			nextId = (short) (nextId == -1 ? 1 : nextId + 1);
+			if (conns.containsKey(key) || lingers(key)) continue;
+			return open(key).rdt;
+		}
+		throw new IllegalStateException("RdtMux: no free connection id");
+	}
+
+	/** Get the next connection opened by a peer, waiting for one.
+	 *  @return the new connection
+	 */
+	public Rdt accept() {
+		Rdt r = null;
+		try {
+			r = accepted.take();
+		} catch(Exception e) {
+			System.err.println("RdtMux:accept: take exception " + e);
+			System.exit(1);
+		}
+		return r;
+	}
+
+	/** Close a connection. The connection is removed once all the
+	 *  messages sent on it have been acked.
+	 *  @param rdt is a connection returned by connect() or accept()
+	 */
+	public void close(Rdt rdt) {
+		Conn c = byRdt.get(rdt);
+		if (c == null) return;
+		c.closing = true; wakeup(c);
+	}
+
+	/** Create a connection and add it to the open ones.
+	 *  @param key is the peer address and id of the connection
+	 *  @return the new connection
+	 */
+	private Conn open(Key key) {
+		Conn c = new Conn(key);
+		conns.put(key, c); byRdt.put(c.rdt, c);
+		return c;
+	}
+
+	/** Test if the id of a closed connection is still reserved.
+	 *  @param key is the peer address and id of the connection
+	 *  @return true if the connection was closed less than LINGER
+	 *  before the last packet for it arrived
+	 */
+	private boolean lingers(Key key) {
+		Long t = closed.get(key);
+		return t != null && System.nanoTime() - t < LINGER;
+	}
+
+	/** Return the number of open connections. */
+	public int connections() { return conns.size(); }
+
+	/** Queue a connection to be run, and wake the RdtMux thread.
+	 *  @param c is a connection with a new message to send, or room
+	 *  to deliver messages
+	 */
+	private void wakeup(Conn c) { woken.add(c); signal(); }
+
+	/** Wake the RdtMux thread if it is waiting for something to do. */
+	private void signal() {
+		signaled = true;
+		Thread t = myThread;
+		if (t != null) LockSupport.unpark(t);
+	}
+
+	/** Main thread for the RdtMux object.
+	 *  Passes incoming packets to their connections, and runs the
+	 *  connections with new messages, those waiting for room in the
+	 *  substrate when there is room, and those whose resend time has
+	 *  come. When there is nothing to do, it waits for a wakeup or
+	 *  the earliest resend time.
+	 */
+	public void run() {
+		while (!quit) {
+			signaled = false;
+			while (sub.incoming()) {
+				Packet p = sub.receive();
+				// the packet's opener bit is from the sender's side
+				Key key = new Key(p.peer, p.connId, !p.opener);
+				Conn c = conns.get(key);
+				if (c == null && lingers(key)) {
+					closed.put(key, System.nanoTime());
+					ackClosed(p); continue;
+				}
+				if (c == null) {
+					// only the first packet of a connection the
+					// peer opened opens it; others are from
+					// connections closed here over LINGER ago
+					closed.remove(key);
+					if (p.type != 0 || p.seqNum != 0 || !p.opener) continue;
+					c = open(key);
+					accepted.add(c.rdt);
+				}
+				c.in.add(p);
+				runConn(c);
+			}
+			Conn c;
+			while ((c = woken.poll()) != null) runConn(c);
+			if (!waitingForSub.isEmpty() && sub.ready()) {
+				ArrayList<Conn> waiting = new ArrayList<Conn>(waitingForSub);
+				waitingForSub.clear();
+				for (Conn w : waiting) { w.waiting = false; runConn(w); }
+			}
+			long now = System.nanoTime();
+			if (now - pruneAt >= 0) {
+				closed.values().removeIf(x -> now - x >= LINGER);
+				pruneAt = now + LINGER;
+			}
+			Timer t;
+			while ((t = timers.peek()) != null && t.time <= now) {
+				timers.poll();
+				if (t.conn.timerAt != t.time) continue; // stale
+				t.conn.timerAt = Long.MAX_VALUE;
+				runConn(t.conn);
+			}
+			// a wakeup since the checks above may have been missed
+			if (signaled || quit) continue;
+			t = timers.peek();
+			if (t == null) LockSupport.park(this);
+			else if (t.time > System.nanoTime())
+				LockSupport.parkNanos(this, t.time - System.nanoTime());
+		}
+	}
+
+	/** Answer a data packet of a closed connection with an ack of
+	 *  the same sequence number, and drop the packet. The ack only
+	 *  tells the peer to stop resending; in go-back-N mode it covers
+	 *  the packets before it as well, which are discarded too.
+	 *  @param p is a packet for a connection that lingers
+	 */
+	private void ackClosed(Packet p) {
+		if (p.type != 0 || !sub.ready()) return;
+		Packet ack = new Packet();
+		ack.type = 1; ack.seqNum = p.seqNum;
+		ack.connId = p.connId; ack.opener = !p.opener; ack.peer = p.peer;
+		sub.send(ack);
+	}
+
+	/** Run a connection's protocol until it has nothing to do, then
+	 *  queue its resend time, or remove it if it is closing and all
+	 *  its messages have been acked.
+	 *  @param c is the connection
+	 */
+	private void runConn(Conn c) {
+		if (conns.get(c.key) != c) return; // removed
+		while (c.rdt.step(System.nanoTime())) {}
+		if (c.closing && c.rdt.flushed()) {
+			closed.put(c.key, System.nanoTime());
+			conns.remove(c.key); byRdt.remove(c.rdt);
+			return;
+		}
+		long d = c.rdt.deadline();
+		if (d != Long.MAX_VALUE && d != c.timerAt) {
+			c.timerAt = d;
+			timers.add(new Timer(d, c));
+		}
+		if (c.rdt.waitingForSub() && !c.waiting) {
+			c.waiting = true; waitingForSub.add(c);
+		}
+	}
+}
@@ -13,21 +13,25 @@ import java.util.concurrent.*;
 
 public class Receiver implements Runnable {
 	private Thread myThread;	// thread that executes run() method
+	private volatile boolean quit;	// stop thread when true
 	private Sender sndr;
 
 	private DatagramSocket sock;
 	private ArrayBlockingQueue<Packet> rcvq;
 	private InetSocketAddress peerAdr;
+	private boolean anyPeer;	// accept packets from any peer
 	private boolean debug;
+	private volatile Runnable wakeup; // run when a packet is queued
 
 	Receiver(DatagramSocket sock, InetSocketAddress peerAdr,
-		 Sender sndr, boolean debug) {
+		 boolean anyPeer, Sender sndr, boolean debug) {
 		this.sock = sock; this.peerAdr = peerAdr;
+		this.anyPeer = anyPeer;
 		this.sndr = sndr; this.debug = debug;
 
 		// initialize queue for received packets
 		// stores both the packet and socket address of the sender
-		rcvq = new ArrayBlockingQueue<Packet>(1000,true);
+		rcvq = new ArrayBlockingQueue<Packet>(1000);
 	}
 
 	/** Instantiate run() thread and start it running. */
@@ -35,9 +39,17 @@ public class Receiver implements Runnable {
 		myThread = new Thread(this); myThread.start();
 	}
 
+	/** Signal run method to halt, within 100 ms. */
+	public void stop() { quit = true; }
+
 	/** Wait for thread to quit. */
 	public void join() throws Exception { myThread.join(); }
 
+	/** Set the action to take when a packet is placed in the queue.
+	 *  @param wakeup is run by the receive thread
+	 */
+	public void setWakeup(Runnable wakeup) { this.wakeup = wakeup; }
+
 	/** Receive thread places incoming packet in a queue.
 	 *  This method is run by a separate thread. It simply receives
 	 *  packets from the datagram socket and places them in a queue.
@@ -55,8 +67,10 @@ public class Receiver implements Runnable {
 		int rcvCount, rcvAck, discCount;
 		rcvCount = rcvAck = discCount = 0;
 
-		// run until nothing has happened for 5 seconds
-		while (eventTime == 0 || now < eventTime + 5000000000L) {
+		// run until nothing has happened for 5 seconds, or when
+		// serving any peer, until stopped
+		while (!quit && (anyPeer || eventTime == 0
+				 || now < eventTime + 5000000000L)) {
 			now = System.nanoTime() - t0;
 	                try {
 	                        sock.receive(dg);
@@ -70,7 +84,9 @@ public class Receiver implements Runnable {
 			eventTime = now;
 			// set peerAdr if not yet initialized
 			// otherwise, that it's the same peer
-			if (peerAdr == null) {
+			if (anyPeer) {
+				// any sender is fine
+			} else if (peerAdr == null) {
 				peerAdr = (InetSocketAddress)
 						dg.getSocketAddress();
 				sndr.setPeerAdr(peerAdr);
@@ -86,6 +102,8 @@ public class Receiver implements Runnable {
 						   + "unpacking packet");
                        		System.exit(1);
                 	}
+			if (anyPeer)
+				p.peer = (InetSocketAddress) dg.getSocketAddress();
 	                if (debug) {
 	                        System.out.println(sock.getLocalSocketAddress()
 	                                + " received from " 
@@ -95,6 +113,10 @@ public class Receiver implements Runnable {
 			if (p.type == 0) rcvCount++;
 			else rcvAck++;
 			if (!rcvq.offer(p)) discCount++; // discard if rcvq full
+			// rcvq was empty if at most one packet is in it now;
+			// otherwise the Rdt has yet to find the packets before
+			// this one, so it is not waiting
+			else if (wakeup != null && rcvq.size() <= 1) wakeup.run();
 			if (firstEventTime == 0) firstEventTime = now;
 		}
 		System.out.println("Receiver: received " + rcvCount 
@@ -14,20 +14,24 @@ import java.util.concurrent.*;
 public class Sender implements Runnable {
 	private DatagramSocket sock;
 	private InetSocketAddress peerAdr;
+	private boolean anyPeer;	// send each packet to its peer field
 	private double discProb;
 	private boolean debug;
 
 	private ArrayBlockingQueue<Packet> sendq;
+	private volatile Runnable wakeup; // run when sendq has room again
 	private Thread myThread;	// thread that executes run() method
+	private volatile boolean quit;	// stop thread when true
 
 	Sender(DatagramSocket sock, InetSocketAddress peerAdr,
-		    double discProb, boolean debug) {
+		    boolean anyPeer, double discProb, boolean debug) {
 		this.sock = sock; this.peerAdr = peerAdr;
+		this.anyPeer = anyPeer;
 		this.discProb = discProb; this.debug = debug;
 
 		// initialize queue for received packets
 		// stores both the packet and socket address of the sender
-		sendq = new ArrayBlockingQueue<Packet>(1000,true);
+		sendq = new ArrayBlockingQueue<Packet>(1000);
 	}
 
 	/** Instantiate run() thread and start it running. */
@@ -35,6 +39,9 @@ public class Sender implements Runnable {
 		myThread = new Thread(this); myThread.start();
 	}
 
+	/** Signal run method to halt, within 100 ms. */
+	public void stop() { quit = true; }
+
 	/** Wait for thread to quit. */
 	public void join() throws Exception { myThread.join(); }
 
@@ -42,6 +49,11 @@ public class Sender implements Runnable {
 		this.peerAdr = peerAdr;
 	}
 
+	/** Set the action to take when sendq has room after being full.
+	 *  @param wakeup is run by the send thread
+	 */
+	public void setWakeup(Runnable wakeup) { this.wakeup = wakeup; }
+
 	/** Send thread sends out-going packets to the network.
 	 *  This method is run by a separate thread. Whenever there
 	 *  is an outgoing packet to be sent, it sends it and waits
@@ -58,11 +70,13 @@ public class Sender implements Runnable {
 		int sendCount, sendAck, discCount, discAck;
 		sendCount = sendAck = discCount = discAck = 0;;
 
-		// run until nothing has happened for 3 seconds
-		while (eventTime == 0 || now < eventTime + 3000000000L) {
+		// run until nothing has happened for 3 seconds, or when
+		// serving any peer, until stopped
+		while (!quit && (anyPeer || eventTime == 0
+				 || now < eventTime + 3000000000L)) {
 			now = System.nanoTime() - t0;
 			// idle until peerAdr is set
-			if (peerAdr == null) {
+			if (peerAdr == null && !anyPeer) {
 				try {
 					Thread.sleep(100);
 				} catch(Exception e) {
@@ -82,6 +96,10 @@ public class Sender implements Runnable {
 				System.exit(1);
 			}
 			if (p == null) continue; // check for termination
+			// sendq was full if at most one slot is free now;
+			// a thread that found it full may be waiting
+			Runnable w = wakeup;
+			if (w != null && sendq.remainingCapacity() <= 1) w.run();
 			if (p.type == 0) sendCount++;
 			else sendAck++;
 			eventTime = now;
@@ -103,7 +121,7 @@ public class Sender implements Runnable {
 				System.exit(1);
 			}
 			dg.setData(buf); dg.setLength(buf.length);
-			dg.setSocketAddress(peerAdr);
+			dg.setSocketAddress(anyPeer ? p.peer : peerAdr);
 	                if (debug) {
 	                        System.out.println(sock.getLocalSocketAddress()
 	                                + " sending to " 
@@ -69,44 +69,37 @@ public class SrcSnk implements Runnable {
 		long next = 1000000000;
 		long stopTime = next + runLength;
 
-		int sleeptime; // time to sleep when nothing to do
-		if (delta > 0 && delta < 1000000) sleeptime = (int) delta;
-		else sleeptime = 999999;
-
 		String msg; inCount = outCount = 0;
-		int idleCount = 0;
 		while (!quit) {
 			now = System.nanoTime() - t0;
 			if (rdt.incoming()) {
 				msg = rdt.receive();
-				if (!msg.equals("testing " + inCount)) {
-                                        System.out.println("got: " + msg
-						+ "when expecting "
-                                                + "testing " + inCount);
-                                        System.exit(1);
-				}
-                                inCount++;
-				idleCount = 0;
 			} else if (now > next && now < stopTime &&
 			     	   rdt.ready() && delta > 0) {
 				// send an outgoing payload
 				msg = "testing " + outCount;
 				rdt.send(msg);
 				outCount++; next += delta;
-				idleCount = 0;
+				continue;
 			} else {
-				idleCount++;
+				// wait for an incoming payload until the next
+				// one is due to be sent; if it is due but the
+				// Rdt is not ready, check again after 0.1 ms,
+				// and after the sending period, every 100 ms,
+				// to see if stopped
+				long wait = 100000000;
+				if (delta > 0 && now < stopTime)
+					wait = Math.max(next - now, 100000);
+				msg = rdt.receive(wait);
+				if (msg == null) continue;
 			}
-			if (idleCount >= 10) {
-				try {
-					Thread.sleep(0L,sleeptime);
-				} catch(Exception e) {
-					System.err.println("SrcSnk:run: "
-						+ "sleep exception " + e);
-					System.exit(1);
-				}
-				idleCount = 0;
+			if (!msg.equals("testing " + inCount)) {
+				System.out.println("got: " + msg
+					+ "when expecting "
+					+ "testing " + inCount);
+				System.exit(1);
 			}
+			inCount++;
 		}
 		System.out.println("  SrcSnk: sent " + outCount
 					+ ", received " + inCount);
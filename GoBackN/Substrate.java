@@ -3,9 +3,10 @@ import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
 
-public class Substrate {
+public class Substrate implements Link {
 	private DatagramSocket sock;
 	private InetSocketAddress peerAdr;
+	private boolean anyPeer;	// exchange packets with any peer
 	private double discProb;
 	private boolean debug;
 
@@ -24,8 +25,30 @@ public class Substrate {
 	 */
 	Substrate(InetAddress myIp, int port, InetSocketAddress peerAdr,
 		  double discProb, boolean debug) {
+		this(myIp, port, peerAdr, false, discProb, debug);
+	}
+
+	/** Initialize a new Substrate object that exchanges packets with
+	 *  any number of peers, for an RdtMux. Each packet sent goes to
+	 *  the address in its peer field, and each packet received has
+	 *  the address of its sender in its peer field. Its threads keep
+	 *  running while it is idle, until stop() is called.
+	 *  @param myIp is the IP address to bind to the socket
+	 *  @param port is the port number to bind to the socket (may be 0)
+	 *  @param discProb is a discard probability used to randomly discard
+	 *  packets received from the Rdt object
+	 *  @param debug is a flag; if it is 1, each packet sent and received
+	 *  is printed out
+	 */
+	Substrate(InetAddress myIp, int port, double discProb, boolean debug) {
+		this(myIp, port, null, true, discProb, debug);
+	}
+
+	private Substrate(InetAddress myIp, int port, InetSocketAddress peerAdr,
+			  boolean anyPeer, double discProb, boolean debug) {
 		// initialize instance variables
 		this.peerAdr = peerAdr;
+		this.anyPeer = anyPeer;
 		this.discProb = discProb;
 		this.debug = debug;
 
@@ -40,8 +63,8 @@ public class Substrate {
 			System.exit(1);
 		}
 
-		sndr = new Sender(sock,peerAdr,discProb,debug);
-		rcvr = new Receiver(sock,peerAdr,sndr,debug);
+		sndr = new Sender(sock,peerAdr,anyPeer,discProb,debug);
+		rcvr = new Receiver(sock,peerAdr,anyPeer,sndr,debug);
 	}
 
 	/** Start Substrate running. */
@@ -50,6 +73,23 @@ public class Substrate {
 	/** Wait for Substrate to stop. */
 	public void join() throws Exception { sndr.join(); rcvr.join(); }
 
+	/** Stop the Substrate and close its socket. A Substrate that
+	 *  exchanges packets with any peer runs until it is stopped;
+	 *  otherwise, it stops by itself after a few idle seconds.
+	 */
+	public void stop() throws Exception {
+		sndr.stop(); rcvr.stop(); join(); sock.close();
+	}
+
+	/** Set the action to take when a packet arrives, or when there is
+	 *  room to send a packet after the substrate was not ready.
+	 *  @param wakeup is run by the substrate's threads, typically to
+	 *  wake a thread waiting for something to do
+	 */
+	public void setWakeup(Runnable wakeup) {
+		sndr.setWakeup(wakeup); rcvr.setWakeup(wakeup);
+	}
+
 	/** Send a packet.
 	 *  @param p is a packet to be sent
 	 */
@@ -0,0 +1,90 @@
+import java.net.*;
+import java.util.*;
+
+/** Test program for Rdt.
+ *
+ *  usage: TestRdt wSize timeout discProb count [sr] [reno|vegas]
+ *		   [stall=secs] [port=n]
+ *
+ *  Runs two Rdt objects in one process, each with a Substrate of its
+ *  own, over the loopback interface. One sends count messages to the
+ *  other, which checks that every message arrives once and in order,
+ *  and the program reports the time taken and the final timeout and
+ *  window of the sender. It exits with status 1 if a message is lost,
+ *  duplicated or out of order.
+ *
+ *  wSize	is the window size of both Rdt objects
+ *  timeout	is the initial retransmission timeout in seconds
+ *  discProb	is the probability that each Substrate discards a packet
+ *		it is asked to send, in either direction
+ *  count	is the number of messages to send
+ *  sr		selects selective repeat; go-back-N is used otherwise
+ *  reno|vegas	selects LOSS_CC or DELAY_CC; the default is NO_CC
+ *  stall=secs	makes the receiving application stop reading for secs
+ *		seconds halfway through, so that its Rdt has to hold
+ *		back packets while its delivery queue is full
+ *  port=n	gives the first of the two ports used (default 31301)
+ */
+public class TestRdt {
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.out.println("usage: TestRdt wSize timeout discProb "
+				+ "count [sr] [reno|vegas] [stall=secs] [port=n]");
+			System.exit(1);
+		}
+		int wSize = Integer.parseInt(args[0]);
+		double timeout = Double.parseDouble(args[1]);
+		double discProb = Double.parseDouble(args[2]);
+		int count = Integer.parseInt(args[3]);
+
+		boolean selRepeat = false; int cc = Rdt.NO_CC;
+		double stall = 0; int port = 31301;
+		for (int i = 4; i < args.length; i++) {
+			if (args[i].equals("sr")) selRepeat = true;
+			else if (args[i].equals("reno")) cc = Rdt.LOSS_CC;
+			else if (args[i].equals("vegas")) cc = Rdt.DELAY_CC;
+			else if (args[i].startsWith("stall="))
+				stall = Double.parseDouble(args[i].substring(6));
+			else if (args[i].startsWith("port="))
+				port = Integer.parseInt(args[i].substring(5));
+		}
+
+		InetAddress lo = InetAddress.getByName("127.0.0.1");
+		Substrate subA = new Substrate(lo, port,
+			new InetSocketAddress(lo, port + 1), discProb, false);
+		Substrate subB = new Substrate(lo, port + 1,
+			new InetSocketAddress(lo, port), discProb, false);
+		Rdt a = new Rdt(wSize, timeout, subA, selRepeat, cc);
+		Rdt b = new Rdt(wSize, timeout, subB, selRepeat, cc);
+		subA.start(); subB.start(); a.start(); b.start();
+
+		long t0 = System.nanoTime();
+		Thread src = new Thread(() -> {
+			for (int i = 0; i < count; i++) a.send("testing " + i);
+		});
+		src.start();
+
+		// check the messages as they arrive; a wait of 10 s for the
+		// next one means that it was lost
+		for (int i = 0; i < count; i++) {
+			if (stall > 0 && i == count / 2)
+				Thread.sleep((long) (stall * 1000));
+			String s = b.receive(10000000000L);
+			if (s == null) {
+				fail("message " + i + " never arrived");
+			} else if (!s.equals("testing " + i)) {
+				fail("got \"" + s + "\" expecting message " + i);
+			}
+		}
+		double secs = (System.nanoTime() - t0) / 1e9;
+		System.out.printf("%d messages in order in %.2f s, "
+			+ "srtt %.6f rto %.6f cwnd %d%n",
+			count, secs, a.srtt(), a.rto(), a.cwnd());
+		System.exit(0);
+	}
+
+	private static void fail(String msg) {
+		System.out.println("TestRdt: FAILED: " + msg);
+		System.exit(1);
+	}
+}
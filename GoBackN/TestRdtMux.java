@@ -0,0 +1,185 @@
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Test program for RdtMux.
+ *
+ *  usage: TestRdtMux conns count discProb [gbn] [none|vegas] [both]
+ *		      [idle=secs] [port=n]
+ *
+ *  Runs two RdtMux objects in one process, each with a Substrate of
+ *  its own, over the loopback interface. One opens conns connections
+ *  to the other and sends count messages on each; the other accepts
+ *  the connections and echoes every message on the connection it came
+ *  from. The first checks that every echo arrives once and in order.
+ *  With both, each side opens conns connections to the other at the
+ *  same time, before any packet is sent, so that the two sides pick
+ *  the same connection ids, and each echoes the messages of the
+ *  connections the other opened.
+ *  Half of the messages are sent, then both sides stay idle for a
+ *  while, then the rest are sent. At the end both sides close their
+ *  connections, and the program checks that all of them are removed
+ *  and that no packet arriving after a close was taken as a new
+ *  connection. It reports the time taken and the number of threads,
+ *  and exits with status 1 on any failure.
+ *
+ *  conns	is the number of connections
+ *  count	is the number of messages sent on each connection
+ *  discProb	is the probability that each Substrate discards a packet
+ *		it is asked to send, in either direction
+ *  gbn		selects go-back-N; selective repeat is used otherwise
+ *  none|vegas	selects NO_CC or DELAY_CC; the default is LOSS_CC
+ *  both		makes both sides open connections
+ *  idle=secs	is the time both sides stay idle halfway through
+ *		(default 6 s, longer than a Substrate's idle limit)
+ *  port=n	gives the first of the two ports used (default 31401)
+ */
+public class TestRdtMux {
+	// window size and initial timeout of every connection
+	private static final int WSIZE = 64;
+	private static final double TIMEOUT = 0.2;
+	// longest time to wait for any step of the test, in ns
+	private static final long LIMIT = 60000000000L;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.out.println("usage: TestRdtMux conns count discProb "
+				+ "[gbn] [none|vegas] [both] [idle=secs] [port=n]");
+			System.exit(1);
+		}
+		int conns = Integer.parseInt(args[0]);
+		int count = Integer.parseInt(args[1]);
+		double discProb = Double.parseDouble(args[2]);
+
+		boolean selRepeat = true; int cc = Rdt.LOSS_CC; boolean both = false;
+		double idle = 6; int port = 31401;
+		for (int i = 3; i < args.length; i++) {
+			if (args[i].equals("gbn")) selRepeat = false;
+			else if (args[i].equals("none")) cc = Rdt.NO_CC;
+			else if (args[i].equals("vegas")) cc = Rdt.DELAY_CC;
+			else if (args[i].equals("both")) both = true;
+			else if (args[i].startsWith("idle="))
+				idle = Double.parseDouble(args[i].substring(5));
+			else if (args[i].startsWith("port="))
+				port = Integer.parseInt(args[i].substring(5));
+		}
+
+		InetAddress lo = InetAddress.getByName("127.0.0.1");
+		Substrate subA = new Substrate(lo, port, discProb, false);
+		Substrate subB = new Substrate(lo, port + 1, discProb, false);
+		RdtMux a = new RdtMux(subA, WSIZE, TIMEOUT, selRepeat, cc);
+		RdtMux b = new RdtMux(subB, WSIZE, TIMEOUT, selRepeat, cc);
+		subA.start(); subB.start(); a.start(); b.start();
+
+		// accept and echo connections on both sides; any accepted
+		// beyond those opened by the other side are packets of closed
+		// connections taken for new ones
+		ConcurrentLinkedQueue<Rdt> accA = new ConcurrentLinkedQueue<Rdt>();
+		ConcurrentLinkedQueue<Rdt> accB = new ConcurrentLinkedQueue<Rdt>();
+		daemon(() -> { while (true) accA.add(a.accept()); });
+		daemon(() -> { while (true) accB.add(b.accept()); });
+		daemon(() -> echo(a, accA, count));
+		daemon(() -> echo(b, accB, count));
+
+		long t0 = System.nanoTime();
+		InetSocketAddress peerA = new InetSocketAddress(lo, port);
+		InetSocketAddress peerB = new InetSocketAddress(lo, port + 1);
+		int opened = (both ? 2 * conns : conns);
+		Rdt[] r = new Rdt[opened];
+		for (int i = 0; i < conns; i++) {
+			r[i] = a.connect(peerB);
+			if (both) r[conns + i] = b.connect(peerA);
+		}
+		int[] sent = new int[opened], rcvd = new int[opened];
+		exchange(r, sent, rcvd, count / 2);
+		Thread.sleep((long) (idle * 1000));
+		exchange(r, sent, rcvd, count);
+		for (int i = 0; i < conns; i++) {
+			a.close(r[i]);
+			if (both) b.close(r[conns + i]);
+		}
+
+		// both sides close all their connections
+		long deadline = System.nanoTime() + LIMIT;
+		while (a.connections() > 0 || b.connections() > 0) {
+			if (System.nanoTime() > deadline)
+				fail(a.connections() + " and " + b.connections()
+				     + " connections never closed");
+			Thread.sleep(10);
+		}
+		double secs = (System.nanoTime() - t0) / 1e9 - idle;
+		if (accB.size() < conns || accA.size() < (both ? conns : 0))
+			fail("accepted " + accA.size() + " and " + accB.size()
+			     + " connections, not " + conns);
+		int phantoms = accA.size() + accB.size() - (opened - conns) - conns;
+		if (phantoms > 0)
+			fail(phantoms + " packets of closed connections "
+			     + "opened new ones");
+		System.out.printf("%d connections x %d messages echoed in %.2f s "
+			+ "(not counting %.1f s idle), threads %d%n",
+			opened, count, secs, idle, Thread.activeCount());
+		a.stop(); b.stop();
+		System.exit(0);
+	}
+
+	/** Send messages on every connection until each has sent upto,
+	 *  checking the echoes, and wait for the echoes of all of them.
+	 */
+	private static void exchange(Rdt[] r, int[] sent, int[] rcvd, int upto)
+			throws Exception {
+		long deadline = System.nanoTime() + LIMIT;
+		boolean done = false;
+		while (!done) {
+			done = true; boolean any = false;
+			for (int i = 0; i < r.length; i++) {
+				if (sent[i] < upto && r[i].ready()) {
+					r[i].send("testing " + sent[i]++); any = true;
+				}
+				while (r[i].incoming()) {
+					String s = r[i].receive();
+					if (!s.equals("testing " + rcvd[i]))
+						fail("connection " + i + " got \"" + s
+						     + "\" expecting message " + rcvd[i]);
+					rcvd[i]++; any = true;
+				}
+				if (rcvd[i] < upto) done = false;
+			}
+			if (System.nanoTime() > deadline)
+				fail("echoes stopped arriving");
+			if (!any) Thread.sleep(1);
+		}
+	}
+
+	/** Echo the messages of the accepted connections, and close each
+	 *  once it has echoed count messages.
+	 */
+	private static void echo(RdtMux b, ConcurrentLinkedQueue<Rdt> accepted,
+				 int count) {
+		HashMap<Rdt, Integer> echoed = new HashMap<Rdt, Integer>();
+		while (true) {
+			boolean any = false;
+			for (Rdt r : accepted) {
+				int n = echoed.getOrDefault(r, 0);
+				if (n == count) continue;
+				while (r.incoming() && r.ready()) {
+					r.send(r.receive()); n++; any = true;
+				}
+				echoed.put(r, n);
+				if (n == count) b.close(r);
+			}
+			if (!any) {
+				try { Thread.sleep(1); } catch(InterruptedException e) { }
+			}
+		}
+	}
+
+	private static void daemon(Runnable r) {
+		Thread t = new Thread(r); t.setDaemon(true); t.start();
+	}
+
+	private static void fail(String msg) {
+		System.out.println("TestRdtMux: FAILED: " + msg);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,53 @@
+package mapserver;
+
+/** Cost of serializing the reply to "get all" at various store sizes,
+ *  and of a range scan of 100 pairs through a sorted index instead.
+ *
+ *  Each getAll invocation produces the whole reply, chunk by chunk, as a
+ *  server does while the client drains it, and returns its length.
+ */
+
+import java.nio.charset.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetAllBenchmark {
+	@Param({ "10", "1000", "100000" })
+	public int size;
+
+	private MapProtocol proto;
+	private byte[] request;
+	private byte[] rangeRequest;
+
+	@Setup
+	public void setup() {
+		MapStore store = new IndexedMapStore(new StripedMapStore());
+		for (int i = 0; i < size; i++) store.put("key" + i, "value" + i);
+		proto = new MapProtocol(store, true);
+		request = "get all".getBytes(StandardCharsets.ISO_8859_1);
+		rangeRequest = "range:100:key5:".getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	@Benchmark
+	public long getAll() {
+		proto.process(request, 0, request.length);
+		long len = proto.replyLength();
+		while (proto.more()) {
+			proto.nextChunk();
+			len += proto.replyLength();
+		}
+		return len;
+	}
+
+	@Benchmark
+	public long range100() {
+		proto.process(rangeRequest, 0, rangeRequest.length);
+		return proto.replyLength();
+	}
+}
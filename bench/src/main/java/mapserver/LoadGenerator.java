@@ -0,0 +1,357 @@
+package mapserver;
+
+/** Load generator for the map servers.
+ *
+ *  usage: java -cp target/benchmarks.jar mapserver.LoadGenerator
+ *              udp|tcp addr port [rate=N | clients=N] [secs=N] [warmup=N]
+ *              [keys=N] [dist=zipf|uniform] [theta=T] [gets=F] [vsize=N]
+ *              [window=N] [conns=N]
+ *
+ *  Requests go to a MapServer (udp) through an AsyncMapClient, or to a
+ *  TcpMapServer (tcp) through a MapClientPool of conns connections
+ *  (default 4), with at most window requests outstanding (default 1000
+ *  for udp, MapConnection.WINDOW per connection for tcp). Each request
+ *  is a get with probability gets (default 0.9) and otherwise a put of a
+ *  vsize-byte value (default 100). Keys are "key0" to "key<keys-1>"
+ *  (default 100000), all stored before the run, and are chosen either
+ *  uniformly or from a zipfian distribution with exponent theta (default
+ *  0.99, as in YCSB), under which key0 is the most popular.
+ *
+ *  With rate=N the load is open loop: requests are issued at N per
+ *  second on a fixed schedule, whether or not earlier ones have been
+ *  answered, as independent users would issue them. The latency of a
+ *  request is measured from the time the schedule meant it to be sent,
+ *  so time a request spends held back because the client or server has
+ *  fallen behind is counted. A generator that measures from the actual
+ *  send hides exactly the stalls that matter: while the system is
+ *  stalled it sends nothing, so it records one slow request where users
+ *  would have seen many (coordinated omission). The latency from the
+ *  actual send is also reported, as "service".
+ *
+ *  With clients=N (the default, 16) the load is closed loop: N threads
+ *  each send a request, wait for its reply, and send the next. The raw
+ *  latencies suffer from coordinated omission, so a corrected histogram
+ *  is also reported: as in HdrHistogram, a request that took L, longer
+ *  than the mean latency M, stands for the requests that would have been
+ *  sent during it, and is counted again at L - M, L - 2M and so on.
+ *
+ *  The load runs for warmup seconds (default 5), which are not counted,
+ *  then for secs seconds (default 30). The report gives the throughput,
+ *  the number of failed requests and latency percentiles in microseconds.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+public class LoadGenerator {
+	// nanoseconds before a scheduled send that the sender stops parking
+	private static final long SPIN = 100000;
+
+	/** A server to send requests to. */
+	interface Target {
+		CompletableFuture<String> get(String key);
+		CompletableFuture<String> put(String key, String val);
+		void close() throws IOException;
+	}
+
+	private Target target;
+	private String[] keys;
+	private KeyChooser chooser;
+	private double gets;		// fraction of requests that are gets
+	private String value;		// value stored by puts
+
+	// measurements; latencies are in nanoseconds
+	private Histogram latency;	// from intended or actual send
+	private Histogram service;	// from actual send, in open loop
+	private LongAdder failures;
+
+	LoadGenerator(Target target, int numKeys, KeyChooser chooser,
+		      double gets, int vsize) {
+		this.target = target; this.chooser = chooser; this.gets = gets;
+		keys = new String[numKeys];
+		for (int i = 0; i < numKeys; i++) keys[i] = "key" + i;
+		char[] v = new char[vsize];
+		Arrays.fill(v, 'x');
+		value = new String(v);
+		latency = new Histogram(); service = new Histogram();
+		failures = new LongAdder();
+	}
+
+	/** Store every key, so that gets find a value. */
+	void preload() throws Exception {
+		List<CompletableFuture<String>> futures =
+			new ArrayList<CompletableFuture<String>>(keys.length);
+		for (String key : keys) futures.add(target.put(key, value));
+		for (CompletableFuture<String> f : futures) f.get();
+	}
+
+	/** Issue one request chosen by the mix and the key distribution. */
+	private CompletableFuture<String> issue(SplittableRandom rand) {
+		String key = keys[chooser.next(rand)];
+		if (rand.nextDouble() < gets) return target.get(key);
+		return target.put(key, value);
+	}
+
+	/** Run an open-loop load.
+	 *  @param rate is the number of requests per second
+	 *  @param warmup is the number of seconds before recording starts
+	 *  @param secs is the number of seconds recorded
+	 *  @return the number of requests issued while recording
+	 */
+	long openLoop(double rate, int warmup, int secs) throws Exception {
+		SplittableRandom rand = new SplittableRandom();
+		double period = 1e9 / rate;
+		long start = System.nanoTime();
+		long recordFrom = start + warmup * 1000000000L;
+		long end = recordFrom + secs * 1000000000L;
+		long issued = 0;
+		for (long i = 0; ; i++) {
+			final long intended = start + (long) (i * period);
+			if (intended >= end) break;
+			// wait until the request is due; a request already due,
+			// because the client held up earlier ones, goes at once.
+			// Parking overshoots by tens of microseconds, which would
+			// count as latency, so the last SPIN ns are spent yielding,
+			// which leaves the processor to a server on the same host.
+			long now = System.nanoTime();
+			if (intended - now > SPIN) LockSupport.parkNanos(intended - now - SPIN);
+			while ((now = System.nanoTime()) - intended < 0) Thread.yield();
+			final boolean counted = (intended >= recordFrom);
+			if (counted) issued++;
+			final long sent = now;
+			issue(rand).whenComplete((reply, e) -> {
+				if (!counted) return;
+				long done = System.nanoTime();
+				if (e != null) failures.increment();
+				else {
+					latency.record(done - intended);
+					service.record(done - sent);
+				}
+			});
+		}
+		return issued;
+	}
+
+	/** Run a closed-loop load.
+	 *  @param clients is the number of client threads
+	 *  @param warmup is the number of seconds before recording starts
+	 *  @param secs is the number of seconds recorded
+	 *  @return the number of requests issued while recording
+	 */
+	long closedLoop(int clients, int warmup, int secs) throws Exception {
+		final long start = System.nanoTime();
+		final long recordFrom = start + warmup * 1000000000L;
+		final long end = recordFrom + secs * 1000000000L;
+		final LongAdder issued = new LongAdder();
+		Thread[] threads = new Thread[clients];
+		for (int t = 0; t < clients; t++) {
+			threads[t] = new Thread(() -> {
+				SplittableRandom rand = new SplittableRandom();
+				long t0;
+				while ((t0 = System.nanoTime()) < end) {
+					boolean counted = (t0 >= recordFrom);
+					if (counted) issued.increment();
+					try {
+						issue(rand).get();
+						if (counted) latency.record(System.nanoTime() - t0);
+					} catch(Exception e) {
+						if (counted) failures.increment();
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) t.join();
+		return issued.sum();
+	}
+
+	/** Chooses the index of the key for each request. */
+	interface KeyChooser {
+		int next(SplittableRandom rand);
+	}
+
+	/** Uniformly distributed key indexes. */
+	static KeyChooser uniform(final int n) {
+		return rand -> rand.nextInt(n);
+	}
+
+	/** Zipf-distributed key indexes: index i is chosen with probability
+	 *  proportional to 1/(i+1)^theta. This is the method of Gray et al.,
+	 *  "Quickly Generating Billion-Record Synthetic Databases", as used
+	 *  by YCSB; it takes O(n) time to set up and O(1) per choice. theta
+	 *  must be less than 1.
+	 */
+	static KeyChooser zipf(final int n, final double theta) {
+		double zetan = 0;
+		for (int i = 1; i <= n; i++) zetan += 1 / Math.pow(i, theta);
+		final double zeta = zetan;
+		final double zeta2 = 1 + 1 / Math.pow(2, theta);
+		final double alpha = 1 / (1 - theta);
+		final double eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zeta);
+		return rand -> {
+			double u = rand.nextDouble();
+			double uz = u * zeta;
+			if (uz < 1) return 0;
+			if (uz < zeta2) return 1;
+			int i = (int) (n * Math.pow(eta * u - eta + 1, alpha));
+			return Math.min(i, n - 1);
+		};
+	}
+
+	/** Latency histogram, with MapStats' log-linear buckets. */
+	static class Histogram {
+		AtomicLongArray counts = new AtomicLongArray(MapStats.BUCKETS);
+
+		void record(long nanos) {
+			counts.incrementAndGet(MapStats.bucket(Math.max(nanos, 0)));
+		}
+
+		long total() {
+			long n = 0;
+			for (int i = 0; i < counts.length(); i++) n += counts.get(i);
+			return n;
+		}
+
+		/** Return the mean, taking each value as the top of its bucket. */
+		long mean() {
+			long n = 0; double sum = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				n += counts.get(i);
+				sum += (double) counts.get(i) * MapStats.highest(i);
+			}
+			return (n == 0 ? 0 : (long) (sum / n));
+		}
+
+		long percentile(double q) {
+			long total = total();
+			if (total == 0) return 0;
+			long rank = Math.max(1, (long) Math.ceil(q * total));
+			long seen = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				seen += counts.get(i);
+				if (seen >= rank) return MapStats.highest(i);
+			}
+			return MapStats.highest(counts.length() - 1);
+		}
+
+		/** Return a copy corrected for coordinated omission: each value
+		 *  v above interval is also counted at v - interval, v - 2 *
+		 *  interval and so on down to interval.
+		 */
+		Histogram corrected(long interval) {
+			Histogram h = new Histogram();
+			for (int i = 0; i < counts.length(); i++) {
+				long c = counts.get(i);
+				if (c == 0) continue;
+				h.counts.addAndGet(i, c);
+				if (interval <= 0) continue;
+				for (long v = MapStats.highest(i) - interval; v >= interval; v -= interval)
+					h.counts.addAndGet(MapStats.bucket(v), c);
+			}
+			return h;
+		}
+
+		String summary() {
+			return String.format("p50=%s p90=%s p99=%s p999=%s p9999=%s max=%s",
+					     micros(percentile(0.5)), micros(percentile(0.9)),
+					     micros(percentile(0.99)), micros(percentile(0.999)),
+					     micros(percentile(0.9999)), micros(percentile(1.0)));
+		}
+
+		private static String micros(long nanos) {
+			return String.format("%.1fus", nanos / 1000.0);
+		}
+	}
+
+	/** Return the value of a name=value option, or a default. */
+	static String option(String[] args, String name, String dflt) {
+		for (int i = 3; i < args.length; i++) {
+			if (args[i].startsWith(name + "="))
+				return args[i].substring(name.length() + 1);
+		}
+		return dflt;
+	}
+
+	public static void main(String args[]) throws Exception {
+		if (args.length < 3 || !(args[0].equals("udp") || args[0].equals("tcp"))) {
+			System.out.println("usage: LoadGenerator udp|tcp addr port "
+					   + "[rate=N | clients=N] [secs=N] [warmup=N] "
+					   + "[keys=N] [dist=zipf|uniform] [theta=T] "
+					   + "[gets=F] [vsize=N] [window=N] [conns=N]");
+			System.exit(1);
+		}
+		String host = args[1];
+		int port = Integer.parseInt(args[2]);
+		String rate = option(args, "rate", null);
+		int clients = Integer.parseInt(option(args, "clients", "16"));
+		int secs = Integer.parseInt(option(args, "secs", "30"));
+		int warmup = Integer.parseInt(option(args, "warmup", "5"));
+		int numKeys = Integer.parseInt(option(args, "keys", "100000"));
+		double theta = Double.parseDouble(option(args, "theta", "0.99"));
+		double gets = Double.parseDouble(option(args, "gets", "0.9"));
+		int vsize = Integer.parseInt(option(args, "vsize", "100"));
+		String dist = option(args, "dist", "zipf");
+
+		Target target;
+		if (args[0].equals("udp")) {
+			int window = Integer.parseInt(option(args, "window",
+					"" + AsyncMapClient.WINDOW));
+			final AsyncMapClient client = new AsyncMapClient(host, port, window,
+					AsyncMapClient.TIMEOUT, AsyncMapClient.RETRIES);
+			target = new Target() {
+				public CompletableFuture<String> get(String key) { return client.get(key); }
+				public CompletableFuture<String> put(String key, String val) {
+					return client.put(key, val);
+				}
+				public void close() throws IOException { client.close(); }
+			};
+		} else {
+			int window = Integer.parseInt(option(args, "window",
+					"" + MapConnection.WINDOW));
+			int conns = Integer.parseInt(option(args, "conns", "" + MapClientPool.SIZE));
+			final MapClientPool pool = new MapClientPool(host, port, conns, window);
+			target = new Target() {
+				public CompletableFuture<String> get(String key) { return pool.get(key); }
+				public CompletableFuture<String> put(String key, String val) {
+					return pool.put(key, val);
+				}
+				public void close() { pool.close(); }
+			};
+		}
+		KeyChooser chooser = (dist.equals("uniform") ? uniform(numKeys)
+				      : zipf(numKeys, theta));
+		LoadGenerator gen = new LoadGenerator(target, numKeys, chooser, gets, vsize);
+		gen.preload();
+
+		long issued;
+		if (rate != null) {
+			issued = gen.openLoop(Double.parseDouble(rate), warmup, secs);
+			// let the last requests complete or time out
+			long deadline = System.currentTimeMillis() + 5000;
+			while (gen.latency.total() + gen.failures.sum() < issued
+			       && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+		} else {
+			issued = gen.closedLoop(clients, warmup, secs);
+		}
+		target.close();
+
+		long done = gen.latency.total();
+		System.out.println((rate != null ? "open loop, rate=" + rate + "/s"
+				    : "closed loop, clients=" + clients)
+				   + ", " + dist + " keys=" + numKeys + ", gets=" + gets);
+		System.out.println("throughput=" + done / secs + "/s requests=" + issued
+				   + " completed=" + done + " failed=" + gen.failures.sum());
+		if (rate != null) {
+			System.out.println("latency   " + gen.latency.summary());
+			System.out.println("service   " + gen.service.summary());
+		} else {
+			System.out.println("raw       " + gen.latency.summary());
+			System.out.println("corrected "
+					   + gen.latency.corrected(gen.latency.mean()).summary());
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package mapserver;
+
+/** Round trip time of single requests to servers on the loopback
+ *  interface.
+ *
+ *  The setup starts a NioEngine, as TcpMapServer runs in nio mode, and
+ *  a UdpWorker, as MapServer runs with workers, on free ports in this
+ *  JVM. Each benchmark thread has its own TCP connection and UDP socket
+ *  and sends a get, waiting for its reply before the next, so the score
+ *  is the latency of a request through the kernel and both programs.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+	/** The servers, shared by all benchmark threads. */
+	@State(Scope.Benchmark)
+	public static class Servers {
+		int tcpPort, udpPort;
+		DatagramChannel udpChan;
+
+		@Setup
+		public void start() throws Exception {
+			final MapStore pairs = new StripedMapStore();
+			for (int i = 0; i < 1000; i++) pairs.put("key" + i, "value" + i);
+			final MapStats stats = new MapStats();
+
+			ServerSocket probe = new ServerSocket(0);
+			tcpPort = probe.getLocalPort();
+			probe.close();
+			Thread nio = new Thread(() -> {
+				try {
+					new NioEngine(InetAddress.getLoopbackAddress(),
+						      tcpPort, pairs, stats).run();
+				} catch(IOException e) {
+					System.err.println("LoopbackBenchmark: " + e);
+				}
+			});
+			nio.setDaemon(true);
+			nio.start();
+
+			udpChan = DatagramChannel.open();
+			udpChan.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			udpPort = ((InetSocketAddress) udpChan.getLocalAddress()).getPort();
+			new UdpWorker(udpChan, pairs, stats).start();
+		}
+
+		@TearDown
+		public void stop() throws IOException { udpChan.close(); }
+	}
+
+	/** One client connection of each kind per benchmark thread. */
+	@State(Scope.Thread)
+	public static class Client {
+		MapConnection tcp;
+		DatagramSocket udp;
+		DatagramPacket outPkt, inPkt;
+
+		@Setup
+		public void open(Servers servers) throws Exception {
+			// the selector thread may still be binding
+			for (int tries = 0; tcp == null; tries++) {
+				try {
+					tcp = new MapConnection("127.0.0.1", servers.tcpPort);
+				} catch(ConnectException e) {
+					if (tries == 50) throw e;
+					Thread.sleep(100);
+				}
+			}
+			udp = new DatagramSocket();
+			udp.setSoTimeout(1000);
+			byte[] req = "get:key123".getBytes(StandardCharsets.ISO_8859_1);
+			outPkt = new DatagramPacket(req, req.length,
+				InetAddress.getLoopbackAddress(), servers.udpPort);
+			inPkt = new DatagramPacket(new byte[2048], 2048);
+		}
+
+		@TearDown
+		public void close() throws IOException {
+			tcp.close(); udp.close();
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public String tcpGet(Client c) throws IOException {
+		return c.tcp.request("get:key123");
+	}
+
+	@Benchmark
+	@Threads(1)
+	public int udpGet(Client c) throws IOException {
+		c.udp.send(c.outPkt);
+		c.udp.receive(c.inPkt);
+		return c.inPkt.getLength();
+	}
+}
@@ -0,0 +1,89 @@
+package mapserver;
+
+/** Cost of decoding a request, performing it and building the reply.
+ *
+ *  Each benchmark passes one pre-encoded request to a MapProtocol or
+ *  BinaryProtocol object, as the servers do for every request they
+ *  receive, against a store holding PAIRS pairs. Nothing is sent over
+ *  the network.
+ */
+
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+	private static final int PAIRS = 10000;
+
+	private MapProtocol text;
+	private BinaryProtocol binary;
+
+	private byte[] get, getMiss, put, remove, malformed;
+	private byte[] binGet, binPut;
+
+	@Setup
+	public void setup() {
+		MapStore store = new StripedMapStore();
+		for (int i = 0; i < PAIRS; i++) store.put("key" + i, "value" + i);
+		text = new MapProtocol(store, true);
+		binary = new BinaryProtocol(store, false);
+
+		get = bytes("get:key1234");
+		getMiss = bytes("get:nokey");
+		put = bytes("put:key1234:a new value for key1234");
+		remove = bytes("remove:nokey");
+		malformed = bytes("fetch:key1234");
+		binGet = frame(BinaryProtocol.GET, "key1234", "");
+		binPut = frame(BinaryProtocol.PUT, "key1234", "a new value for key1234");
+	}
+
+	@Benchmark
+	public int textGet() { return run(text, get); }
+
+	@Benchmark
+	public int textGetMiss() { return run(text, getMiss); }
+
+	@Benchmark
+	public int textPut() { return run(text, put); }
+
+	@Benchmark
+	public int textRemoveMiss() { return run(text, remove); }
+
+	@Benchmark
+	public int textMalformed() { return run(text, malformed); }
+
+	@Benchmark
+	public int binaryGet() {
+		binary.process(binGet, 0, binGet.length);
+		return binary.replyLength();
+	}
+
+	@Benchmark
+	public int binaryPut() {
+		binary.process(binPut, 0, binPut.length);
+		return binary.replyLength();
+	}
+
+	private static int run(MapProtocol proto, byte[] request) {
+		proto.process(request, 0, request.length);
+		return proto.replyLength();
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static byte[] frame(byte op, String key, String val) {
+		ByteBuffer b = BinaryProtocol.request(null, op, bytes(key), bytes(val));
+		byte[] f = new byte[b.remaining()];
+		b.get(f);
+		return f;
+	}
+}
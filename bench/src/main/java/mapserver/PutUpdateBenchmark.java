@@ -0,0 +1,63 @@
+package mapserver;
+
+/** Cost of the put-update path: storing a new value for a key that is
+ *  already present, which every put of a hot key takes.
+ *
+ *  For each MapStore implementation, update() times one put(). With
+ *  store=legacy, it times instead the containsKey/remove/put sequence
+ *  the servers used to perform on a plain HashMap, as a baseline.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PutUpdateBenchmark {
+	private static final int PAIRS = 10000;
+
+	@Param({ "legacy", "striped", "offheap", "cache" })
+	public String store;
+
+	private MapStore pairs;
+	private HashMap<String, String> map;
+	private String[] keys;
+	private int next;
+
+	@Setup
+	public void setup() {
+		if (store.equals("legacy")) map = new HashMap<String, String>();
+		else if (store.equals("offheap")) pairs = new OffHeapMapStore();
+		else if (store.equals("cache"))
+			pairs = new CacheMapStore(new StripedMapStore(), 0);
+		else pairs = new StripedMapStore();
+		keys = new String[PAIRS];
+		for (int i = 0; i < PAIRS; i++) {
+			keys[i] = "key" + i;
+			if (map != null) map.put(keys[i], "value" + i);
+			else pairs.put(keys[i], "value" + i);
+		}
+	}
+
+	@Benchmark
+	public String update() {
+		String key = keys[next++ % PAIRS];
+		if (map != null) return legacyUpdate(key);
+		return pairs.put(key, "updated value");
+	}
+
+	private String legacyUpdate(String key) {
+		String old = null;
+		if (map.containsKey(key)) {
+			old = map.get(key);
+			map.remove(key);
+		}
+		map.put(key, "updated value");
+		return old;
+	}
+}
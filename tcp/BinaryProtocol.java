@@ -0,0 +1,264 @@
+/** Request parser for the map servers' binary protocol.
+ *
+ *  The text protocol cannot carry keys containing ':' or values
+ *  containing line terminators, and every request has to be searched
+ *  for delimiters before it can be decoded. In the binary protocol each
+ *  request is a frame with a fixed-size header:
+ *
+ *    opcode (1 byte) | key length (4) | value length (4) | key | value
+ *
+ *  and each reply is a frame
+ *
+ *    status (1 byte) | value length (4) | value
+ *
+ *  with lengths in big-endian order, as in MapLog records, so a frame is
+ *  decoded with fixed-offset reads and its key and value may hold any
+ *  bytes at all. The opcodes are 'G' (get), 'P' (put) and 'R' (remove);
+ *  get and remove requests have an empty value. The reply status is
+ *
+ *    'O'  ok; the value is the one found by get, and empty otherwise
+ *    'U'  put replaced an existing value, which is the reply value
+ *    'N'  no match: get or remove of a missing key
+ *    'E'  malformed frame, or an operation the store refuses, such as
+ *         a put on a read-only replica or a change that cannot be
+ *         logged; the value describes the error
+ *
+ *  As in the text protocol, keys and values are stored as ISO-8859-1
+ *  Strings, which hold each byte unchanged.
+ *
+ *  A TCP client switches its connection to the binary protocol by
+ *  sending the line "binary"; the server replies "ok" and reads frames
+ *  from then on. Over UDP, a datagram holding MAGIC followed by one frame
+ *  is a binary request, and is answered by MAGIC and one reply frame.
+ *  No text command starts with MAGIC, so both protocols share the port.
+ *
+ *  A BinaryProtocol object is not thread-safe; each thread or connection
+ *  serving requests uses its own.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+public class BinaryProtocol {
+	private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+
+	/** First byte of a binary UDP request or reply. */
+	public static final byte MAGIC = (byte) 0xB1;
+	/** Length of a request frame header. */
+	public static final int HEADER = 9;
+	/** Length of a reply frame header. */
+	public static final int REPLY_HEADER = 5;
+	/** Largest request frame accepted. */
+	public static final int MAX_FRAME = 1 << 26;
+
+	// opcodes and reply status codes
+	public static final byte GET = 'G';
+	public static final byte PUT = 'P';
+	public static final byte REMOVE = 'R';
+	public static final byte OK = 'O';
+	public static final byte UPDATED = 'U';
+	public static final byte NO_MATCH = 'N';
+	public static final byte ERROR = 'E';
+
+	private static final byte[] SWITCH = bytes("binary");
+	private static final byte[] BAD_FRAME = bytes("malformed frame");
+
+	private MapStore pairs;		// stored pairs
+	private boolean magic;		// replies start with MAGIC
+	private MapStats stats;		// request statistics, or null
+
+	private byte[] reply;		// reply to the last request
+	private int replyLen;		// number of valid bytes in reply
+	private ByteBuffer replyBuf;	// wraps reply
+
+	/** Initialize a new BinaryProtocol object.
+	 *  @param pairs is the store that requests operate on
+	 *  @param magic is true if each reply is to start with MAGIC, as
+	 *  replies to UDP requests do
+	 */
+	BinaryProtocol(MapStore pairs, boolean magic) {
+		this(pairs, magic, null);
+	}
+
+	/** Initialize a new BinaryProtocol object.
+	 *  @param pairs is the store that requests operate on
+	 *  @param magic is true if each reply is to start with MAGIC, as
+	 *  replies to UDP requests do
+	 *  @param stats is the object to record requests in, or null
+	 */
+	BinaryProtocol(MapStore pairs, boolean magic, MapStats stats) {
+		this.pairs = pairs; this.magic = magic; this.stats = stats;
+		reply = new byte[4096]; replyLen = 0;
+		replyBuf = ByteBuffer.wrap(reply);
+	}
+
+	/** Test if a text request line asks to switch to the binary protocol.
+	 *  @param buf is a byte array containing the request
+	 *  @param off is the offset of the first byte of the request
+	 *  @param len is the length of the request, without any terminator
+	 */
+	public static boolean isSwitch(byte[] buf, int off, int len) {
+		if (len != SWITCH.length) return false;
+		for (int i = 0; i < len; i++)
+			if (buf[off + i] != SWITCH[i]) return false;
+		return true;
+	}
+
+	/** Find the length of a request frame from its header.
+	 *  @param buf is a byte array holding at least HEADER bytes of the
+	 *  frame
+	 *  @param off is the offset of the frame
+	 *  @return the length of the whole frame, or -1 if the header is not
+	 *  that of a valid frame
+	 */
+	public static int frameLength(byte[] buf, int off) {
+		byte op = buf[off];
+		int klen = getInt(buf, off + 1), vlen = getInt(buf, off + 5);
+		if ((op != GET && op != PUT && op != REMOVE) || klen < 0 || vlen < 0
+		    || (long) klen + vlen > MAX_FRAME - HEADER)
+			return -1;
+		return HEADER + klen + vlen;
+	}
+
+	/** Encode a request frame.
+	 *  @param b is a buffer to encode into, if it is large enough
+	 *  @param op is the opcode
+	 *  @param key is the key
+	 *  @param val is the value; empty for get and remove
+	 *  @return the buffer holding the frame, ready to be read
+	 */
+	public static ByteBuffer request(ByteBuffer b, byte op, byte[] key, byte[] val) {
+		int len = HEADER + key.length + val.length;
+		if (b == null || b.capacity() < len) b = ByteBuffer.allocate(Math.max(len, 4096));
+		b.clear();
+		b.put(op).putInt(key.length).putInt(val.length).put(key).put(val);
+		b.flip();
+		return b;
+	}
+
+	/** Process one request frame and leave its reply in the reply buffer.
+	 *  @param buf is a byte array containing the frame
+	 *  @param off is the offset of the first byte of the frame
+	 *  @param len is the number of bytes of the frame received, which
+	 *  must be its exact length
+	 */
+	public void process(byte[] buf, int off, int len) {
+		long t0 = (stats != null ? System.nanoTime() : 0);
+		replyLen = 0;
+		if (magic) append(MAGIC);
+		if (len < HEADER || frameLength(buf, off) != len) {
+			status(ERROR, BAD_FRAME.length); append(BAD_FRAME, 0, BAD_FRAME.length);
+			if (stats != null) stats.error();
+			return;
+		}
+		int klen = getInt(buf, off + 1);
+		String key = new String(buf, off + HEADER, klen, CHARSET);
+		int cmd;
+		try {
+			cmd = perform(buf, off, len, klen, key);
+		} catch(UnsupportedOperationException | UncheckedIOException e) {
+			replyLen = (magic ? 1 : 0);
+			String msg = String.valueOf(e.getMessage());
+			status(ERROR, msg.length()); append(msg);
+			if (stats != null) stats.error();
+			return;
+		}
+		if (stats != null) stats.record(cmd, System.nanoTime() - t0);
+	}
+
+	/** Perform the operation of a well-formed frame and build its reply.
+	 *  @return the MapStats number of the command
+	 */
+	private int perform(byte[] buf, int off, int len, int klen, String key) {
+		String old;
+		int cmd;
+		switch (buf[off]) {
+		case GET:
+			old = pairs.get(key);
+			if (old == null) status(NO_MATCH, 0);
+			else { status(OK, old.length()); append(old); }
+			if (stats != null) stats.lookup(old != null);
+			cmd = MapStats.GET;
+			break;
+		case PUT:
+			String val = new String(buf, off + HEADER + klen,
+						len - HEADER - klen, CHARSET);
+			old = pairs.put(key, val);
+			if (old == null) status(OK, 0);
+			else { status(UPDATED, old.length()); append(old); }
+			cmd = MapStats.PUT;
+			break;
+		default:
+			old = pairs.remove(key);
+			status(old == null ? NO_MATCH : OK, 0);
+			cmd = MapStats.REMOVE;
+		}
+		return cmd;
+	}
+
+	/** Return the array holding the reply to the last request; the
+	 *  reply occupies the first replyLength() bytes. The array is
+	 *  overwritten by the next request.
+	 */
+	public byte[] reply() { return reply; }
+
+	/** Return the length of the reply to the last request. */
+	public int replyLength() { return replyLen; }
+
+	/** Return a buffer over the reply to the last request, positioned
+	 *  at its first byte and limited to its last. The buffer is reused
+	 *  by the next request.
+	 */
+	public ByteBuffer replyBuffer() {
+		replyBuf.limit(replyLen).position(0);
+		return replyBuf;
+	}
+
+	/** Append a reply frame header. */
+	private void status(byte code, int vlen) {
+		ensure(REPLY_HEADER + vlen);
+		reply[replyLen++] = code;
+		putInt(reply, replyLen, vlen); replyLen += 4;
+	}
+
+	/** Make sure the reply buffer has room for n more bytes. */
+	private void ensure(int n) {
+		if (replyLen + n <= reply.length) return;
+		int cap = reply.length;
+		while (cap < replyLen + n) cap *= 2;
+		byte[] nr = new byte[cap];
+		System.arraycopy(reply, 0, nr, 0, replyLen);
+		reply = nr; replyBuf = ByteBuffer.wrap(reply);
+	}
+
+	private void append(byte b) {
+		ensure(1); reply[replyLen++] = b;
+	}
+
+	private void append(byte[] b, int off, int len) {
+		ensure(len);
+		System.arraycopy(b, off, reply, replyLen, len);
+		replyLen += len;
+	}
+
+	private void append(String s) {
+		int n = s.length();
+		ensure(n);
+		for (int i = 0; i < n; i++) reply[replyLen++] = (byte) s.charAt(i);
+	}
+
+	/** Read a big-endian int at buf[off]. */
+	static int getInt(byte[] buf, int off) {
+		return (buf[off] << 24) | ((buf[off + 1] & 0xff) << 16)
+			| ((buf[off + 2] & 0xff) << 8) | (buf[off + 3] & 0xff);
+	}
+
+	/** Write a big-endian int at buf[off]. */
+	static void putInt(byte[] buf, int off, int v) {
+		buf[off] = (byte) (v >>> 24); buf[off + 1] = (byte) (v >>> 16);
+		buf[off + 2] = (byte) (v >>> 8); buf[off + 3] = (byte) v;
+	}
+
+	private static byte[] bytes(String s) { return s.getBytes(CHARSET); }
+}
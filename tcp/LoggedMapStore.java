@@ -0,0 +1,179 @@
+/** MapStore that records every change in a MapLog.
+ *
+ *  A LoggedMapStore wraps another store. Reads go straight to it; each
+ *  change is appended to the log and then made to the store, both
+ *  while holding one of a set of locks picked by the key's hash, so
+ *  the log lists the changes to each key in the order they were made
+ *  and replaying it rebuilds the same contents. Changes to keys with
+ *  different locks are made in parallel; they only meet in the append
+ *  itself, which copies one record to the log file and takes no lock
+ *  of the wrapped store.
+ *
+ *  A change whose append fails is not made, and the change method
+ *  throws UncheckedIOException, which the server answers with an error
+ *  reply. How soon appended records reach the disk depends on the
+ *  log's fsync policy (see MapLog); with FSYNC_EVERYSEC, a background
+ *  thread syncs the log once a second. Another background thread
+ *  compacts the log whenever it has grown to twice its live size.
+ *  A new log starts with the pairs the store already holds, so that a
+ *  log that is not empty always describes all of the pairs.
+ */
+
+import java.io.*;
+import java.util.function.*;
+
+public class LoggedMapStore implements MapStore {
+	private MapStore store;		// store holding the pairs
+	private MapLog log;		// log of changes to store
+	private Object[] locks;		// order changes to a key
+	private int mask;		// locks.length - 1
+
+	/** Open a log, replay it into a store and log further changes,
+	 *  syncing the log about once a second.
+	 *  @param store is the store to wrap; normally empty
+	 *  @param fileName is the name of the log file
+	 *  @param checkSecs is the interval in seconds between checks of
+	 *  whether the log needs compacting
+	 */
+	public LoggedMapStore(MapStore store, String fileName, int checkSecs)
+			throws IOException {
+		this(store, fileName, checkSecs, MapLog.FSYNC_EVERYSEC);
+	}
+
+	/** Open a log, replay it into a store and log further changes.
+	 *  @param store is the store to wrap; normally empty
+	 *  @param fileName is the name of the log file
+	 *  @param checkSecs is the interval in seconds between checks of
+	 *  whether the log needs compacting
+	 *  @param fsync is the log's fsync policy (see MapLog)
+	 */
+	public LoggedMapStore(MapStore store, String fileName, final int checkSecs,
+			      int fsync) throws IOException {
+		this.store = store;
+		this.log = new MapLog(fileName, store, fsync);
+		locks = new Object[64];
+		for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+		mask = locks.length - 1;
+
+		// a new log must also describe the pairs the store already
+		// holds, loaded from a snapshot, so that it alone restores them
+		if (log.size() == 0 && !store.isEmpty()) compact();
+
+		Thread compactor = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(checkSecs * 1000L);
+					if (log.needsCompaction()) compact();
+				} catch(Exception e) {
+					System.err.println("LoggedMapStore: "
+						+ "compaction failed " + e);
+				}
+			}
+		});
+		compactor.setDaemon(true);
+		compactor.start();
+
+		if (fsync != MapLog.FSYNC_EVERYSEC) return;
+		Thread syncer = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(1000);
+					log.sync();
+				} catch(Exception e) {
+					System.err.println("LoggedMapStore: "
+						+ "sync failed " + e);
+				}
+			}
+		});
+		syncer.setDaemon(true);
+		syncer.start();
+	}
+
+	/** Rewrite the log so it only describes the current pairs. Once
+	 *  the log keeps appends aside, every lock is taken in turn, so
+	 *  that the changes appended before are made to the store before
+	 *  it is read.
+	 */
+	public void compact() throws IOException {
+		log.compact(store, () -> {
+			for (Object lock : locks) {
+				synchronized (lock) { }
+			}
+		});
+	}
+
+	/** Close the log. */
+	public void close() throws IOException { log.close(); }
+
+	public String get(String key) { return store.get(key); }
+
+	public String put(String key, String val) {
+		synchronized (lockFor(key)) {
+			logPut(key, val);
+			return store.put(key, val);
+		}
+	}
+
+	public String putIfAbsent(String key, String val) {
+		synchronized (lockFor(key)) {
+			String old = store.get(key);
+			if (old != null) return old;
+			logPut(key, val);
+			return store.putIfAbsent(key, val);
+		}
+	}
+
+	public String replace(String key, String val) {
+		synchronized (lockFor(key)) {
+			if (store.get(key) == null) return null;
+			logPut(key, val);
+			return store.replace(key, val);
+		}
+	}
+
+	public String remove(String key) {
+		synchronized (lockFor(key)) {
+			if (store.get(key) == null) return null;
+			try { log.remove(key); }
+			catch(IOException e) { throw new UncheckedIOException(e); }
+			return store.remove(key);
+		}
+	}
+
+	public int size() { return store.size(); }
+
+	public boolean isEmpty() { return store.isEmpty(); }
+
+	public void forEach(BiConsumer<String, String> action) {
+		store.forEach(action);
+	}
+
+	public long scan(long cursor, int count, BiConsumer<String, String> action) {
+		return store.scan(cursor, count, action);
+	}
+
+	public long forEachPart(long cursor, BiConsumer<String, String> action) {
+		return store.forEachPart(cursor, action);
+	}
+
+	public String range(String from, String to, BiPredicate<String, String> action) {
+		return store.range(from, to, action);
+	}
+
+	public boolean snapshot() { return store.snapshot(); }
+
+	public String status() { return store.status(); }
+
+	private Object lockFor(String key) {
+		int h = key.hashCode();
+		return locks[(h ^ (h >>> 16)) & mask];
+	}
+
+	/** Append a put record; a change that cannot be logged would be
+	 *  lost on restart, so it is not made.
+	 */
+	private void logPut(String key, String val) {
+		try { log.put(key, val); }
+		catch(IOException e) { throw new UncheckedIOException(e); }
+	}
+}
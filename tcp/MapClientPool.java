@@ -0,0 +1,236 @@
+/** Pool of persistent, pipelined connections to a TcpMapServer.
+ *
+ *  A MapClientPool opens a fixed number of connections once and shares
+ *  them among any number of application threads. get(), put(), remove()
+ *  and request() never block on the network: they queue the request on
+ *  one of the connections and return a CompletableFuture that is
+ *  completed with the reply line. get(), put() and remove() choose the
+ *  connection by the key's hash, so operations on one key are performed
+ *  in the order they were issued; request() chooses connections in turn.
+ *
+ *  Each connection has a writer thread, which writes every request
+ *  queued so far and then flushes once, so requests issued close
+ *  together share packets, and a reader thread, which completes the
+ *  futures in the order their requests were written; the server
+ *  answers the requests on a connection in order, as MapConnection
+ *  relies on. At most window requests per connection are queued or
+ *  waiting for replies; beyond that, callers wait. Callbacks attached to
+ *  the futures run on a reader thread, so they should not themselves
+ *  wait on the pool.
+ *
+ *  If a connection fails, its outstanding futures fail with the
+ *  IOException, and a new connection takes its place for later requests.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class MapClientPool {
+	// default number of connections
+	public static final int SIZE = 4;
+
+	private String host;		// server name or address
+	private int port;		// server port number
+	private int window;		// max requests outstanding per connection
+	private PooledConnection[] conns;
+	private AtomicInteger next;	// picks the connection for a request
+	private volatile boolean closed;
+
+	/** Open a pool of SIZE connections, each with up to
+	 *  MapConnection.WINDOW requests outstanding.
+	 *  @param host is the name or address of the server
+	 *  @param port is the server's port number
+	 */
+	public MapClientPool(String host, int port) throws IOException {
+		this(host, port, SIZE, MapConnection.WINDOW);
+	}
+
+	/** Open a pool of connections.
+	 *  @param host is the name or address of the server
+	 *  @param port is the server's port number
+	 *  @param size is the number of connections
+	 *  @param window is the maximum number of requests outstanding on
+	 *  each connection
+	 */
+	public MapClientPool(String host, int port, int size, int window)
+			throws IOException {
+		this.host = host; this.port = port; this.window = window;
+		next = new AtomicInteger();
+		conns = new PooledConnection[size];
+		try {
+			for (int i = 0; i < size; i++)
+				conns[i] = new PooledConnection();
+		} catch(IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/** Get the value of a key.
+	 *  @return a future holding "ok:val" or "no match"
+	 */
+	public CompletableFuture<String> get(String key) {
+		return submit(key.hashCode(), "get:" + key);
+	}
+
+	/** Store a pair.
+	 *  @return a future holding "ok" or "updated:key"
+	 */
+	public CompletableFuture<String> put(String key, String val) {
+		return submit(key.hashCode(), "put:" + key + ":" + val);
+	}
+
+	/** Remove a pair.
+	 *  @return a future holding "ok" or "no match"
+	 */
+	public CompletableFuture<String> remove(String key) {
+		return submit(key.hashCode(), "remove:" + key);
+	}
+
+	/** Queue a request on the next connection in turn.
+	 *  @param command is a request line, such as "get:key"
+	 *  @return a future holding the reply line
+	 */
+	public CompletableFuture<String> request(String command) {
+		return submit(next.getAndIncrement(), command);
+	}
+
+	/** Queue a request on a connection.
+	 *  @param n selects the connection, modulo the pool size
+	 *  @param command is a request line
+	 *  @return a future holding the reply line
+	 */
+	private CompletableFuture<String> submit(int n, String command) {
+		int i = Math.floorMod(n, conns.length);
+		PooledConnection c;
+		try {
+			c = connection(i);
+		} catch(IOException e) {
+			CompletableFuture<String> f = new CompletableFuture<String>();
+			f.completeExceptionally(e);
+			return f;
+		}
+		return c.submit(command);
+	}
+
+	/** Close all connections; outstanding requests fail. */
+	public void close() {
+		closed = true;
+		for (PooledConnection c : conns) {
+			if (c != null) c.fail(new IOException("pool closed"));
+		}
+	}
+
+	/** Return connection i, replacing it first if it has failed. */
+	private synchronized PooledConnection connection(int i) throws IOException {
+		if (closed) throw new IOException("pool closed");
+		if (conns[i].failure != null) conns[i] = new PooledConnection();
+		return conns[i];
+	}
+
+	/** One connection of the pool with its writer and reader threads. */
+	private class PooledConnection {
+		Socket sock;
+		BufferedReader in;
+		BufferedWriter out;
+		Semaphore permits;	// one per request that may be outstanding
+		LinkedBlockingQueue<Request> outbox; // requests not yet written
+		ConcurrentLinkedQueue<CompletableFuture<String>> waiting;
+					// futures of requests written, in order
+		Thread writer, reader;
+		volatile IOException failure;	// why the connection failed
+
+		PooledConnection() throws IOException {
+			sock = new Socket(host, port);
+			sock.setTcpNoDelay(true);
+			in = new BufferedReader(new InputStreamReader(
+					sock.getInputStream(), "ISO-8859-1"), 1 << 16);
+			out = new BufferedWriter(new OutputStreamWriter(
+					sock.getOutputStream(), "ISO-8859-1"), 1 << 16);
+			permits = new Semaphore(window);
+			outbox = new LinkedBlockingQueue<Request>();
+			waiting = new ConcurrentLinkedQueue<CompletableFuture<String>>();
+
+			writer = new Thread(() -> write()); writer.setDaemon(true);
+			reader = new Thread(() -> read()); reader.setDaemon(true);
+			writer.start(); reader.start();
+		}
+
+		/** Queue a request, waiting first if the window is full. */
+		CompletableFuture<String> submit(String command) {
+			Request req = new Request(command);
+			try {
+				permits.acquire();
+			} catch(InterruptedException e) {
+				req.future.completeExceptionally(e);
+				return req.future;
+			}
+			outbox.add(req);
+			// a request queued after a failure would never be written
+			if (failure != null) fail(failure);
+			return req.future;
+		}
+
+		/** Writer thread writes all queued requests, then flushes. */
+		private void write() {
+			try {
+				while (failure == null) {
+					Request req = outbox.take();
+					do {
+						waiting.add(req.future);
+						out.write(req.command); out.newLine();
+					} while ((req = outbox.poll()) != null);
+					out.flush();
+				}
+			} catch(InterruptedException e) {
+				// the connection failed
+			} catch(IOException e) {
+				fail(e);
+			}
+		}
+
+		/** Reader thread completes futures in request order. */
+		private void read() {
+			try {
+				String reply;
+				while ((reply = in.readLine()) != null) {
+					CompletableFuture<String> f = waiting.poll();
+					if (f == null) throw new IOException("unexpected reply");
+					permits.release();
+					f.complete(reply);
+				}
+				fail(new EOFException("server closed connection"));
+			} catch(IOException e) {
+				fail(e);
+			}
+		}
+
+		/** Close the connection and fail all outstanding requests.
+		 *  May be called more than once, by any thread; each call
+		 *  fails the requests outstanding at the time.
+		 */
+		void fail(IOException e) {
+			if (failure == null) failure = e;
+			try { sock.close(); } catch(IOException x) { }
+			writer.interrupt();
+			CompletableFuture<String> f;
+			while ((f = waiting.poll()) != null) {
+				permits.release(); f.completeExceptionally(failure);
+			}
+			Request req;
+			while ((req = outbox.poll()) != null) {
+				permits.release(); req.future.completeExceptionally(failure);
+			}
+		}
+	}
+
+	/** A request waiting to be written. */
+	private static class Request {
+		String command;
+		CompletableFuture<String> future = new CompletableFuture<String>();
+
+		Request(String command) { this.command = command; }
+	}
+}
@@ -0,0 +1,89 @@
+/** Persistent client connection to a TcpMapServer.
+ *
+ *  A MapConnection keeps one TCP connection open for any number of
+ *  requests. Single requests make one round trip each; pipeline() sends
+ *  a whole batch of requests before reading any reply, so the cost of
+ *  a bulk load is bounded by bandwidth rather than by round trip time.
+ *
+ *  The server answers requests in order, one reply line per request,
+ *  so the n-th reply read belongs to the n-th request written.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+public class MapConnection {
+	// default number of requests written before their replies are read
+	public static final int WINDOW = 1000;
+
+	private Socket sock;
+	private BufferedReader in;
+	private BufferedWriter out;
+
+	/** Open a connection to a server.
+	 *  @param host is the name or address of the server
+	 *  @param port is the server's port number
+	 */
+	public MapConnection(String host, int port) throws IOException {
+		sock = new Socket(host, port);
+		sock.setTcpNoDelay(true);
+		in = new BufferedReader(new InputStreamReader(
+				sock.getInputStream(), "ISO-8859-1"), 1 << 16);
+		out = new BufferedWriter(new OutputStreamWriter(
+				sock.getOutputStream(), "ISO-8859-1"), 1 << 16);
+	}
+
+	/** Send one request and wait for its reply.
+	 *  @param command is a request line, such as "get:key"
+	 *  @return the reply line
+	 */
+	public String request(String command) throws IOException {
+		out.write(command); out.newLine(); out.flush();
+		return readReply();
+	}
+
+	/** Send a batch of requests, pipelined, and collect the replies.
+	 *  @param commands is the list of request lines
+	 *  @return the replies, in the same order as the requests
+	 */
+	public List<String> pipeline(List<String> commands) throws IOException {
+		return pipeline(commands, WINDOW);
+	}
+
+	/** Send a batch of requests, pipelined, and collect the replies.
+	 *  Requests are written window at a time with a single flush; the
+	 *  replies to a window are read before the next window is written,
+	 *  so neither side can fill up the other's socket buffers.
+	 *  @param commands is the list of request lines
+	 *  @param window is the maximum number of requests in flight
+	 *  @return the replies, in the same order as the requests
+	 */
+	public List<String> pipeline(List<String> commands, int window)
+			throws IOException {
+		List<String> replies = new ArrayList<String>(commands.size());
+		int i = 0;
+		while (i < commands.size()) {
+			int n = Math.min(window, commands.size() - i);
+			for (int j = i; j < i + n; j++) {
+				out.write(commands.get(j)); out.newLine();
+			}
+			out.flush();
+			for (int j = 0; j < n; j++) replies.add(readReply());
+			i += n;
+		}
+		return replies;
+	}
+
+	/** Close the connection. */
+	public void close() throws IOException { sock.close(); }
+
+	/** Read one reply line.
+	 *  @return the reply, without its terminator
+	 */
+	private String readReply() throws IOException {
+		String reply = in.readLine();
+		if (reply == null) throw new EOFException("server closed connection");
+		return reply;
+	}
+}
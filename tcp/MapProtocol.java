@@ -0,0 +1,608 @@
+/** Request parser for the map servers' text protocol.
+ *
+ *  A MapProtocol object decodes one request at a time directly from
+ *  the bytes it was received in, performs the operation on a MapStore
+ *  and writes the reply into a reply buffer that is reused from one
+ *  request to the next. Command names are matched byte by byte at fixed
+ *  offsets, without splitting the request into Strings, and replies are
+ *  copied into the reply buffer without concatenation. The only objects
+ *  created per request are the key and value Strings the store needs.
+ *
+ *  Keys and values are converted with the ISO-8859-1 charset, which maps
+ *  each byte to one char; payload bytes are therefore stored and echoed
+ *  back unchanged.
+ *
+ *  The reply to "get all" can be far larger than any buffer, so it is
+ *  produced in chunks of a bounded number of pairs: after process(),
+ *  while more() returns true, the caller sends the reply buffer and
+ *  calls nextChunk() to refill it. The pairs are read from the store a
+ *  part at a time, each in one pass (see MapStore.forEachPart()), and
+ *  held until they are sent. Clients that want to page through the
+ *  store explicitly use "scan:cursor[:count]", which returns one batch
+ *  of pairs and the cursor to pass in the next request.
+ *
+ *  Over UDP, where each request costs a datagram, "mget", "mput" and
+ *  "mremove" carry many operations in one request: the command name and
+ *  a colon are followed by one operand per line (a key, or key:val for
+ *  mput). The reply has one line per operation, holding what the single
+ *  command would have replied. If the replies do not all fit in one
+ *  datagram, only a prefix of the operations is performed and answered,
+ *  and the client sends the rest again. A value holding a newline would
+ *  read as several lines, so mget answers it "error:value spans lines",
+ *  and the client fetches it with a plain get.
+ *
+ *  Stores with a sorted index, such as IndexedMapStore, also answer
+ *  "range:limit:from:to" and "prefix:limit:prefix[:from]" with up to
+ *  limit pairs in key order: those with from <= key < to (no upper
+ *  bound if to is empty), or those whose key starts with prefix (from
+ *  from on, if given). The reply starts with "next:" and the key to
+ *  pass as from to continue the scan, empty once the range is covered,
+ *  followed by the pairs, each preceded by "::". With a batch limit,
+ *  as over UDP, the pairs also stop before the reply would exceed it.
+ *
+ *  "snapshot" starts writing a snapshot of the pairs in the background
+ *  and is answered "ok", or "snapshot in progress" if one is already
+ *  being written; it is only accepted by stores that take snapshots,
+ *  such as SnapshotMapStore.
+ *
+ *  "putex:secs:key:val" is a put of a pair that the store removes after
+ *  secs seconds; it is only accepted by stores that support expiry,
+ *  such as CacheMapStore.
+ *
+ *  A store may refuse changes altogether, as a ReplicaMapStore does;
+ *  puts and removes are then answered as unrecognizable input. A change
+ *  that a LoggedMapStore cannot append to its log is not made, and is
+ *  answered "error:change not logged"; in mput and mremove, this is the
+ *  reply to the operation that failed, and the rest are not performed.
+ *
+ *  When given a MapStats object, a MapProtocol object records each
+ *  request in it, and answers "stats" with its summary.
+ *
+ *  A client with many requests outstanding at once can match replies to
+ *  requests by prefixing a request with "tag:id:", where id is a decimal
+ *  number; the reply is then prefixed with the same "tag:id:".
+ *
+ *  A MapProtocol object is not thread-safe; each thread or connection
+ *  serving requests uses its own.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+public class MapProtocol {
+	private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+
+	// command names and reply fragments
+	private static final byte[] GET = bytes("get");
+	private static final byte[] GET_ALL = bytes("get all");
+	private static final byte[] PUT = bytes("put");
+	private static final byte[] PUTEX = bytes("putex");
+	private static final byte[] REMOVE = bytes("remove");
+	private static final byte[] SCAN = bytes("scan");
+	private static final byte[] MGET = bytes("mget");
+	private static final byte[] MPUT = bytes("mput");
+	private static final byte[] MREMOVE = bytes("mremove");
+	private static final byte[] TAG = bytes("tag");
+	private static final byte[] STATS = bytes("stats");
+	private static final byte[] RANGE = bytes("range");
+	private static final byte[] PREFIX = bytes("prefix");
+	private static final byte[] SNAPSHOT = bytes("snapshot");
+	private static final byte[] IN_PROGRESS = bytes("snapshot in progress");
+	private static final byte[] CURSOR = bytes("cursor:");
+	private static final byte[] NEXT = bytes("next:");
+	private static final byte[] OK = bytes("ok");
+	private static final byte[] OK_COLON = bytes("ok:");
+	private static final byte[] UPDATED = bytes("updated:");
+	private static final byte[] NO_MATCH = bytes("no match");
+	private static final byte[] ERROR = bytes("error:unrecognizable input:");
+	private static final byte[] MULTILINE = bytes("error:value spans lines");
+	private static final byte[] NOT_LOGGED = bytes("error:change not logged");
+
+	// number of pairs in one chunk of a "get all" reply, and the
+	// default and maximum number of pairs returned by one scan or range
+	private static final int CHUNK = 512;
+	private static final int SCAN_COUNT = 1000;
+	private static final int MAX_SCAN_COUNT = 100000;
+
+	private MapStore pairs;		// stored pairs
+	private boolean getAllOn;	// accept "get all" and "scan" commands
+	private int batchLimit;		// max reply length for mget/mput/mremove
+					// and errors, or 0 if batches are not accepted
+	private MapStats stats;		// request statistics, or null
+	private int cmd;		// MapStats number of the last request's
+					// command, or -1 if it is not recorded
+	private long streamNanos;	// time spent on a "get all" so far
+
+	private boolean streaming;	// true while a "get all" has more chunks
+	private long cursor;		// store cursor of the next part
+	private ArrayList<String> part;	// keys and values of the pairs of
+					// a "get all" not sent yet, or null
+	private int partAt;		// index in part of the next key
+	private boolean anyPairs;	// some pair was sent for this "get all"
+
+	private int rangeCount;		// pairs in the range reply so far
+	private int rangeMax;		// max pairs in the range reply
+	private int lastPair;		// reply offset of the last pair's "::"
+	private String lastKey;		// key of the last pair in the reply
+
+	private byte[] reply;		// reply to the last request
+	private int replyLen;		// number of valid bytes in reply
+	private ByteBuffer replyBuf;	// wraps reply
+
+	/** Initialize a new MapProtocol object.
+	 *  @param pairs is the store that requests operate on
+	 *  @param getAllOn is true if the "get all" and "scan" commands are
+	 *  accepted; otherwise they are answered as unrecognizable input
+	 */
+	MapProtocol(MapStore pairs, boolean getAllOn) {
+		this(pairs, getAllOn, 0);
+	}
+
+	/** Initialize a new MapProtocol object.
+	 *  @param pairs is the store that requests operate on
+	 *  @param getAllOn is true if the "get all" and "scan" commands are
+	 *  accepted; otherwise they are answered as unrecognizable input
+	 *  @param batchLimit is the maximum length of a reply to "mget",
+	 *  "mput" or "mremove", and of the copy of a malformed request in
+	 *  an error reply, or 0 if these batches are answered as
+	 *  unrecognizable input
+	 */
+	MapProtocol(MapStore pairs, boolean getAllOn, int batchLimit) {
+		this(pairs, getAllOn, batchLimit, null);
+	}
+
+	/** Initialize a new MapProtocol object.
+	 *  @param pairs is the store that requests operate on
+	 *  @param getAllOn is true if the "get all" and "scan" commands are
+	 *  accepted; otherwise they are answered as unrecognizable input
+	 *  @param batchLimit is the maximum length of a reply to "mget",
+	 *  "mput" or "mremove", and of the copy of a malformed request in
+	 *  an error reply, or 0 if these batches are answered as
+	 *  unrecognizable input
+	 *  @param stats is the object to record requests in, or null if
+	 *  they are not recorded and "stats" is unrecognizable input
+	 */
+	MapProtocol(MapStore pairs, boolean getAllOn, int batchLimit, MapStats stats) {
+		this.pairs = pairs; this.getAllOn = getAllOn;
+		this.batchLimit = batchLimit; this.stats = stats;
+		reply = new byte[4096]; replyLen = 0;
+		replyBuf = ByteBuffer.wrap(reply);
+	}
+
+	/** Process one request and leave its reply in the reply buffer.
+	 *  For "get all", the reply buffer only holds the first chunk of
+	 *  the reply; see more().
+	 *  @param buf is a byte array containing the request
+	 *  @param off is the offset of the first byte of the request
+	 *  @param len is the length of the request, without any terminator
+	 */
+	public void process(byte[] buf, int off, int len) {
+		long t0 = (stats != null ? System.nanoTime() : 0);
+		replyLen = 0; streaming = false; cmd = -1; streamNanos = 0;
+		int end = off + len;
+		int colon = indexOf(buf, off, end, (byte) ':');
+
+		// echo a tag ahead of the reply to the tagged request
+		if (colon >= 0 && matches(buf, off, colon, TAG)) {
+			int colon2 = indexOf(buf, colon + 1, end, (byte) ':');
+			if (colon2 < 0 || number(buf, colon + 1, colon2) < 0) {
+				error(buf, off, len); return;
+			}
+			append(buf, off, colon2 + 1 - off);
+			off = colon2 + 1; len = end - off;
+			colon = indexOf(buf, off, end, (byte) ':');
+		}
+
+		int tagLen = replyLen;
+		try {
+			dispatch(buf, off, len, colon);
+		} catch(UnsupportedOperationException e) {
+			// the store cannot perform the command, e.g. putex on a
+			// store without expiry, or any change on a read-only store
+			replyLen = tagLen; streaming = false;
+			error(buf, off, len);
+		} catch(UncheckedIOException e) {
+			// the store could not log the change, and did not make
+			// it; a batch keeps the replies to the operations before
+			if (cmd != MapStats.BATCH) replyLen = tagLen;
+			if (stats != null && cmd != MapStats.BATCH) { stats.error(); cmd = -1; }
+			append(NOT_LOGGED);
+		}
+		if (stats != null) finish(t0);
+	}
+
+	/** Decode the command of a request, perform it and build its reply.
+	 *  @param colon is the index of the first colon in the request, or
+	 *  -1 if there is none
+	 */
+	private void dispatch(byte[] buf, int off, int len, int colon) {
+		int end = off + len;
+		if (colon < 0) {
+			if (getAllOn && matches(buf, off, end, GET_ALL)) {
+				cmd = MapStats.GET_ALL; getAll();
+			} else if (stats != null && matches(buf, off, end, STATS)) {
+				append(stats.summary());
+			} else if (matches(buf, off, end, SNAPSHOT)) {
+				snapshot();
+			} else {
+				error(buf, off, len);
+			}
+		} else if (matches(buf, off, colon, GET)) {
+			cmd = MapStats.GET; get(buf, colon + 1, end);
+		} else if (matches(buf, off, colon, PUT)) {
+			cmd = MapStats.PUT;
+			if (!put(buf, colon + 1, end, 0)) error(buf, off, len);
+		} else if (matches(buf, off, colon, PUTEX)) {
+			cmd = MapStats.PUT; putex(buf, off, colon, end);
+		} else if (matches(buf, off, colon, REMOVE)) {
+			cmd = MapStats.REMOVE; remove(buf, colon + 1, end);
+		} else if (batchLimit > 0 && (matches(buf, off, colon, MGET)
+			   || matches(buf, off, colon, MPUT)
+			   || matches(buf, off, colon, MREMOVE))) {
+			cmd = MapStats.BATCH; batch(buf[off + 1], buf, colon + 1, end);
+		} else if (getAllOn && matches(buf, off, colon, SCAN)) {
+			cmd = MapStats.SCAN; scan(buf, off, colon, end);
+		} else if (matches(buf, off, colon, RANGE)) {
+			cmd = MapStats.RANGE; range(buf, off, colon, end, false);
+		} else if (matches(buf, off, colon, PREFIX)) {
+			cmd = MapStats.RANGE; range(buf, off, colon, end, true);
+		} else {
+			error(buf, off, len);
+		}
+	}
+
+	/** Record the request just served, or for "get all", the time it
+	 *  took so far.
+	 *  @param t0 is the time serving started
+	 */
+	private void finish(long t0) {
+		if (cmd < 0) return;
+		long t = System.nanoTime() - t0;
+		if (cmd == MapStats.GET_ALL) {
+			streamNanos += t;
+			if (!streaming) stats.record(cmd, streamNanos);
+		} else {
+			stats.record(cmd, t);
+		}
+	}
+
+	/** Process one request given as a String.
+	 *  This is a convenience for callers that already read the request
+	 *  as text; it allocates the request bytes and the reply String.
+	 *  @param command is the request, without any terminator
+	 *  @return the reply payload, or its first chunk
+	 */
+	public String process(String command) {
+		byte[] buf = command.getBytes(CHARSET);
+		process(buf, 0, buf.length);
+		return replyString();
+	}
+
+	/** Test if the reply to the last request has more chunks.
+	 *  @return true if nextChunk() must be called to get the rest of
+	 *  the reply
+	 */
+	public boolean more() { return streaming; }
+
+	/** Replace the reply buffer contents with the next chunk of the
+	 *  reply to the last request.
+	 */
+	public void nextChunk() {
+		replyLen = 0;
+		if (!streaming) return;
+		long t0 = (stats != null ? System.nanoTime() : 0);
+		chunk();
+		if (stats != null) finish(t0);
+	}
+
+	/** Append the next chunk of pairs of a "get all" reply, reading
+	 *  the next part of the store when the pairs read are all sent.
+	 */
+	private void chunk() {
+		for (int n = 0; n < CHUNK; n++) {
+			while (partAt == part.size()) {
+				part.clear(); partAt = 0;
+				if (cursor < 0) break;
+				cursor = pairs.forEachPart(cursor, (key, val) -> {
+					part.add(key); part.add(val);
+				});
+				if (cursor == 0) cursor = -1; // no more parts
+			}
+			if (part.isEmpty()) break;
+			if (anyPairs) { append((byte) ':'); append((byte) ':'); }
+			append(part.get(partAt++)); append((byte) ':');
+			append(part.get(partAt++));
+			anyPairs = true;
+		}
+		if (partAt == part.size() && cursor < 0) {
+			streaming = false; part = null;
+			if (!anyPairs) append(NO_MATCH);
+		}
+	}
+
+	/** Return the reply buffer contents as a String. */
+	public String replyString() {
+		return new String(reply, 0, replyLen, CHARSET);
+	}
+
+	/** Return the array holding the reply to the last request; the
+	 *  reply occupies the first replyLength() bytes. The array is
+	 *  overwritten by the next request.
+	 */
+	public byte[] reply() { return reply; }
+
+	/** Return the length of the reply to the last request. */
+	public int replyLength() { return replyLen; }
+
+	/** Return a buffer over the reply to the last request, positioned
+	 *  at its first byte and limited to its last. The buffer is reused
+	 *  by the next request.
+	 */
+	public ByteBuffer replyBuffer() {
+		replyBuf.limit(replyLen).position(0);
+		return replyBuf;
+	}
+
+	/** Build the reply to get. */
+	private void get(byte[] buf, int from, int end) {
+		String val = pairs.get(string(buf, from, end));
+		if (stats != null) stats.lookup(val != null);
+		if (val != null) { append(OK_COLON); append(val); }
+		else append(NO_MATCH);
+	}
+
+	/** Perform a put of key:val in buf[from..end) and build its reply.
+	 *  @param ttlMillis is the time to live of the pair, or 0 if it
+	 *  does not expire
+	 *  @return false if there is no colon separating key and value
+	 */
+	private boolean put(byte[] buf, int from, int end, long ttlMillis) {
+		int colon = indexOf(buf, from, end, (byte) ':');
+		if (colon < 0) return false;
+		String key = string(buf, from, colon);
+		String val = string(buf, colon + 1, end);
+		// if the key was already in the store, the value is updated
+		if ((ttlMillis > 0 ? pairs.put(key, val, ttlMillis)
+				   : pairs.put(key, val)) != null) {
+			append(UPDATED); append(buf, from, colon - from);
+		} else {
+			append(OK);
+		}
+		return true;
+	}
+
+	/** Perform "putex:secs:key:val", a put of a pair that expires after
+	 *  secs seconds, and build its reply, which is that of a put.
+	 */
+	private void putex(byte[] buf, int off, int colon, int end) {
+		int colon2 = indexOf(buf, colon + 1, end, (byte) ':');
+		long secs = (colon2 < 0 ? -1 : number(buf, colon + 1, colon2));
+		if (secs > 0 && put(buf, colon2 + 1, end, secs * 1000)) return;
+		error(buf, off, end - off);
+	}
+
+	/** Start a snapshot and build its reply. */
+	private void snapshot() {
+		append(pairs.snapshot() ? OK : IN_PROGRESS);
+	}
+
+	/** Perform a remove and build its reply. */
+	private void remove(byte[] buf, int from, int end) {
+		if (pairs.remove(string(buf, from, end)) != null) append(OK);
+		else append(NO_MATCH);
+	}
+
+	/** Build the reply to mget, mput or mremove.
+	 *  Operands are processed in order until the reply to the next one
+	 *  might not fit within batchLimit; the reply to the first operand
+	 *  is always included.
+	 *  @param op is the second letter of the command name (g, p or r)
+	 *  @param buf is a byte array containing the request
+	 *  @param from is the offset of the first operand
+	 *  @param end is the offset just past the last operand
+	 */
+	private void batch(byte op, byte[] buf, int from, int end) {
+		int start = from;
+		while (start < end) {
+			int nl = indexOf(buf, start, end, (byte) '\n');
+			int stop = (nl < 0 ? end : nl);
+			int sep = (start == from ? 0 : 1);
+			if (op == 'g') {
+				String val = pairs.get(string(buf, start, stop));
+				if (stats != null) stats.lookup(val != null);
+				boolean lines = (val != null && val.indexOf('\n') >= 0);
+				int need = (lines ? MULTILINE.length
+					    : val != null ? OK_COLON.length + val.length()
+					    : NO_MATCH.length);
+				if (sep > 0 && replyLen + sep + need > batchLimit) return;
+				if (sep > 0) append((byte) '\n');
+				if (lines) append(MULTILINE);
+				else if (val != null) { append(OK_COLON); append(val); }
+				else append(NO_MATCH);
+			} else {
+				// worst case reply: "updated:key" or an error
+				// echoing the operand, or for a remove, an
+				// error that the change was not logged
+				int need = (op == 'p' ? ERROR.length + stop - start
+						      : NOT_LOGGED.length);
+				if (sep > 0 && replyLen + sep + need > batchLimit) return;
+				if (sep > 0) append((byte) '\n');
+				if (op == 'r') remove(buf, start, stop);
+				else if (!put(buf, start, stop, 0)) error(buf, start, stop - start);
+			}
+			start = stop + 1;
+		}
+	}
+
+	/** Start the reply to "get all": all pairs, formatted as key:val
+	 *  and separated by "::", or "no match" if the store is empty.
+	 *  Each pair is read once, straight from the store's entries.
+	 */
+	private void getAll() {
+		streaming = true; cursor = 0; anyPairs = false;
+		part = new ArrayList<String>(); partAt = 0;
+		chunk();
+	}
+
+	/** Build the reply to "scan:cursor[:count]": "cursor:" and the
+	 *  cursor for the next scan (0 when the store has been covered),
+	 *  followed by the batch of pairs, each preceded by "::".
+	 */
+	private void scan(byte[] buf, int off, int colon, int end) {
+		int colon2 = indexOf(buf, colon + 1, end, (byte) ':');
+		long start = number(buf, colon + 1, colon2 < 0 ? end : colon2);
+		long count = (colon2 < 0 ? SCAN_COUNT : number(buf, colon2 + 1, end));
+		if (start < 0 || count <= 0) { error(buf, off, end - off); return; }
+
+		append(CURSOR);
+		int curPos = replyLen;
+		long next = pairs.scan(start, (int) Math.min(count, MAX_SCAN_COUNT), (key, val) -> {
+			append((byte) ':'); append((byte) ':');
+			append(key); append((byte) ':'); append(val);
+		});
+		// insert the next cursor ahead of the pairs
+		insert(curPos, Long.toString(next));
+	}
+
+	/** Build the reply to "range:limit:from:to" or
+	 *  "prefix:limit:prefix[:from]": "next:" and the key to continue
+	 *  from, or nothing if the range is covered, followed by the pairs
+	 *  in key order, each preceded by "::".
+	 *  @param prefix is true for "prefix"
+	 */
+	private void range(byte[] buf, int off, int colon, int end, boolean prefix) {
+		int colon2 = indexOf(buf, colon + 1, end, (byte) ':');
+		long limit = (colon2 < 0 ? -1 : number(buf, colon + 1, colon2));
+		int colon3 = (colon2 < 0 ? -1 : indexOf(buf, colon2 + 1, end, (byte) ':'));
+		if (limit <= 0 || (!prefix && colon3 < 0)) { error(buf, off, end - off); return; }
+
+		String from, to;
+		if (prefix) {
+			String p = string(buf, colon2 + 1, colon3 < 0 ? end : colon3);
+			from = (colon3 < 0 ? p : string(buf, colon3 + 1, end));
+			if (from.compareTo(p) < 0) from = p;
+			to = prefixEnd(p);
+		} else {
+			from = string(buf, colon2 + 1, colon3);
+			to = (colon3 + 1 == end ? null : string(buf, colon3 + 1, end));
+		}
+
+		append(NEXT);
+		int nextPos = replyLen;
+		rangeCount = 0; rangeMax = (int) Math.min(limit, MAX_SCAN_COUNT);
+		String next = pairs.range(from, to, (key, val) -> {
+			if (rangeCount == rangeMax) return false;
+			// the first pair is always sent, as for mget
+			if (rangeCount > 0 && batchLimit > 0 && replyLen + 3
+			    + key.length() + val.length() > batchLimit)
+				return false;
+			lastPair = replyLen; lastKey = key;
+			append((byte) ':'); append((byte) ':');
+			append(key); append((byte) ':'); append(val);
+			rangeCount++;
+			return true;
+		});
+		// make room for the next key by giving back the last pair
+		if (next != null && batchLimit > 0 && rangeCount > 1
+		    && replyLen + next.length() > batchLimit) {
+			replyLen = lastPair; next = lastKey;
+		}
+		if (next != null) insert(nextPos, next);
+	}
+
+	/** Return the least String greater than every String that starts
+	 *  with p, or null if there is none.
+	 */
+	private static String prefixEnd(String p) {
+		for (int i = p.length() - 1; i >= 0; i--) {
+			if (p.charAt(i) < 0xff)
+				return p.substring(0, i) + (char) (p.charAt(i) + 1);
+		}
+		return null;
+	}
+
+	/** Build the reply to a malformed request. */
+	private void error(byte[] buf, int off, int len) {
+		if (stats != null && cmd != MapStats.BATCH) { stats.error(); cmd = -1; }
+		// copy no more of the input than fits in the reply limit
+		if (batchLimit > 0)
+			len = Math.max(0, Math.min(len, batchLimit - replyLen - ERROR.length));
+		append(ERROR); append(buf, off, len);
+	}
+
+	/** Insert a String into the reply at offset pos. */
+	private void insert(int pos, String s) {
+		int n = s.length();
+		ensure(n);
+		System.arraycopy(reply, pos, reply, pos + n, replyLen - pos);
+		for (int i = 0; i < n; i++) reply[pos + i] = (byte) s.charAt(i);
+		replyLen += n;
+	}
+
+	/** Make sure the reply buffer has room for n more bytes. */
+	private void ensure(int n) {
+		if (replyLen + n <= reply.length) return;
+		int cap = reply.length;
+		while (cap < replyLen + n) cap *= 2;
+		byte[] nr = new byte[cap];
+		System.arraycopy(reply, 0, nr, 0, replyLen);
+		reply = nr; replyBuf = ByteBuffer.wrap(reply);
+	}
+
+	private void append(byte b) {
+		ensure(1); reply[replyLen++] = b;
+	}
+
+	private void append(byte[] b) { append(b, 0, b.length); }
+
+	private void append(byte[] b, int off, int len) {
+		ensure(len);
+		System.arraycopy(b, off, reply, replyLen, len);
+		replyLen += len;
+	}
+
+	private void append(String s) {
+		int n = s.length();
+		ensure(n);
+		for (int i = 0; i < n; i++) reply[replyLen++] = (byte) s.charAt(i);
+	}
+
+	/** Find a byte in buf[from..to).
+	 *  @return the index of the first occurrence, or -1 if there is none
+	 */
+	private static int indexOf(byte[] buf, int from, int to, byte b) {
+		for (int i = from; i < to; i++)
+			if (buf[i] == b) return i;
+		return -1;
+	}
+
+	/** Test if buf[from..to) holds exactly the bytes of word. */
+	private static boolean matches(byte[] buf, int from, int to, byte[] word) {
+		if (to - from != word.length) return false;
+		for (int i = 0; i < word.length; i++)
+			if (buf[from + i] != word[i]) return false;
+		return true;
+	}
+
+	/** Parse buf[from..to) as a non-negative decimal number.
+	 *  @return the number, or -1 if it is empty, not a number or too big
+	 */
+	private static long number(byte[] buf, int from, int to) {
+		if (from >= to || to - from > 18) return -1;
+		long n = 0;
+		for (int i = from; i < to; i++) {
+			if (buf[i] < '0' || buf[i] > '9') return -1;
+			n = 10 * n + (buf[i] - '0');
+		}
+		return n;
+	}
+
+	/** Convert buf[from..to) to a String. */
+	private static String string(byte[] buf, int from, int to) {
+		return new String(buf, from, to - from, CHARSET);
+	}
+
+	private static byte[] bytes(String s) { return s.getBytes(CHARSET); }
+}
@@ -0,0 +1,184 @@
+/** Request counters and latency histograms for the map servers.
+ *
+ *  A single MapStats object is shared by every thread serving requests.
+ *  Counters are LongAdders, which spread concurrent increments over
+ *  separate cells, so counting costs threads on different cores no
+ *  contention. Latencies are recorded per command in histograms with
+ *  log-linear buckets, in the manner of HdrHistogram: each power of 2
+ *  is split into SUB buckets, so a recorded value is known to within
+ *  1/SUB of itself whatever its magnitude, and recording is one
+ *  increment of an array element.
+ *
+ *  The latency of a request is the time from the start of its decoding
+ *  to the end of building its reply, which is the time the server
+ *  spends on it; for "get all" it is the total over all its chunks.
+ *  Time spent waiting in socket buffers is not included.
+ */
+
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+public class MapStats {
+	// command numbers, and their names in summaries
+	public static final int GET = 0;
+	public static final int PUT = 1;
+	public static final int REMOVE = 2;
+	public static final int GET_ALL = 3;
+	public static final int SCAN = 4;
+	public static final int BATCH = 5;
+	public static final int RANGE = 6;
+	private static final String[] NAMES =
+		{ "get", "put", "remove", "get all", "scan", "batch", "range" };
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB = 1 << SUB_BITS;	// buckets per power of 2
+	static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+	private long startTime;		// creation time in ms
+	private LongAdder[] counts;	// requests per command
+	private AtomicLongArray[] histograms; // latency buckets per command
+	private LongAdder hits;		// gets that found a value
+	private LongAdder misses;	// gets that found none
+	private LongAdder errors;	// malformed requests
+	private Supplier<String> status; // state of the store, or null
+
+	/** Initialize a new MapStats object with all counts zero. */
+	public MapStats() {
+		startTime = System.currentTimeMillis();
+		counts = new LongAdder[NAMES.length];
+		histograms = new AtomicLongArray[NAMES.length];
+		for (int i = 0; i < NAMES.length; i++) {
+			counts[i] = new LongAdder();
+			histograms[i] = new AtomicLongArray(BUCKETS);
+		}
+		hits = new LongAdder(); misses = new LongAdder();
+		errors = new LongAdder();
+	}
+
+	/** Add the state of a store to the summary.
+	 *  @param status returns the sections to add, as MapStore.status()
+	 *  does
+	 */
+	public void setStatus(Supplier<String> status) { this.status = status; }
+
+	/** Record one request.
+	 *  @param cmd is the command number
+	 *  @param nanos is the time taken to serve it
+	 */
+	public void record(int cmd, long nanos) {
+		counts[cmd].increment();
+		histograms[cmd].incrementAndGet(bucket(Math.max(nanos, 0)));
+	}
+
+	/** Record the outcome of a get.
+	 *  @param hit is true if a value was found
+	 */
+	public void lookup(boolean hit) {
+		if (hit) hits.increment();
+		else misses.increment();
+	}
+
+	/** Record a malformed request. */
+	public void error() { errors.increment(); }
+
+	/** Return the total number of requests recorded. */
+	public long requests() {
+		long n = 0;
+		for (LongAdder c : counts) n += c.sum();
+		return n;
+	}
+
+	/** Return the latency below which a fraction of the requests for a
+	 *  command were served.
+	 *  @param cmd is the command number
+	 *  @param q is the fraction, between 0 and 1
+	 *  @return the latency in nanoseconds, rounded up to the end of its
+	 *  bucket, or 0 if there were no requests
+	 */
+	public long percentile(int cmd, double q) {
+		AtomicLongArray h = histograms[cmd];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) total += h.get(i);
+		if (total == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(q * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += h.get(i);
+			if (seen >= rank) return highest(i);
+		}
+		return highest(BUCKETS - 1);
+	}
+
+	/** Return a one-line summary: uptime, request rate, hits, misses
+	 *  and errors, then for each command used its count and its 50th,
+	 *  99th and 99.9th percentile and maximum latencies, and last the
+	 *  state of the store, if given.
+	 */
+	public String summary() {
+		long secs = Math.max(1, (System.currentTimeMillis() - startTime) / 1000);
+		long n = requests();
+		StringBuilder sb = new StringBuilder();
+		sb.append("uptime=").append(secs).append("s requests=").append(n)
+		  .append(" rate=").append(n / secs).append("/s hits=")
+		  .append(hits.sum()).append(" misses=").append(misses.sum())
+		  .append(" errors=").append(errors.sum());
+		for (int cmd = 0; cmd < NAMES.length; cmd++) {
+			long count = counts[cmd].sum();
+			if (count == 0) continue;
+			sb.append(" | ").append(NAMES[cmd]).append(" n=").append(count)
+			  .append(" p50=").append(micros(percentile(cmd, 0.5)))
+			  .append(" p99=").append(micros(percentile(cmd, 0.99)))
+			  .append(" p999=").append(micros(percentile(cmd, 0.999)))
+			  .append(" max=").append(micros(percentile(cmd, 1.0)));
+		}
+		String s = (status == null ? "" : status.get());
+		if (!s.isEmpty()) sb.append(" | ").append(s);
+		return sb.toString();
+	}
+
+	/** Start a daemon thread that prints the summary periodically,
+	 *  preceded by the request rate over the last interval.
+	 *  @param secs is the interval between summaries in seconds
+	 */
+	public void dumpEvery(final int secs) {
+		Thread dumper = new Thread(() -> {
+			long last = 0;
+			while (true) {
+				try {
+					Thread.sleep(secs * 1000L);
+				} catch(InterruptedException e) {
+					return;
+				}
+				long n = requests();
+				System.out.println("stats: recent=" + (n - last) / secs
+						   + "/s " + summary());
+				last = n;
+			}
+		});
+		dumper.setDaemon(true);
+		dumper.start();
+	}
+
+	/** Find the bucket of a value: values below SUB have a bucket each,
+	 *  larger ones share a bucket with those having the same SUB_BITS
+	 *  bits after the leading 1.
+	 */
+	static int bucket(long v) {
+		if (v < SUB) return (int) v;
+		int exp = 63 - Long.numberOfLeadingZeros(v);
+		int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+		return (exp - SUB_BITS + 1) * SUB + sub;
+	}
+
+	/** Return the largest value in a bucket. */
+	static long highest(int i) {
+		if (i < SUB) return i;
+		int exp = i / SUB + SUB_BITS - 1;
+		long low = (long) (SUB + i % SUB) << (exp - SUB_BITS);
+		return low + (1L << (exp - SUB_BITS)) - 1;
+	}
+
+	private static String micros(long nanos) {
+		return String.format("%.1fus", nanos / 1000.0);
+	}
+}
@@ -0,0 +1,266 @@
+/** Non-blocking engine for the TcpMapServer.
+ *
+ *  This class serves any number of TCP clients from a single thread,
+ *  using a Selector over non-blocking socket channels. Each connection
+ *  has its own input buffer, where partial request lines accumulate
+ *  until a line terminator arrives, and its own output buffer, where
+ *  replies wait until the socket can take them. A slow client therefore
+ *  only delays its own replies, never those of other clients.
+ *
+ *  Requests and replies use the same line-oriented protocol as the
+ *  blocking server; every complete line is parsed in place by the
+ *  connection's MapProtocol object and the reply is followed by the
+ *  platform line separator, exactly as BufferedWriter.newLine() writes it.
+ *  Replies to all the requests found in one read are sent with a
+ *  single write, so pipelined requests are answered in few packets.
+ *  A "get all" reply is produced chunk by chunk as the client drains
+ *  it, so at most about MAX_PENDING bytes of it are buffered at a time.
+ *
+ *  A connection that sends the line "binary" is switched to the binary
+ *  protocol (see BinaryProtocol); its input is then split into frames by
+ *  their length fields rather than searched for line terminators.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+
+public class NioEngine {
+	private static final byte[] NEWLINE =
+		System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] OK =
+		"ok".getBytes(StandardCharsets.US_ASCII);
+
+	// stop reading from a client while this many reply bytes are queued
+	private static final int MAX_PENDING = 1 << 20;
+
+	private InetAddress serverAddr;	// address to bind, null for wildcard
+	private int serverPort;		// port to bind
+	private MapStore pairs;		// stored pairs
+	private MapStats stats;		// request statistics
+
+	/** Per-connection state, attached to the channel's selection key. */
+	private static class Conn {
+		ByteBuffer in = ByteBuffer.allocate(4096);  // unparsed input
+		ByteBuffer out = ByteBuffer.allocate(4096); // unsent replies
+		int start = 0;		// start of the first unprocessed line in in
+		int scan = 0;		// next byte of in to check for a terminator
+		boolean skipLF = false;	// last line ended with '\r'
+		boolean eof = false;	// client has closed its side
+		MapProtocol proto;	// request parser, holding any reply
+					// still being streamed
+		BinaryProtocol bin;	// frame parser once the connection has
+					// switched to the binary protocol
+
+		Conn(MapStore pairs, MapStats stats) {
+			proto = new MapProtocol(pairs, true, 0, stats);
+		}
+	}
+
+	/** Initialize a new NioEngine object.
+	 *  @param serverAddr is the address to bind, or null for the wildcard
+	 *  address
+	 *  @param serverPort is the port number to bind
+	 *  @param pairs is the store holding the pairs
+	 *  @param stats is the object to record requests in
+	 */
+	NioEngine(InetAddress serverAddr, int serverPort,
+		  MapStore pairs, MapStats stats) {
+		this.serverAddr = serverAddr; this.serverPort = serverPort;
+		this.pairs = pairs; this.stats = stats;
+	}
+
+	/** Run the selector loop; never returns unless an IO error occurs
+	 *  on the listening socket.
+	 */
+	public void run() throws IOException {
+		Selector selector = Selector.open();
+		ServerSocketChannel listen = ServerSocketChannel.open();
+		listen.bind(new InetSocketAddress(serverAddr, serverPort));
+		listen.configureBlocking(false);
+		listen.register(selector, SelectionKey.OP_ACCEPT);
+
+		while (true) {
+			selector.select();
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next(); it.remove();
+				try {
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) accept(listen, selector);
+					if (key.isValid() && key.isReadable()) read(key);
+					if (key.isValid() && key.isWritable()) serve(key);
+				} catch(IOException e) {
+					// connection reset or similar; drop this client only
+					close(key);
+				}
+			}
+		}
+	}
+
+	/** Accept all pending connections and register them for reading. */
+	private void accept(ServerSocketChannel listen, Selector selector)
+			throws IOException {
+		SocketChannel chan;
+		while ((chan = listen.accept()) != null) {
+			chan.configureBlocking(false);
+			chan.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			chan.register(selector, SelectionKey.OP_READ, new Conn(pairs, stats));
+		}
+	}
+
+	/** Read from a client, then serve the requests read. */
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel chan = (SocketChannel) key.channel();
+		Conn c = (Conn) key.attachment();
+
+		// make room for more input; a line longer than the buffer
+		// forces it to grow
+		if (!c.in.hasRemaining()) c.in = grow(c.in, c.in.capacity());
+		int n = chan.read(c.in);
+		if (n < 0) c.eof = true;
+
+		serve(key);
+	}
+
+	/** Queue replies for buffered requests, and chunks of a "get all"
+	 *  reply in progress, until the queued output reaches MAX_PENDING
+	 *  or nothing is left to do; then send what the socket takes and
+	 *  set the interest ops for what the connection waits for next.
+	 */
+	private void serve(SelectionKey key) throws IOException {
+		SocketChannel chan = (SocketChannel) key.channel();
+		Conn c = (Conn) key.attachment();
+
+		while (c.out.position() < MAX_PENDING) {
+			if (c.proto.more()) {
+				c.proto.nextChunk(); reply(c);
+			} else if (!(c.bin != null ? nextFrame(c) : nextLine(c))) {
+				break;
+			}
+		}
+		// keep the unprocessed input at the front of the buffer
+		if (c.start > 0) {
+			c.in.flip(); c.in.position(c.start); c.in.compact();
+			c.scan -= c.start; c.start = 0;
+		}
+
+		c.out.flip();
+		chan.write(c.out);
+		c.out.compact();
+
+		// wait for room in the socket while output is pending or there
+		// is more of a reply to produce; wait for input otherwise
+		int pending = c.out.position();
+		boolean busy = pending > 0 || c.proto.more();
+		if (!busy && c.eof) { close(key); return; }
+		int ops = 0;
+		if (busy) ops |= SelectionKey.OP_WRITE;
+		if (!c.eof && pending < MAX_PENDING && !c.proto.more())
+			ops |= SelectionKey.OP_READ;
+		key.interestOps(ops);
+	}
+
+	/** Process the next complete request line in a connection's input
+	 *  buffer and queue its reply.
+	 *  @return false if the buffer holds no complete line
+	 */
+	private boolean nextLine(Conn c) {
+		byte[] buf = c.in.array();
+		int end = c.in.position();
+		for (int i = c.scan; i < end; i++) {
+			byte b = buf[i];
+			if (c.skipLF) {
+				c.skipLF = false;
+				// second half of a "\r\n" terminator
+				if (b == '\n') { c.start = c.scan = i + 1; continue; }
+			}
+			if (b != '\n' && b != '\r') continue;
+			if (BinaryProtocol.isSwitch(buf, c.start, i - c.start)) {
+				c.bin = new BinaryProtocol(pairs, false, stats);
+				send(c, OK, OK.length); send(c, NEWLINE, NEWLINE.length);
+			} else {
+				c.proto.process(buf, c.start, i - c.start);
+				reply(c);
+			}
+			c.skipLF = (b == '\r');
+			c.start = c.scan = i + 1;
+			return true;
+		}
+		c.scan = end;
+		// like readLine(), treat unterminated input at end of stream
+		// as a final line
+		if (c.eof && c.start < end) {
+			c.proto.process(buf, c.start, end - c.start);
+			reply(c);
+			c.start = c.scan = end;
+			return true;
+		}
+		return false;
+	}
+
+	/** Process the next complete frame in the input buffer of a
+	 *  connection using the binary protocol, and queue its reply.
+	 *  A malformed frame is answered with an error, after which the
+	 *  connection is closed, since the next frame cannot be located.
+	 *  @return false if the buffer holds no complete frame
+	 */
+	private boolean nextFrame(Conn c) {
+		byte[] buf = c.in.array();
+		int end = c.in.position();
+		if (c.skipLF && c.start < end) {
+			// second half of a "\r\n" after the "binary" line
+			c.skipLF = false;
+			if (buf[c.start] == '\n') c.start = c.scan = c.start + 1;
+		}
+		if (end - c.start < BinaryProtocol.HEADER) return false;
+		int len = BinaryProtocol.frameLength(buf, c.start);
+		if (len < 0) {
+			c.bin.process(buf, c.start, end - c.start);
+			send(c, c.bin.reply(), c.bin.replyLength());
+			c.start = c.scan = end; c.eof = true;
+			return false;
+		}
+		if (end - c.start < len) return false;
+		c.bin.process(buf, c.start, len);
+		send(c, c.bin.reply(), c.bin.replyLength());
+		c.start = c.scan = c.start + len;
+		return true;
+	}
+
+	/** Append the reply buffer of a connection's parser to its output,
+	 *  followed by a line terminator once the reply is complete.
+	 */
+	private void reply(Conn c) {
+		send(c, c.proto.reply(), c.proto.replyLength());
+		if (!c.proto.more()) send(c, NEWLINE, NEWLINE.length);
+	}
+
+	/** Append bytes to a connection's output. */
+	private void send(Conn c, byte[] b, int len) {
+		if (c.out.remaining() < len) c.out = grow(c.out, len);
+		c.out.put(b, 0, len);
+	}
+
+	/** Close a client connection, ignoring errors. */
+	private void close(SelectionKey key) {
+		key.cancel();
+		try { key.channel().close(); } catch(IOException e) { }
+	}
+
+	/** Return a larger copy of a buffer in write mode.
+	 *  @param b is the buffer to copy
+	 *  @param extra is the minimum number of additional bytes needed
+	 *  @return a new buffer with the same contents and position
+	 */
+	private static ByteBuffer grow(ByteBuffer b, int extra) {
+		int cap = b.capacity();
+		while (cap - b.position() < extra) cap *= 2;
+		ByteBuffer nb = ByteBuffer.allocate(cap);
+		b.flip(); nb.put(b);
+		return nb;
+	}
+}
@@ -0,0 +1,96 @@
+/** Per-request CPU cost of the text and binary map protocols.
+ *
+ *  usage: java ProtocolBenchmark [ numRequests ] [ keyLen ] [ valLen ]
+ *
+ *  Encodes the same mix of numRequests (default 1000000) requests, half
+ *  puts and half gets of keyLen (default 12) and valLen (default 100)
+ *  byte strings, once as newline-terminated text lines and once as
+ *  binary frames, each into one input buffer as a pipelining client
+ *  would send them. It then times how long a server thread takes to
+ *  split the buffer into requests, decode and perform them and build
+ *  the replies, using the CPU time of the thread, not elapsed time.
+ *  Each run is repeated so that the later ones measure compiled code.
+ */
+
+import java.lang.management.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+public class ProtocolBenchmark {
+	private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		int numRequests = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+		int keyLen = (args.length > 1 ? Integer.parseInt(args[1]) : 12);
+		int valLen = (args.length > 2 ? Integer.parseInt(args[2]) : 100);
+
+		// encode the requests both ways; request i is a put of key
+		// i/2 when i is even and a get of it when i is odd
+		ByteBuffer text = ByteBuffer.allocate(numRequests * (keyLen + valLen + 8));
+		ByteBuffer frames = ByteBuffer.allocate(numRequests
+				* (keyLen + valLen + BinaryProtocol.HEADER));
+		ByteBuffer b = null;
+		byte[] empty = new byte[0];
+		for (int i = 0; i < numRequests; i++) {
+			String key = StoreBenchmark.pad("k", i / 2, keyLen);
+			String val = StoreBenchmark.pad("v", i, valLen);
+			if (i % 2 == 0) {
+				text.put(("put:" + key + ":" + val + "\n").getBytes(CHARSET));
+				b = BinaryProtocol.request(b, BinaryProtocol.PUT,
+					key.getBytes(CHARSET), val.getBytes(CHARSET));
+			} else {
+				text.put(("get:" + key + "\n").getBytes(CHARSET));
+				b = BinaryProtocol.request(b, BinaryProtocol.GET,
+					key.getBytes(CHARSET), empty);
+			}
+			frames.put(b);
+		}
+
+		System.out.println(numRequests + " requests, keys of " + keyLen
+				+ " bytes, values of " + valLen + " bytes");
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		for (int r = 1; r <= ROUNDS; r++) {
+			long t0 = bean.getCurrentThreadCpuTime();
+			long n1 = runText(text.array(), text.position());
+			long t1 = bean.getCurrentThreadCpuTime();
+			long n2 = runBinary(frames.array(), frames.position());
+			long t2 = bean.getCurrentThreadCpuTime();
+			System.out.println("round " + r + ": text " + (t1 - t0) / numRequests
+					+ " ns/request, binary " + (t2 - t1) / numRequests
+					+ " ns/request (" + n1 + " and " + n2 + " reply bytes)");
+		}
+	}
+
+	/** Serve a buffer of text requests as NioEngine does.
+	 *  @return the total length of the replies
+	 */
+	static long runText(byte[] buf, int end) {
+		MapProtocol proto = new MapProtocol(new StripedMapStore(), true);
+		long replyBytes = 0;
+		int start = 0;
+		for (int i = 0; i < end; i++) {
+			if (buf[i] != '\n') continue;
+			proto.process(buf, start, i - start);
+			replyBytes += proto.replyLength() + 1;
+			start = i + 1;
+		}
+		return replyBytes;
+	}
+
+	/** Serve a buffer of binary frames as NioEngine does.
+	 *  @return the total length of the replies
+	 */
+	static long runBinary(byte[] buf, int end) {
+		BinaryProtocol proto = new BinaryProtocol(new StripedMapStore(), false);
+		long replyBytes = 0;
+		int start = 0;
+		while (start < end) {
+			int len = BinaryProtocol.frameLength(buf, start);
+			proto.process(buf, start, len);
+			replyBytes += proto.replyLength();
+			start += len;
+		}
+		return replyBytes;
+	}
+}
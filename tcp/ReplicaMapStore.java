@@ -0,0 +1,165 @@
+/** MapStore of a replica server, kept up to date by a primary server.
+ *
+ *  A ReplicaMapStore wraps another store, which holds the pairs, and
+ *  has a thread that connects to a primary's ReplicatedMapStore and
+ *  applies the records it sends to the wrapped store: first the full
+ *  sync, then every change the primary makes. Clients may read the
+ *  pairs; a change requested by a client throws
+ *  UnsupportedOperationException, since it would make the replica
+ *  differ from the primary, so the protocols answer it as an error.
+ *
+ *  The replica lags the primary by the time a change takes to reach it,
+ *  so a client that writes to the primary may not yet read its own
+ *  write from a replica. Until the first full sync completes, the
+ *  replica holds only part of the pairs.
+ *
+ *  If the connection fails, the thread reconnects every RETRY ms and
+ *  syncs again. Pairs present before a sync that the sync does not
+ *  send were removed from the primary meanwhile, and are removed when
+ *  the sync ends.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.function.*;
+
+public class ReplicaMapStore implements MapStore, Runnable {
+	private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+	// milliseconds between attempts to connect to the primary
+	public static final int RETRY = 1000;
+
+	private Thread myThread;	// applies the primary's records
+	private MapStore store;		// store holding the pairs
+	private String host;		// primary's name or address
+	private int port;		// primary's replication port
+	private volatile String state = "connecting"; // of the replication
+	private volatile long syncs;	// full syncs received
+
+	/** Initialize a replica.
+	 *  @param store is the store to hold the pairs
+	 *  @param host is the name or address of the primary
+	 *  @param port is the port number the primary listens on for
+	 *  replicas
+	 */
+	public ReplicaMapStore(MapStore store, String host, int port) {
+		this.store = store; this.host = host; this.port = port;
+	}
+
+	/** Start the thread that follows the primary. */
+	public void start() {
+		myThread = new Thread(this); myThread.setDaemon(true);
+		myThread.start();
+	}
+
+	/** Wait for the thread to quit. */
+	public void join() throws Exception { myThread.join(); }
+
+	/** Follow the primary, reconnecting whenever the connection fails. */
+	public void run() {
+		while (true) {
+			try {
+				follow();
+			} catch(IOException e) {
+				System.err.println("ReplicaMapStore: lost primary "
+						   + host + ":" + port + " " + e);
+				state = "disconnected";
+			} catch(UncheckedIOException e) {
+				// a record could not be logged here; copy the
+				// pairs again once the log works
+				System.err.println("ReplicaMapStore: cannot apply "
+						   + "records " + e);
+				state = "disconnected";
+			}
+			try {
+				Thread.sleep(RETRY);
+			} catch(InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/** Connect to the primary and apply its records until the
+	 *  connection fails.
+	 */
+	private void follow() throws IOException {
+		try (Socket sock = new Socket(host, port)) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					sock.getInputStream(), 1 << 16));
+			// keys not yet sent by the sync
+			state = "syncing";
+			final HashSet<String> stale = new HashSet<String>();
+			store.forEach((key, val) -> stale.add(key));
+			boolean synced = false;
+			byte[] buf = new byte[4096];
+			while (true) {
+				byte type = in.readByte();
+				int klen = in.readInt(), vlen = in.readInt();
+				if ((type != 'P' && type != 'R' && type != 'S')
+				    || klen < 0 || vlen < 0)
+					throw new IOException("bad record from primary");
+				if (buf.length < Math.max(klen, vlen))
+					buf = new byte[Math.max(klen, vlen)];
+				in.readFully(buf, 0, klen);
+				String key = new String(buf, 0, klen, CHARSET);
+				if (type == 'P') {
+					in.readFully(buf, 0, vlen);
+					store.put(key, new String(buf, 0, vlen, CHARSET));
+					if (!synced) stale.remove(key);
+				} else if (type == 'R') {
+					in.skipBytes(vlen);
+					store.remove(key);
+				} else if (!synced) {
+					for (String k : stale) store.remove(k);
+					stale.clear(); synced = true;
+					state = "synced"; syncs++;
+				}
+			}
+		}
+	}
+
+	public String get(String key) { return store.get(key); }
+
+	public String put(String key, String val) { throw readOnly(); }
+
+	public String put(String key, String val, long ttlMillis) { throw readOnly(); }
+
+	public String putIfAbsent(String key, String val) { throw readOnly(); }
+
+	public String replace(String key, String val) { throw readOnly(); }
+
+	public String remove(String key) { throw readOnly(); }
+
+	public int size() { return store.size(); }
+
+	public boolean isEmpty() { return store.isEmpty(); }
+
+	public void forEach(BiConsumer<String, String> action) {
+		store.forEach(action);
+	}
+
+	public long scan(long cursor, int count, BiConsumer<String, String> action) {
+		return store.scan(cursor, count, action);
+	}
+
+	public long forEachPart(long cursor, BiConsumer<String, String> action) {
+		return store.forEachPart(cursor, action);
+	}
+
+	public String range(String from, String to, BiPredicate<String, String> action) {
+		return store.range(from, to, action);
+	}
+
+	public boolean snapshot() { return store.snapshot(); }
+
+	public String status() {
+		String s = store.status();
+		return (s.isEmpty() ? "" : s + " | ") + "replica of=" + host + ":" + port
+		       + " state=" + state + " syncs=" + syncs;
+	}
+
+	private static UnsupportedOperationException readOnly() {
+		return new UnsupportedOperationException("read-only replica");
+	}
+}
@@ -0,0 +1,248 @@
+/** MapStore of a primary server, which streams its changes to replicas.
+ *
+ *  A ReplicatedMapStore wraps another store and listens on a port of its
+ *  own for replica servers (see ReplicaMapStore). Each replica keeps one
+ *  TCP connection, over which the primary sends, as MapLog records:
+ *
+ *    one put record per stored pair (the full sync), then
+ *    a record of type 'S', with empty key and value, then
+ *    a put or remove record for each change, as changes are made.
+ *
+ *  Replication is asynchronous: a change is queued for every connected
+ *  replica and the request is answered without waiting for replicas.
+ *  Each replica has a sender thread, which writes every change queued
+ *  so far and then flushes once, so changes made close together travel
+ *  in one batch. Changes to a key are applied to the store and queued
+ *  under a lock, one of 64 chosen by key hash, so every replica receives
+ *  them in the order they were made.
+ *
+ *  A replica's queue starts before the full sync, so a change made
+ *  during the sync is sent after it, whether or not the sync already
+ *  saw its result. The sync collects the keys first and then reads and
+ *  sends each value, so no lock of the wrapped store is held while
+ *  writing to a replica. If a replica falls MAX_QUEUE changes behind,
+ *  or its connection fails, it is dropped; it reconnects and syncs
+ *  again.
+ *
+ *  Changes that bypass this object are not replicated, so it must be
+ *  below any CacheMapStore, whose evictions and expiries then reach the
+ *  replicas as removes.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+public class ReplicatedMapStore implements MapStore, Runnable {
+	// max changes queued for one replica before it is dropped
+	public static final int MAX_QUEUE = 1 << 20;
+
+	private Thread myThread;	// accepts replica connections
+	private ServerSocket listenSock;
+	private MapStore store;		// store holding the pairs
+	private Object[] locks;		// order changes to a key
+	private int mask;		// locks.length - 1
+	private AtomicLong syncs;	// full syncs sent to replicas
+	private CopyOnWriteArrayList<Replica> replicas;
+
+	/** A change to send to the replicas. */
+	private static class Change {
+		byte type;		// 'P' or 'R'
+		String key, val;	// val is "" for a remove
+
+		Change(byte type, String key, String val) {
+			this.type = type; this.key = key; this.val = val;
+		}
+	}
+
+	/** Initialize a store and listen for replicas.
+	 *  @param store is the store to hold the pairs
+	 *  @param port is the port number replicas connect to
+	 */
+	public ReplicatedMapStore(MapStore store, int port) throws IOException {
+		this.store = store;
+		locks = new Object[64];
+		for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+		mask = locks.length - 1;
+		syncs = new AtomicLong();
+		replicas = new CopyOnWriteArrayList<Replica>();
+		listenSock = new ServerSocket(port);
+	}
+
+	/** Start the thread accepting replica connections. */
+	public void start() {
+		myThread = new Thread(this); myThread.setDaemon(true);
+		myThread.start();
+	}
+
+	/** Wait for the accepting thread to quit. */
+	public void join() throws Exception { myThread.join(); }
+
+	/** Accept replica connections and start a sender for each. */
+	public void run() {
+		while (true) {
+			Socket sock;
+			try {
+				sock = listenSock.accept();
+			} catch(IOException e) {
+				System.err.println("ReplicatedMapStore: accept failed " + e);
+				return;
+			}
+			Replica r = new Replica(sock);
+			replicas.add(r);
+			r.start();
+		}
+	}
+
+	/** Return the number of connected replicas. */
+	public int replicas() { return replicas.size(); }
+
+	public String status() {
+		String s = store.status();
+		return (s.isEmpty() ? "" : s + " | ") + "replicas n=" + replicas.size()
+		       + " syncs=" + syncs.get();
+	}
+
+	public String get(String key) { return store.get(key); }
+
+	public String put(String key, String val) {
+		synchronized (lockFor(key)) {
+			String old = store.put(key, val);
+			publish((byte) 'P', key, val);
+			return old;
+		}
+	}
+
+	public String putIfAbsent(String key, String val) {
+		synchronized (lockFor(key)) {
+			String old = store.putIfAbsent(key, val);
+			if (old == null) publish((byte) 'P', key, val);
+			return old;
+		}
+	}
+
+	public String replace(String key, String val) {
+		synchronized (lockFor(key)) {
+			String old = store.replace(key, val);
+			if (old != null) publish((byte) 'P', key, val);
+			return old;
+		}
+	}
+
+	public String remove(String key) {
+		synchronized (lockFor(key)) {
+			String old = store.remove(key);
+			if (old != null) publish((byte) 'R', key, "");
+			return old;
+		}
+	}
+
+	public int size() { return store.size(); }
+
+	public boolean isEmpty() { return store.isEmpty(); }
+
+	public void forEach(BiConsumer<String, String> action) {
+		store.forEach(action);
+	}
+
+	public long scan(long cursor, int count, BiConsumer<String, String> action) {
+		return store.scan(cursor, count, action);
+	}
+
+	public long forEachPart(long cursor, BiConsumer<String, String> action) {
+		return store.forEachPart(cursor, action);
+	}
+
+	public String range(String from, String to, BiPredicate<String, String> action) {
+		return store.range(from, to, action);
+	}
+
+	public boolean snapshot() { return store.snapshot(); }
+
+	/** Queue a change for every replica; the caller holds the key's lock. */
+	private void publish(byte type, String key, String val) {
+		if (replicas.isEmpty()) return;
+		Change c = new Change(type, key, val);
+		for (Replica r : replicas) {
+			if (!r.queue.offer(c)) r.drop(new IOException("replica too far behind"));
+		}
+	}
+
+	private Object lockFor(String key) {
+		int h = key.hashCode();
+		return locks[(h ^ (h >>> 16)) & mask];
+	}
+
+	/** One replica connection and its sender thread. */
+	private class Replica implements Runnable {
+		Socket sock;
+		LinkedBlockingQueue<Change> queue;	// changes not yet sent
+		Thread sender;
+
+		Replica(Socket sock) {
+			this.sock = sock;
+			queue = new LinkedBlockingQueue<Change>(MAX_QUEUE);
+			sender = new Thread(this); sender.setDaemon(true);
+		}
+
+		void start() { sender.start(); }
+
+		/** Send the full sync, then the queued changes in batches. */
+		public void run() {
+			try {
+				sock.setTcpNoDelay(true);
+				OutputStream out = new BufferedOutputStream(
+						sock.getOutputStream(), 1 << 16);
+				ByteBuffer rec = ByteBuffer.allocate(4096);
+
+				final ArrayList<String> keys = new ArrayList<String>();
+				store.forEach((key, val) -> keys.add(key));
+				for (String key : keys) {
+					String val = store.get(key);
+					if (val == null) continue;	// removed since
+					rec = write(out, rec, (byte) 'P', key, val);
+				}
+				keys.clear(); keys.trimToSize();
+				rec = write(out, rec, (byte) 'S', "", "");
+				out.flush();
+				syncs.incrementAndGet();
+
+				while (true) {
+					Change c = queue.take();
+					do {
+						rec = write(out, rec, c.type, c.key, c.val);
+					} while ((c = queue.poll()) != null);
+					out.flush();
+				}
+			} catch(IOException e) {
+				drop(e);
+			} catch(InterruptedException e) {
+				// dropped
+			}
+		}
+
+		/** Encode one record and write it. */
+		ByteBuffer write(OutputStream out, ByteBuffer rec, byte type,
+				 String key, String val) throws IOException {
+			rec = MapLog.encode(rec, type, key, val);
+			out.write(rec.array(), 0, rec.limit());
+			return rec;
+		}
+
+		/** Close the connection and stop sending; may be called more
+		 *  than once, by any thread.
+		 */
+		void drop(IOException e) {
+			if (!replicas.remove(this)) return;
+			System.err.println("ReplicatedMapStore: dropped replica "
+					   + sock.getRemoteSocketAddress() + " " + e);
+			try { sock.close(); } catch(IOException x) { }
+			sender.interrupt();
+			queue.clear();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/** Heap usage comparison of the MapStore implementations.
+ *
+ *  usage: java StoreBenchmark [ numPairs ] [ keyLen ] [ valLen ]
+ *
+ *  Fills a StripedMapStore and an OffHeapMapStore with the same
+ *  numPairs (default 1000000) pairs of short ASCII strings, and reports
+ *  for each the Java heap retained by the filled store (measured after
+ *  a full GC), the direct memory it holds, and the time taken by the
+ *  puts and by a get of every key. Run with enough heap for the
+ *  on-heap store, e.g. java -Xmx4g StoreBenchmark 10000000.
+ */
+
+public class StoreBenchmark {
+	public static void main(String[] args) throws Exception {
+		int numPairs = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+		int keyLen = (args.length > 1 ? Integer.parseInt(args[1]) : 12);
+		int valLen = (args.length > 2 ? Integer.parseInt(args[2]) : 16);
+
+		System.out.println(numPairs + " pairs, keys of " + keyLen
+				+ " bytes, values of " + valLen + " bytes");
+		run("StripedMapStore", new StripedMapStore(), numPairs, keyLen, valLen);
+		run("OffHeapMapStore", new OffHeapMapStore(), numPairs, keyLen, valLen);
+	}
+
+	/** Fill one store, then measure and report its memory use and speed. */
+	static void run(String name, MapStore store, int numPairs,
+			int keyLen, int valLen) {
+		long heap0 = usedHeap();
+
+		long t0 = System.nanoTime();
+		for (int i = 0; i < numPairs; i++)
+			store.put(pad("k", i, keyLen), pad("v", i, valLen));
+		long t1 = System.nanoTime();
+		for (int i = 0; i < numPairs; i++)
+			if (store.get(pad("k", i, keyLen)) == null)
+				throw new IllegalStateException("missing key " + i);
+		long t2 = System.nanoTime();
+
+		long heap = usedHeap() - heap0;
+		long direct = (store instanceof OffHeapMapStore
+			       ? ((OffHeapMapStore) store).offHeapBytes() : 0);
+		System.out.println(name + ":");
+		System.out.println("  heap     " + heap / (1 << 20) + " MB, "
+				   + heap / numPairs + " bytes/pair");
+		System.out.println("  off-heap " + direct / (1 << 20) + " MB, "
+				   + direct / numPairs + " bytes/pair");
+		System.out.println("  put      " + (t1 - t0) / numPairs + " ns/op");
+		System.out.println("  get      " + (t2 - t1) / numPairs + " ns/op");
+		if (store.size() != numPairs)
+			throw new IllegalStateException("wrong size " + store.size());
+	}
+
+	/** Build a string of exactly len chars from a prefix and a number. */
+	static String pad(String prefix, int i, int len) {
+		StringBuilder sb = new StringBuilder(len).append(prefix).append(i);
+		while (sb.length() < len) sb.append('.');
+		sb.setLength(len);
+		return sb.toString();
+	}
+
+	/** Return the heap in use after a full collection. */
+	static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			try { Thread.sleep(100); } catch(InterruptedException e) { }
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -5,10 +5,15 @@
  * A client that put,get,remove string pairs to the server and receive response
  *
  * To use MapClient.java, type java MapClient serverAddress [port] [cmd] [arg1] [arg2] ...
+ * or java TcpMapClient serverAddress port batchFile
  * 
  * The client will send the command in a TCP packet to the remote server
  * and print the response from the server
  *
+ * If a batchFile is given, every line of the file is a command; the commands
+ * are sent pipelined, without waiting for each reply, and the replies are
+ * printed in the same order
+ *
  * The commands that the client can do:
  * get:key -- get the corresponding value according to the key
  * Print "no match" if key is not found
@@ -19,6 +24,9 @@
  * put:key:val -- add a new pair (key,val) 
  * If the key already exists, update it with the new value
  *
+ * putex:secs:key:val -- like put, but the pair is removed after secs seconds
+ * (only if the server was started with the cache option)
+ *
  * remove:key -- remove the pair (key,val)
  * If the key is not found, print "no match"
  *
@@ -26,6 +34,7 @@
 
 import java.io.*;
 import java.net.*;
+import java.util.*;
 
 public class TcpMapClient {
 	public static void main(String args[]) throws Exception {
@@ -43,6 +52,25 @@ public class TcpMapClient {
 			serverPort = Integer.parseInt(args[1]);
 		}
 
+		//if a batch file is given, send all of its commands pipelined
+		//and print the replies in order
+		if(args.length > 2){
+			List<String> commands = new ArrayList<String>();
+			BufferedReader batch = new BufferedReader(new FileReader(args[2]));
+			String cmd;
+			while((cmd = batch.readLine()) != null){
+				if(cmd.length() != 0) commands.add(cmd);
+			}
+			batch.close();
+
+			MapConnection conn = new MapConnection(args[0], serverPort);
+			for(String reply: conn.pipeline(commands)){
+				System.out.println(reply);
+			}
+			conn.close();
+			return;
+		}
+
 		Socket sock = new Socket(args[0], serverPort);
 
         //create buffers for input and output stream
@@ -4,20 +4,69 @@
  *
  * A server that stores string pairs and waits for TCP requests
  *
- * To use the TcpMapServer, type java MapServer [address] [portNumber]
+ * To use the TcpMapServer, type java MapServer [address] [portNumber] [nio|virtual]
+ *                                                [store=offheap] [log=file] [cache=MB]
+ *                                                [index=sorted] [snapshot=file]
+ *                                                [replicas=port] [replicaof=host:port]
+ *                                                [stats=N] [fsync=always|everysec|no]
  * Note: 
  * if [address] is not provided, the server will use wildcard address
  * if [portNumber] is not provided, the server will use default value 30123
+ * if "nio" is given, all clients are served concurrently by one thread
+ * using a non-blocking selector (see NioEngine); otherwise the server
+ * handles one client connection at a time
+ * if "virtual" is given, each client connection is served by its own
+ * (virtual, where the JVM supports it) thread
+ * if store=offheap is given, the pairs are stored as raw bytes outside the
+ * Java heap (see OffHeapMapStore), which suits very large numbers of pairs
+ * if snapshot=file is given, the pairs are loaded from the snapshot file at
+ * startup if it exists, and the snapshot command writes a point-in-time copy
+ * of the pairs to it in the background (see SnapshotMapStore); if a log is
+ * also given and is not empty, the pairs are restored from the log instead,
+ * and a new log starts with the pairs loaded from the snapshot
+ * if index=sorted is given, the keys are also kept in a sorted index (see
+ * IndexedMapStore), and the range and prefix commands are accepted
+ * if log=file is given, the pairs are restored from the log file at startup
+ * and every change is appended to it (see MapLog), so the pairs survive
+ * a restart; a change that cannot be appended is not made, and is answered
+ * "error:change not logged"
+ * fsync=always|everysec|no says how soon appended changes are forced to
+ * disk, so that they also survive a crash of the machine: before each reply,
+ * about once a second (the default), or when the operating system chooses
+ * if cache=MB is given, the pairs form a cache of about MB megabytes: least
+ * recently used pairs are removed to stay within that size (0 for no bound),
+ * and putex stores pairs that are removed after the given number of seconds
+ * (see CacheMapStore); putex is only accepted with this option. Times to
+ * live are kept in memory only: the log and snapshots hold a putex pair as a
+ * plain pair, so after a restart with log= or snapshot= it never expires
+ * if replicas=port is given, the server is a primary: replica servers connect
+ * to port, receive a copy of the pairs and then every change as it is made,
+ * asynchronously and in batches (see ReplicatedMapStore)
+ * if replicaof=host:port is given, the server is a replica of the primary
+ * whose replicas port is host:port: it serves reads from its copy of the
+ * primary's pairs, answers puts and removes as unrecognizable input, and
+ * reconnects and copies the pairs again if the connection is lost (see
+ * ReplicaMapStore); cache=MB cannot be given, as the primary's cache decides
+ * which pairs are kept
+ * if stats=N is given, a summary of the request statistics is printed every
+ * N seconds; the same summary is the reply to the "stats" command, and it
+ * ends with the state of the last snapshot and of replication, if any
  *
  * The server waits for TCP requests to add or retrieve string pairs (str1, str2)
- * stored in the HashMap by the server
+ * stored in a MapStore by the server
  *
  * The server will accept TCP packets with a payload of ASCII strings with command
  * (get, get all, put, remove). The colon character is used as a delimiter.
  * The commands are formatted as follow:
  * get: the key string
  * get all
+ * scan: cursor [: count]
+ * range: limit : from : to
+ * prefix: limit : prefix [: from]
+ * stats
+ * snapshot
  * put: key string : corresponding value
+ * putex: seconds : key string : corresponding value
  * remove: key string
  *
  * The server will reponse with the following payloads
@@ -26,10 +75,28 @@
  *               no          no match
  *  get all      yes         key1:val1::key2:val2:: ... ::keyn:valn
  *               no          no match
- *  put          yes         updated: str
+ *  scan         -           cursor:next::key1:val1:: ... ::keyn:valn
+ *  range,       -           next:key::key1:val1:: ... ::keyn:valn
+ *  prefix
+ *  snapshot     -           ok, or snapshot in progress
+ *  stats        -           request counts, hits, misses, errors and
+ *                           latency percentiles per command (see MapStats)
+ *  put, putex   yes         updated: str
  *               no          ok
  * remove        yes         ok
  *               no          no match
+ * "scan" pages through the pairs in batches of count pairs (default 1000).
+ * The first scan uses cursor 0; each reply carries the cursor for the next
+ * scan, which is 0 once every pair has been returned.
+ * "range" and "prefix" return up to limit pairs in key order, with from <= key
+ * < to (to may be empty for no bound) or with keys starting with prefix; the
+ * reply names the key to pass as from to continue, empty once all are returned.
+ * They need index=sorted.
+ * Clients may pipeline requests, sending many lines before reading the
+ * replies; replies are always returned in request order.
+ * A client that sends the line "binary" gets the reply "ok", after which the
+ * connection carries length-prefixed binary frames instead of text lines
+ * (see BinaryProtocol), so keys and values may contain any bytes.
  * If the server receives a packet that is not well-formed, it will reply
  * error: unrecognizable input: copy of the input's packet payload
  *
@@ -39,6 +106,7 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class TcpMapServer{
 	public static void main(String args[]) throws Exception {
@@ -46,9 +114,6 @@ public class TcpMapServer{
 		int serverPort = 30123;
 		InetAddress serverAddr = null;
 
-		//create a hashmap to store pairs
-		HashMap<String, String> pairs = new HashMap<String, String>();
-
 		//if server address provided, use the given address
 		if(args.length > 0){
 			serverAddr = InetAddress.getByName(args[0]);
@@ -59,94 +124,265 @@ public class TcpMapServer{
 			serverPort = Integer.parseInt(args[1]);
 		}
 
+		//the mode is the first argument after the port that is not an option
+		String mode = "";
+		for(int i=2; i<args.length; i++){
+			if(args[i].indexOf('=') < 0){
+				mode = args[i];
+				break;
+			}
+		}
+
+		//create a striped store for the pairs, so that connections
+		//served by different threads can share it; with store=offheap
+		//the pairs are kept outside the Java heap
+		MapStore store = new StripedMapStore();
+		if("offheap".equals(option(args, "store"))){
+			store = new OffHeapMapStore();
+		}
+
+		//with snapshot=file, load the pairs from the snapshot file if it
+		//exists, and let the snapshot command write a new one; a log that
+		//is not empty holds all the pairs, and removes made since the
+		//snapshot, so then the pairs are restored from the log alone
+		String logFile = option(args, "log");
+		boolean logged = logFile != null && new File(logFile).length() > 0;
+		String snapshotFile = option(args, "snapshot");
+		if(snapshotFile != null){
+			store = new SnapshotMapStore(store, snapshotFile, !logged);
+		}
+
+		//with index=sorted, also keep the keys in order for range scans;
+		//the index wraps the base store so that every change reaches it,
+		//including those made while loading a snapshot
+		if("sorted".equals(option(args, "index"))){
+			store = new IndexedMapStore(store);
+		}
+
+		//if a log file is given, restore the pairs from it and log every
+		//change; fsync= says how soon the changes are forced to disk
+		if(logFile != null){
+			String fsync = option(args, "fsync");
+			int policy = MapLog.FSYNC_EVERYSEC;
+			if("always".equals(fsync)){
+				policy = MapLog.FSYNC_ALWAYS;
+			}else if("no".equals(fsync)){
+				policy = MapLog.FSYNC_NO;
+			}
+			store = new LoggedMapStore(store, logFile, 10, policy);
+		}
+
+		//with replicas=port, stream every change to the replicas that
+		//connect to port; this is below the cache, so that evictions and
+		//expiries are replicated as removes
+		String replPort = option(args, "replicas");
+		if(replPort != null){
+			ReplicatedMapStore primary = new ReplicatedMapStore(store,
+					Integer.parseInt(replPort));
+			primary.start();
+			store = primary;
+		}
+
+		//with replicaof=host:port, follow that primary and refuse changes
+		//from clients; a replica may itself have replicas
+		String primaryAddr = option(args, "replicaof");
+		if(primaryAddr != null){
+			int colon = primaryAddr.lastIndexOf(':');
+			ReplicaMapStore replica = new ReplicaMapStore(store,
+					primaryAddr.substring(0, colon),
+					Integer.parseInt(primaryAddr.substring(colon + 1)));
+			replica.start();
+			store = replica;
+		}
+
+		//if a cache size is given, bound the memory used by the pairs
+		//and let them expire; evictions and expiries are logged as removes
+		String cacheMB = option(args, "cache");
+		if(cacheMB != null && primaryAddr != null){
+			//a replica's pairs are evicted and expire on its primary
+			System.err.println("TcpMapServer: cache= cannot be used with replicaof=");
+			System.exit(1);
+		}
+		if(cacheMB != null){
+			store = new CacheMapStore(store, Long.parseLong(cacheMB) << 20);
+		}
+		final MapStore pairs = store;
+
+		//record every request; with stats=N, print a summary every N seconds
+		final MapStats stats = new MapStats();
+		//the summary ends with the state of snapshots and replication
+		stats.setStatus(pairs::status);
+		String statsSecs = option(args, "stats");
+		if(statsSecs != null){
+			stats.dumpEvery(Integer.parseInt(statsSecs));
+		}
+
+        //if "nio" mode is given, serve every client from one selector thread
+		if(mode.equals("nio")){
+			new NioEngine(serverAddr, serverPort, pairs, stats).run();
+			return;
+		}
+
+		//if "virtual" mode is given, serve each client on its own thread
+		ExecutorService connPool = null;
+		if(mode.equals("virtual")){
+			connPool = newConnectionExecutor();
+		}
+
 		//open and bind the stream socket
 		ServerSocket listenSock = new ServerSocket(serverPort, 0, serverAddr);
 
         //waiting for connections
 		while(true){
 			//create connection socket
-			Socket connSock = listenSock.accept();
+			final Socket connSock = listenSock.accept();
 
-            //create buffers for input and output stream
-			BufferedReader in = new BufferedReader(new InputStreamReader(connSock.getInputStream()));
-			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(connSock.getOutputStream()));
+			if(connPool == null){
+				serve(connSock, pairs, stats);
+			}else{
+				connPool.execute(new Runnable() {
+					public void run() { serve(connSock, pairs, stats); }
+				});
+			}
+		}
+	}
+
+	/** Serve one client connection until the client closes it.
+	 *  @param connSock is the connected socket
+	 *  @param pairs is the store holding the pairs
+	 *  @param stats is the object to record requests in
+	 */
+	static void serve(Socket connSock, MapStore pairs, MapStats stats){
+		try{
+            //create buffers for input and output stream; latin-1 passes
+            //every byte through unchanged, as MapProtocol expects
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+				connSock.getInputStream(), "ISO-8859-1"));
+			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+				connSock.getOutputStream(), "ISO-8859-1"));
             
+            MapProtocol proto = new MapProtocol(pairs, true, 0, stats);
             String command;
 
             //if reading a nonempty line, process the command
 			while((command = in.readLine()) != null){
-				String reply = "";
-
-                //split the command
-				String[] split = command.split(":", 2);
-
-                //if length is 2, either "get all" command or invalid input
-				if(split.length != 2){
-					if(split[0].equals("get all")){
-						if(!pairs.isEmpty()){
-							int count = 0;
-
-							//building reply message
-							for(String key: pairs.keySet()){
-								count ++;
-								if(count != pairs.size()){
-									reply += key + ":" + pairs.get(key) + "::";
-								}else{
-									reply += key + ":" + pairs.get(key);
-								}
-							}
-						}else{
-							reply = "no match";
-						}
-					}else{
-        		        reply = "error:unrecognizable input:"+command;
-        		    }
-        	    }else{
-        		    String cmdName = split[0];
-			        //check command name and perform corresponding operation
-        		    if(cmdName.equals("get")){
-			            String ans = pairs.get(split[1]);
-        			    if(ans != null){
-        				    reply = "ok:" + ans;
-        			    }else{
-        				    reply = "no match";
-        			    }
-        		    }else if(cmdName.equals("put")){
-        		    	//split the arguments for put command
-        			    String[] splitParam = split[1].split(":",2);
-				        if(splitParam.length == 2){
-			                //if the key is already in the hashmap, update the value
-        			        if(pairs.containsKey(splitParam[0])){
-        				       pairs.remove(splitParam[0]);
-        				       pairs.put(splitParam[0], splitParam[1]);
-        				       reply = "updated:" + splitParam[0];
-        			        }else{
-        				       pairs.put(splitParam[0], splitParam[1]);
-        				       reply = "ok";
-        			        }
-					    }else{
-					        reply = "error:unrecognizable input:"+command;
-					    }
-        		     }else if(cmdName.equals("remove")){
-        			    if(pairs.containsKey(split[1])){
-        				   pairs.remove(split[1]);
-        				   reply = "ok";
-        			    }else{
-        				   reply = "no match";
-        			   }
-        		    }else{
-        		       reply = "error:unrecognizable input:"+command;
-        		    }	   
+        	    //switch to binary frames if the client asks for them
+        	    if(command.equals("binary")){
+        	        out.write("ok"); out.newLine(); out.flush();
+        	        serveBinary(in, out, new BinaryProtocol(pairs, false, stats));
+        	        break;
         	    }
 
-        	    //write reply
-        	    out.write(reply);
+        	    //write reply; a "get all" reply is written in chunks as
+        	    //the pairs are read, rather than built up in one string
+        	    out.write(proto.process(command));
+        	    while(proto.more()){
+        	        proto.nextChunk();
+        	        out.write(proto.replyString());
+        	    }
         	    out.newLine();
-        	    out.flush();
+
+        	    //flush only once all requests received so far are answered,
+        	    //so a pipelined batch of requests is answered in few packets
+        	    if(!in.ready()){
+        	        out.flush();
+        	    }
 			}
+		}catch(IOException e){
+			System.err.println("TcpMapServer: connection error " + e);
+		}finally{
 			//close connection
-			connSock.close();
+			try{ connSock.close(); }catch(IOException e){ }
+		}
+	}
+
+	/** Serve binary protocol frames until the client closes the connection.
+	 *  The connection's latin-1 reader and writer are used for the frames
+	 *  too, so that input the reader has already buffered is not lost;
+	 *  latin-1 maps each byte to one char and back unchanged.
+	 *  @param in is the connection's reader
+	 *  @param out is the connection's writer
+	 *  @param proto is the frame parser for the connection
+	 */
+	static void serveBinary(BufferedReader in, BufferedWriter out,
+				BinaryProtocol proto) throws IOException{
+		byte[] frame = new byte[4096];
+		char[] chars = new char[4096];
+		while(readBytes(in, chars, frame, 0, BinaryProtocol.HEADER)){
+			int len = BinaryProtocol.frameLength(frame, 0);
+			if(len < 0){
+				//the next frame cannot be located; report and give up
+				proto.process(frame, 0, BinaryProtocol.HEADER);
+				writeBytes(out, chars, proto.reply(), proto.replyLength());
+				out.flush();
+				return;
+			}
+			if(len > frame.length){
+				frame = Arrays.copyOf(frame, Math.max(len, 2 * frame.length));
+			}
+			if(!readBytes(in, chars, frame, BinaryProtocol.HEADER,
+				      len - BinaryProtocol.HEADER)){
+				return;
+			}
+			proto.process(frame, 0, len);
+			writeBytes(out, chars, proto.reply(), proto.replyLength());
+			if(!in.ready()){
+				out.flush();
+			}
+		}
+	}
+
+	/** Read bytes through a latin-1 reader.
+	 *  @param chars is a buffer for the chars read
+	 *  @return false if the stream ended first
+	 */
+	private static boolean readBytes(Reader in, char[] chars, byte[] buf,
+					 int off, int len) throws IOException{
+		while(len > 0){
+			int n = in.read(chars, 0, Math.min(len, chars.length));
+			if(n < 0) return false;
+			for(int i=0; i<n; i++) buf[off + i] = (byte) chars[i];
+			off += n; len -= n;
+		}
+		return true;
+	}
+
+	/** Write bytes through a latin-1 writer.
+	 *  @param chars is a buffer for the chars written
+	 */
+	private static void writeBytes(Writer out, char[] chars, byte[] buf,
+				       int len) throws IOException{
+		for(int off=0; off<len; off+=chars.length){
+			int n = Math.min(len - off, chars.length);
+			for(int i=0; i<n; i++) chars[i] = (char) (buf[off + i] & 0xff);
+			out.write(chars, 0, n);
+		}
+	}
+
+	/** Find an option of the form name=value among the arguments.
+	 *  @param args is the list of command line arguments
+	 *  @param name is the option name
+	 *  @return the option value, or null if the option is not given
+	 */
+	static String option(String[] args, String name){
+		for(int i=2; i<args.length; i++){
+			if(args[i].startsWith(name + "=")){
+				return args[i].substring(name.length() + 1);
+			}
+		}
+		return null;
+	}
 
+	/** Create an executor that runs each task on its own virtual thread.
+	 *  Virtual threads need Java 21; on older JVMs this falls back to a
+	 *  cached pool of platform threads, one per active connection.
+	 */
+	static ExecutorService newConnectionExecutor(){
+		try{
+			return (ExecutorService) Executors.class
+				.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch(Exception e){
+			return Executors.newCachedThreadPool();
 		}
 	}
-}
\ No newline at end of file
+}
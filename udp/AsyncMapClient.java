@@ -0,0 +1,273 @@
+/** Asynchronous client library for the UDP MapServer.
+ *
+ *  usage: java AsyncMapClient addr port [ numOps ] [ window ]
+ *
+ *  An AsyncMapClient keeps many requests outstanding on one datagram
+ *  channel. Each request is sent as "tag:id:request" with an id unique
+ *  to this client, and the server echoes the tag in its reply, so a
+ *  receiver thread can complete the matching request whatever order
+ *  the replies arrive in. get(), put() and remove() return at once with
+ *  a CompletableFuture holding the reply payload, such as "ok:val" or
+ *  "no match".
+ *
+ *  At most window requests are outstanding; a caller that would exceed
+ *  the window waits until a reply arrives. A request not answered within
+ *  the timeout is sent again, with the same tag, up to a number of
+ *  retries, after which its future fails with a TimeoutException. Since
+ *  a lost reply cannot be told from a lost request, a retried put may be
+ *  answered "updated" and a retried remove "no match" even though the
+ *  server performed the first attempt.
+ *
+ *  Run as a program, it performs numOps (default 100000) alternating
+ *  puts and gets with window (default 1000) requests outstanding and
+ *  reports the throughput.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class AsyncMapClient implements Runnable {
+	private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+
+	// default number of outstanding requests, time before a request is
+	// sent again, and number of times it is sent again
+	public static final int WINDOW = 1000;
+	public static final int TIMEOUT = 500;
+	public static final int RETRIES = 3;
+
+	private Thread myThread;	// receiver thread, runs run()
+	private Thread retryThread;	// resends requests that timed out
+
+	private DatagramChannel chan;	// channel connected to the server
+	private long timeout;		// nanoseconds to wait for a reply
+	private int retries;		// max times a request is sent again
+	private Semaphore window;	// one permit per request that may be
+					// outstanding
+	private AtomicInteger nextId;	// tag of the next request
+	private volatile boolean closed;
+
+	/** A request waiting for its reply. */
+	private static class Request {
+		ByteBuffer packet;	// the tagged request
+		CompletableFuture<String> future = new CompletableFuture<String>();
+		long deadline;		// time of the next resend or failure
+		int tries;		// times sent so far
+	}
+	private ConcurrentHashMap<Integer, Request> pending;
+
+	/** Open a client with the default window, timeout and retries.
+	 *  @param host is the name or address of the server
+	 *  @param port is the server's port number
+	 */
+	public AsyncMapClient(String host, int port) throws IOException {
+		this(host, port, WINDOW, TIMEOUT, RETRIES);
+	}
+
+	/** Open a client and start its threads.
+	 *  @param host is the name or address of the server
+	 *  @param port is the server's port number
+	 *  @param window is the maximum number of outstanding requests
+	 *  @param timeout is the time in milliseconds to wait for a reply
+	 *  before sending a request again
+	 *  @param retries is the number of times a request is sent again
+	 *  before it fails
+	 */
+	public AsyncMapClient(String host, int port, int window, int timeout,
+			      int retries) throws IOException {
+		chan = DatagramChannel.open();
+		// room for the replies to a full window, which may arrive in
+		// a burst; the system may grant less
+		chan.setOption(StandardSocketOptions.SO_RCVBUF, Math.max(window * 2048, 1 << 16));
+		chan.connect(new InetSocketAddress(host, port));
+		this.timeout = timeout * 1000000L; this.retries = retries;
+		this.window = new Semaphore(window);
+		nextId = new AtomicInteger();
+		pending = new ConcurrentHashMap<Integer, Request>();
+		start();
+	}
+
+	/** Start the receiver and retry threads. */
+	private void start() {
+		myThread = new Thread(this); myThread.setDaemon(true);
+		myThread.start();
+		retryThread = new Thread(() -> retry()); retryThread.setDaemon(true);
+		retryThread.start();
+	}
+
+	/** Wait for the threads to quit, after close(). */
+	public void join() throws Exception {
+		myThread.join(); retryThread.join();
+	}
+
+	/** Get the value of a key.
+	 *  @return a future holding "ok:val" or "no match"
+	 */
+	public CompletableFuture<String> get(String key) {
+		return request("get:" + key);
+	}
+
+	/** Store a pair.
+	 *  @return a future holding "ok" or "updated:key"
+	 */
+	public CompletableFuture<String> put(String key, String val) {
+		return request("put:" + key + ":" + val);
+	}
+
+	/** Remove a pair.
+	 *  @return a future holding "ok" or "no match"
+	 */
+	public CompletableFuture<String> remove(String key) {
+		return request("remove:" + key);
+	}
+
+	/** Send a request, waiting first if the window is full.
+	 *  @param command is a request payload, such as "get:key"
+	 *  @return a future holding the reply payload, without its tag
+	 */
+	public CompletableFuture<String> request(String command) {
+		Request req = new Request();
+		try {
+			window.acquire();
+		} catch(InterruptedException e) {
+			req.future.completeExceptionally(e);
+			return req.future;
+		}
+		int id = nextId.getAndIncrement() & Integer.MAX_VALUE;
+		req.packet = ByteBuffer.wrap(("tag:" + id + ":" + command).getBytes(CHARSET));
+		req.deadline = System.nanoTime() + timeout;
+		pending.put(id, req);
+		if (closed) fail(id, new ClosedChannelException());
+		else send(id, req);
+		return req.future;
+	}
+
+	/** Close the channel; outstanding requests fail. */
+	public void close() throws IOException {
+		closed = true;
+		chan.close();
+		retryThread.interrupt();
+		for (Integer id : pending.keySet())
+			fail(id, new ClosedChannelException());
+	}
+
+	/** Receiver thread completes the request each reply is tagged with,
+	 *  until the channel is closed. Replies to requests that already
+	 *  completed, such as duplicates caused by a resend, are dropped.
+	 */
+	public void run() {
+		ByteBuffer buf = ByteBuffer.allocate(65507);
+		while (true) {
+			try {
+				buf.clear();
+				chan.receive(buf);
+			} catch(ClosedChannelException e) {
+				return;
+			} catch(IOException e) {
+				// e.g. ICMP port unreachable; the request is resent
+				// on timeout
+				continue;
+			}
+			String reply = new String(buf.array(), 0, buf.position(), CHARSET);
+			if (!reply.startsWith("tag:")) continue;
+			int colon = reply.indexOf(':', 4);
+			if (colon < 0) continue;
+			int id;
+			try {
+				id = Integer.parseInt(reply.substring(4, colon));
+			} catch(NumberFormatException e) {
+				continue;
+			}
+			Request req = pending.remove(id);
+			if (req == null) continue;
+			window.release();
+			req.future.complete(reply.substring(colon + 1));
+		}
+	}
+
+	/** Retry thread scans the outstanding requests a few times per
+	 *  timeout, resending those whose reply is overdue and failing
+	 *  those that have used up their retries.
+	 */
+	private void retry() {
+		long tick = Math.max(timeout / 4, 1000000L);
+		while (!closed) {
+			try {
+				Thread.sleep(tick / 1000000L);
+			} catch(InterruptedException e) {
+				return;
+			}
+			long now = System.nanoTime();
+			for (Map.Entry<Integer, Request> e : pending.entrySet()) {
+				Request req = e.getValue();
+				if (now - req.deadline < 0) continue;
+				if (req.tries > retries) {
+					fail(e.getKey(), new TimeoutException(
+						"no reply after " + req.tries + " tries"));
+				} else {
+					req.deadline = now + timeout;
+					send(e.getKey(), req);
+				}
+			}
+		}
+	}
+
+	/** Send or resend a request; a failed send is left to be retried. */
+	private void send(int id, Request req) {
+		req.tries++;
+		try {
+			chan.write(req.packet.duplicate());
+		} catch(ClosedChannelException e) {
+			fail(id, e);
+		} catch(IOException e) {
+			// resent on timeout
+		}
+	}
+
+	/** Complete a request exceptionally, if it is still outstanding. */
+	private void fail(int id, Exception cause) {
+		Request req = pending.remove(id);
+		if (req == null) return;
+		window.release();
+		req.future.completeExceptionally(cause);
+	}
+
+	public static void main(String args[]) throws Exception {
+		if (args.length < 2) {
+			System.out.println("usage: AsyncMapClient addr port "
+					   + "[ numOps ] [ window ]");
+			System.exit(1);
+		}
+		int numOps = (args.length > 2 ? Integer.parseInt(args[2]) : 100000);
+		int window = (args.length > 3 ? Integer.parseInt(args[3]) : WINDOW);
+		AsyncMapClient client = new AsyncMapClient(args[0],
+				Integer.parseInt(args[1]), window, TIMEOUT, RETRIES);
+
+		final AtomicInteger failed = new AtomicInteger();
+		List<CompletableFuture<String>> futures =
+			new ArrayList<CompletableFuture<String>>(numOps);
+		long t0 = System.nanoTime();
+		for (int i = 0; i < numOps; i++) {
+			String key = "key" + (i / 2);
+			CompletableFuture<String> f = (i % 2 == 0
+				? client.put(key, "val" + i) : client.get(key));
+			futures.add(f.whenComplete((reply, e) -> {
+				if (e != null) failed.incrementAndGet();
+			}));
+		}
+		for (CompletableFuture<String> f : futures) {
+			try { f.get(); } catch(ExecutionException e) { }
+		}
+		long t1 = System.nanoTime();
+		client.close();
+
+		System.out.println(numOps + " requests in " + (t1 - t0) / 1000000
+				   + " ms, " + numOps * 1000000000L / (t1 - t0)
+				   + " ops/s, " + failed.get() + " failed");
+	}
+}
@@ -0,0 +1,314 @@
+/** MapStore that bounds its memory and expires pairs, for use as a cache.
+ *
+ *  A CacheMapStore wraps another store and keeps, next to it, a record
+ *  of every pair's approximate size and expiry time. Pairs are spread
+ *  over segments by key hash, as in StripedMapStore; each segment has
+ *  its own lock, its own share of the memory bound and its own records,
+ *  kept in least recently used order. When a put takes a segment over
+ *  its share, the segment's least recently used pairs are removed from
+ *  the wrapped store until it fits again.
+ *
+ *  A pair stored with a time to live is also placed in its segment's
+ *  timer wheel: an array of WHEEL slots of TICK milliseconds each,
+ *  indexed by expiry time modulo the wheel's length. A background
+ *  thread visits the slots as their time comes and removes the pairs
+ *  that are due, so expiring a pair costs the same however many pairs
+ *  have a time to live; a pair due later than one turn of the wheel
+ *  stays in its slot until a later turn. A get of a pair that is due but
+ *  not yet removed finds no match. forEach(), scan() and range() go
+ *  straight to the wrapped store, so they may still see such a pair.
+ *
+ *  The size of a pair is counted as the lengths of its key and value
+ *  plus OVERHEAD bytes, a rough figure for the objects holding it.
+ *  Pairs already in the wrapped store when the cache is created are
+ *  counted, without a time to live. Times to live are kept only in the
+ *  records here, and the wrapped store sees a plain put, so a
+ *  LoggedMapStore or SnapshotMapStore below does not save them: a pair
+ *  restored from a log or snapshot never expires.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+public class CacheMapStore implements MapStore {
+	// bytes counted per pair on top of its key and value
+	public static final int OVERHEAD = 64;
+	// milliseconds per timer wheel slot, and slots per wheel
+	private static final long TICK = 100;
+	private static final int WHEEL = 512;
+
+	private MapStore store;		// store holding the pairs
+	private Segment[] segments;
+	private int mask;		// segments.length - 1
+	private long segBytes;		// max bytes per segment
+	private AtomicLong evictions;	// pairs removed to bound memory
+	private AtomicLong expirations;	// pairs removed on expiry
+
+	/** Record of one pair; also an element of a timer wheel slot. */
+	private static class Entry {
+		String key;
+		int bytes;		// counted size of the pair
+		long expiresAt;		// expiry time in ms, or 0 for none
+
+		Entry(String key) { this.key = key; }
+	}
+
+	/** One segment of the cache; callers hold its lock. */
+	private static class Segment {
+		// records by key, least recently used first
+		LinkedHashMap<String, Entry> lru =
+			new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		long bytes;		// total counted size of the pairs
+		HashSet<Entry>[] wheel;	// timer wheel, allocated on first use
+		long lastTick;		// time of the last wheel slot visited
+	}
+
+	/** Initialize a cache with 64 segments.
+	 *  @param store is the store to hold the pairs
+	 *  @param maxBytes is the bound on the counted size of all pairs,
+	 *  or 0 for no bound
+	 */
+	public CacheMapStore(MapStore store, long maxBytes) {
+		this(store, maxBytes, 64);
+	}
+
+	/** Initialize a cache.
+	 *  @param store is the store to hold the pairs
+	 *  @param maxBytes is the bound on the counted size of all pairs,
+	 *  or 0 for no bound
+	 *  @param stripes is the minimum number of segments; it is rounded
+	 *  up to a power of 2
+	 */
+	public CacheMapStore(MapStore store, long maxBytes, int stripes) {
+		this.store = store;
+		int n = 1;
+		while (n < stripes) n <<= 1;
+		segments = new Segment[n];
+		mask = n - 1;
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < n; i++) {
+			segments[i] = new Segment();
+			segments[i].lastTick = now / TICK - 1;
+		}
+		segBytes = (maxBytes > 0 ? Math.max(maxBytes / n, 1) : Long.MAX_VALUE);
+		evictions = new AtomicLong(); expirations = new AtomicLong();
+
+		// count the pairs already stored, then trim to the bound
+		store.forEach((key, val) -> {
+			Segment seg = segmentFor(key);
+			Entry e = new Entry(key);
+			e.bytes = cost(key, val);
+			seg.lru.put(key, e); seg.bytes += e.bytes;
+		});
+		for (Segment seg : segments) {
+			synchronized (seg) { evict(seg); }
+		}
+
+		Thread expirer = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(TICK);
+				} catch(InterruptedException e) {
+					return;
+				}
+				try {
+					expire();
+				} catch(UncheckedIOException e) {
+					// the removes that failed are tried again
+					System.err.println("CacheMapStore: expiry failed " + e);
+				}
+			}
+		});
+		expirer.setDaemon(true);
+		expirer.start();
+	}
+
+	/** Return the number of pairs removed to bound memory. */
+	public long evictions() { return evictions.get(); }
+
+	/** Return the number of pairs removed because they expired. */
+	public long expirations() { return expirations.get(); }
+
+	/** Return the total counted size of the stored pairs. */
+	public long bytes() {
+		long n = 0;
+		for (Segment seg : segments) {
+			synchronized (seg) { n += seg.bytes; }
+		}
+		return n;
+	}
+
+	public String get(String key) {
+		Segment seg = segmentFor(key);
+		synchronized (seg) {
+			// a lookup makes the pair the most recently used
+			Entry e = live(seg, seg.lru.get(key));
+			return (e == null ? null : store.get(key));
+		}
+	}
+
+	public String put(String key, String val) {
+		return put(key, val, 0);
+	}
+
+	public String put(String key, String val, long ttlMillis) {
+		Segment seg = segmentFor(key);
+		synchronized (seg) {
+			Entry e = live(seg, seg.lru.get(key));
+			String old = store.put(key, val);
+			if (e == null) {
+				e = new Entry(key); seg.lru.put(key, e);
+				old = null;
+			} else {
+				seg.bytes -= e.bytes;
+				unschedule(seg, e);
+			}
+			e.bytes = cost(key, val); seg.bytes += e.bytes;
+			if (ttlMillis > 0) {
+				e.expiresAt = System.currentTimeMillis() + ttlMillis;
+				schedule(seg, e);
+			}
+			evict(seg);
+			return old;
+		}
+	}
+
+	public String putIfAbsent(String key, String val) {
+		Segment seg = segmentFor(key);
+		synchronized (seg) {
+			if (live(seg, seg.lru.get(key)) != null) return store.get(key);
+			return put(key, val, 0);
+		}
+	}
+
+	public String replace(String key, String val) {
+		Segment seg = segmentFor(key);
+		synchronized (seg) {
+			if (live(seg, seg.lru.get(key)) == null) return null;
+			return put(key, val, 0);
+		}
+	}
+
+	public String remove(String key) {
+		Segment seg = segmentFor(key);
+		synchronized (seg) {
+			Entry e = live(seg, seg.lru.get(key));
+			if (e == null) return null;
+			String old = store.remove(key);
+			drop(seg, e);
+			return old;
+		}
+	}
+
+	public int size() { return store.size(); }
+
+	public boolean isEmpty() { return store.isEmpty(); }
+
+	public void forEach(BiConsumer<String, String> action) {
+		store.forEach(action);
+	}
+
+	public long scan(long cursor, int count, BiConsumer<String, String> action) {
+		return store.scan(cursor, count, action);
+	}
+
+	public long forEachPart(long cursor, BiConsumer<String, String> action) {
+		return store.forEachPart(cursor, action);
+	}
+
+	public String range(String from, String to, BiPredicate<String, String> action) {
+		return store.range(from, to, action);
+	}
+
+	public boolean snapshot() { return store.snapshot(); }
+
+	public String status() { return store.status(); }
+
+	private Segment segmentFor(String key) {
+		int h = key.hashCode();
+		return segments[(h ^ (h >>> 16)) & mask];
+	}
+
+	private static int cost(String key, String val) {
+		return key.length() + val.length() + OVERHEAD;
+	}
+
+	/** Check a record for expiry, removing its pair if it is due.
+	 *  @return the record, or null if there is none or it expired
+	 */
+	private Entry live(Segment seg, Entry e) {
+		if (e == null || e.expiresAt == 0
+		    || e.expiresAt > System.currentTimeMillis())
+			return e;
+		store.remove(e.key);
+		drop(seg, e);
+		expirations.incrementAndGet();
+		return null;
+	}
+
+	/** Remove a record from its segment. */
+	private void drop(Segment seg, Entry e) {
+		seg.lru.remove(e.key);
+		seg.bytes -= e.bytes;
+		unschedule(seg, e);
+	}
+
+	/** Remove least recently used pairs until the segment is within its
+	 *  share of the bound; the most recently used pair is always kept.
+	 */
+	private void evict(Segment seg) {
+		while (seg.bytes > segBytes && seg.lru.size() > 1) {
+			Entry e = seg.lru.values().iterator().next();
+			store.remove(e.key);
+			drop(seg, e);
+			evictions.incrementAndGet();
+		}
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private void schedule(Segment seg, Entry e) {
+		if (seg.wheel == null) seg.wheel = new HashSet[WHEEL];
+		int slot = (int) ((e.expiresAt / TICK) % WHEEL);
+		if (seg.wheel[slot] == null) seg.wheel[slot] = new HashSet<Entry>();
+		seg.wheel[slot].add(e);
+	}
+
+	private void unschedule(Segment seg, Entry e) {
+		if (e.expiresAt == 0) return;
+		seg.wheel[(int) ((e.expiresAt / TICK) % WHEEL)].remove(e);
+		e.expiresAt = 0;
+	}
+
+	/** Visit the timer wheel slots whose time has passed in every
+	 *  segment and remove the pairs that are due.
+	 */
+	private void expire() {
+		long now = System.currentTimeMillis();
+		long last = now / TICK - 1;	// last slot time wholly past
+		for (Segment seg : segments) {
+			synchronized (seg) {
+				if (seg.wheel == null) { seg.lastTick = last; continue; }
+				// after a long pause, one turn covers every slot
+				long from = Math.max(seg.lastTick + 1, last - WHEEL + 1);
+				for (long t = from; t <= last; t++) {
+					HashSet<Entry> slot = seg.wheel[(int) (t % WHEEL)];
+					if (slot == null || slot.isEmpty()) continue;
+					Iterator<Entry> it = slot.iterator();
+					while (it.hasNext()) {
+						Entry e = it.next();
+						if (e.expiresAt > now) continue;
+						store.remove(e.key);
+						it.remove();
+						e.expiresAt = 0;
+						seg.lru.remove(e.key);
+						seg.bytes -= e.bytes;
+						expirations.incrementAndGet();
+					}
+				}
+				seg.lastTick = last;
+			}
+		}
+	}
+}
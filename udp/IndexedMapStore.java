@@ -0,0 +1,111 @@
+/** MapStore that keeps its keys in a sorted index, for range scans.
+ *
+ *  An IndexedMapStore wraps another store, which holds the pairs, and
+ *  keeps every key in a concurrent skip list as well. range() walks the
+ *  skip list from the first key in the range and reads each value from
+ *  the wrapped store, so a prefix or range scan costs time in proportion
+ *  to the pairs it returns, not to the size of the store. Only the keys
+ *  are indexed, and for stores on the Java heap the index shares the key
+ *  Strings with the store, so the index costs a skip list node per pair.
+ *
+ *  A put of a new key and a remove of a present one change both the
+ *  store and the index under a lock, one of 64 chosen by key hash, so
+ *  the index lists exactly the stored keys whenever no change is under
+ *  way. A range scan skips keys whose pair was removed after it read
+ *  them from the index.
+ *
+ *  Changes that bypass this object never reach the index, so it must
+ *  wrap the base store (or a SnapshotMapStore over it), below any
+ *  LoggedMapStore or CacheMapStore, whose replays, evictions and
+ *  expiries then go through it. Pairs already in the wrapped store when
+ *  it is created are indexed.
+ */
+
+import java.util.concurrent.*;
+import java.util.function.*;
+
+public class IndexedMapStore implements MapStore {
+	private MapStore store;		// store holding the pairs
+	private ConcurrentSkipListSet<String> index; // the stored keys
+	private Object[] locks;		// order changes to store and index
+	private int mask;		// locks.length - 1
+
+	/** Initialize an index over a store.
+	 *  @param store is the store to hold the pairs
+	 */
+	public IndexedMapStore(MapStore store) {
+		this.store = store;
+		index = new ConcurrentSkipListSet<String>();
+		locks = new Object[64];
+		for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+		mask = locks.length - 1;
+		store.forEach((key, val) -> index.add(key));
+	}
+
+	public String get(String key) { return store.get(key); }
+
+	public String put(String key, String val) {
+		synchronized (lockFor(key)) {
+			String old = store.put(key, val);
+			if (old == null) index.add(key);
+			return old;
+		}
+	}
+
+	public String putIfAbsent(String key, String val) {
+		synchronized (lockFor(key)) {
+			String old = store.putIfAbsent(key, val);
+			if (old == null) index.add(key);
+			return old;
+		}
+	}
+
+	public String replace(String key, String val) {
+		// a present key stays present, so the index is unchanged
+		return store.replace(key, val);
+	}
+
+	public String remove(String key) {
+		synchronized (lockFor(key)) {
+			String old = store.remove(key);
+			if (old != null) index.remove(key);
+			return old;
+		}
+	}
+
+	public int size() { return store.size(); }
+
+	public boolean isEmpty() { return store.isEmpty(); }
+
+	public void forEach(BiConsumer<String, String> action) {
+		store.forEach(action);
+	}
+
+	public long scan(long cursor, int count, BiConsumer<String, String> action) {
+		return store.scan(cursor, count, action);
+	}
+
+	public long forEachPart(long cursor, BiConsumer<String, String> action) {
+		return store.forEachPart(cursor, action);
+	}
+
+	public String range(String from, String to, BiPredicate<String, String> action) {
+		if (to != null && from.compareTo(to) >= 0) return null;
+		for (String key : (to == null ? index.tailSet(from)
+					      : index.subSet(from, to))) {
+			String val = store.get(key);
+			if (val == null) continue;
+			if (!action.test(key, val)) return key;
+		}
+		return null;
+	}
+
+	public boolean snapshot() { return store.snapshot(); }
+
+	public String status() { return store.status(); }
+
+	private Object lockFor(String key) {
+		int h = key.hashCode();
+		return locks[(h ^ (h >>> 16)) & mask];
+	}
+}
@@ -1,5 +1,6 @@
 import java.io.*;
 import java.net.*;
+import java.util.*;
 
 /**
  * Author: Jing Lu
@@ -19,12 +20,27 @@ import java.net.*;
  * put key val: add a new pair (key,val) 
  * If the key already exists, update it with the new value
  *
+ * putex secs key val: like put, but the pair is removed after secs seconds
+ * (only if the server was started with the cache option)
+ *
  * remove key: remove the pair (key,val)
  * If the key is not found, print "no match"
  *
+ * mget key1 key2 ...: get the values of several keys
+ * mput key1 val1 key2 val2 ...: add or update several pairs
+ * mremove key1 key2 ...: remove several pairs
+ * The operations are packed into as few packets as possible, and one reply
+ * is printed per operation
+ *
  **/
 
 public class MapClient {
+    //largest request the server accepts in one packet
+    static final int MAX_REQUEST = MapServer.MAX_REPLY;
+
+    //mget reply to a value that would span several reply lines
+    static final String MULTILINE = "error:value spans lines";
+
     public static void main(String args[]) throws Exception {
 		//decide if there is command information
         if(args.length < 3){
@@ -37,17 +53,39 @@ public class MapClient {
         int serverPort = Integer.parseInt(args[1]);
         String command = args[2];
 
+        //multi-key commands pack many operations into each packet
+        if(command.equals("mget") || command.equals("mput") || command.equals("mremove")){
+            List<String> ops = new ArrayList<String>();
+            int step = (command.equals("mput") ? 2 : 1);
+            for(int i=3; i+step<=args.length; i+=step){
+                ops.add(step == 2 ? args[i] + ":" + args[i+1] : args[i]);
+            }
+            DatagramSocket sock = new DatagramSocket();
+            for(String reply: batch(sock, serverAddr, serverPort, command, ops)){
+                System.out.println(reply);
+            }
+            sock.close();
+            return;
+        }
+
+        //putex takes the number of seconds ahead of the key
+        int first = 3;
+        if(command.equals("putex") && args.length > 3){
+            command = command + ":" + args[3];
+            first = 4;
+        }
+
         //add additional parameters if necessary
-        if(args.length > 3){
-        	command = command + ":" + args[3];
+        if(args.length > first){
+        	command = command + ":" + args[first];
         }
 
-	    if(args.length > 4){
+	    if(args.length > first + 1){
 		    command += ":";
 		    //the case when the value in the pair (key, val) 
 		    //contains multiple words
-		    command += args[4];
-		    for(int i=5; i<args.length; i++){
+		    command += args[first + 1];
+		    for(int i=first + 2; i<args.length; i++){
         	     command = command + " " + args[i];
 		    }
         }
@@ -61,7 +99,7 @@ public class MapClient {
         sock.send(outPkt);
 
         //create buffer and packet for reply, and receive response
-        byte[] inBuf = new byte[3000];
+        byte[] inBuf = new byte[MapServer.MAX_REPLY];
         DatagramPacket inPkt = new DatagramPacket(inBuf, inBuf.length);
         sock.receive(inPkt);
 
@@ -73,4 +111,67 @@ public class MapClient {
         sock.close();
 
 	}
-}
\ No newline at end of file
+
+	/** Perform a batch of operations with as few packets as possible.
+	 *  Operations are packed into packets of at most MAX_REQUEST bytes.
+	 *  The reply has one line per operation performed, never more than
+	 *  were sent; when it covers only some of the operations in its
+	 *  packet, the rest are sent again in the next packet. A value that
+	 *  spans several lines is fetched with a get of its own.
+	 *  @param sock is the socket used to talk to the server
+	 *  @param serverAddr is the server's address
+	 *  @param serverPort is the server's port number
+	 *  @param command is mget, mput or mremove
+	 *  @param ops is the list of operands (key, or key:val for mput)
+	 *  @return the reply to each operation, in order
+	 */
+	static List<String> batch(DatagramSocket sock, InetAddress serverAddr, int serverPort,
+	                          String command, List<String> ops) throws IOException {
+		List<String> replies = new ArrayList<String>();
+		byte[] inBuf = new byte[MapServer.MAX_REPLY];
+		DatagramPacket inPkt = new DatagramPacket(inBuf, inBuf.length);
+		int next = 0;
+		while(next < ops.size()){
+			//pack as many operations as fit, but at least one
+			StringBuilder sb = new StringBuilder(command).append(':').append(ops.get(next));
+			int count = 1;
+			while(next + count < ops.size()
+			      && sb.length() + 1 + ops.get(next + count).length() <= MAX_REQUEST){
+				sb.append('\n').append(ops.get(next + count));
+				count++;
+			}
+			byte[] outBuf = sb.toString().getBytes("ISO-8859-1");
+			sock.send(new DatagramPacket(outBuf, outBuf.length, serverAddr, serverPort));
+
+			//one reply line per operation performed
+			sock.receive(inPkt);
+			String reply = new String(inBuf, 0, inPkt.getLength(), "ISO-8859-1");
+			if(reply.startsWith("error:unrecognizable input:" + command)){
+				throw new IOException("server does not support " + command);
+			}
+			String[] lines = reply.split("\n", -1);
+			if(lines.length > count){
+				throw new IOException(lines.length + " replies to " + count + " operations");
+			}
+			for(String line: lines){
+				if(line.equals(MULTILINE)){
+					line = get(sock, inPkt, serverAddr, serverPort, ops.get(next));
+				}
+				replies.add(line);
+				next++;
+			}
+		}
+		return replies;
+	}
+
+	/** Get one key with a request of its own.
+	 *  @return the server's reply
+	 */
+	static String get(DatagramSocket sock, DatagramPacket inPkt, InetAddress serverAddr,
+	                  int serverPort, String key) throws IOException {
+		byte[] outBuf = ("get:" + key).getBytes("ISO-8859-1");
+		sock.send(new DatagramPacket(outBuf, outBuf.length, serverAddr, serverPort));
+		sock.receive(inPkt);
+		return new String(inPkt.getData(), 0, inPkt.getLength(), "ISO-8859-1");
+	}
+}
@@ -0,0 +1,333 @@
+/** Append-only log of the changes made to a MapStore.
+ *
+ *  Every put and remove is appended to the log file as a binary record:
+ *
+ *    type (1 byte, 'P' or 'R') | key length (4) | value length (4) |
+ *    key bytes | value bytes
+ *
+ *  with lengths in big-endian order and strings in ISO-8859-1, so a
+ *  record is decoded with fixed-offset reads. When a log is opened, its
+ *  records are replayed into the store through a memory mapping of the
+ *  file, without copying the file through a stream or parsing text. An
+ *  incomplete record at the end, left by a crash in the middle of an
+ *  append, is cut off.
+ *
+ *  As pairs are overwritten and removed, the log grows beyond the live
+ *  data. compact() rewrites it as one put record per stored pair while
+ *  requests continue to be served: records appended during the rewrite
+ *  are kept aside and added to the end of the new log before it
+ *  atomically replaces the old one.
+ *
+ *  Appends are written in groups. An appending thread copies its record
+ *  into a buffer, under the log lock, and waits until a write covers
+ *  it. If no write is under way, it takes the buffer, with the records
+ *  of any threads that appended meanwhile, and writes it to the file
+ *  without the lock, while other threads fill a second buffer; so under
+ *  load one write, and one force, serves many appends. Every append
+ *  returns once its record is in the file.
+ *
+ *  How soon an appended record reaches the disk depends on the fsync
+ *  policy: with FSYNC_ALWAYS, each append forces the file before it
+ *  returns, so a change whose append returned survives a crash of the
+ *  machine; with FSYNC_EVERYSEC, sync() is called about once a second
+ *  and a crash loses at most the last second or so of changes; with
+ *  FSYNC_NO, the operating system writes the file when it chooses. A
+ *  crash of the server alone loses nothing with any policy.
+ *
+ *  After a write or a sync fails, the end of the log may be a torn
+ *  record, so the appends waiting for it and every later append fail
+ *  too, until a compaction rewrites the log from the store.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class MapLog {
+	private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+	private static final int HEADER = 9;	// bytes before key and value
+	private static final long WINDOW = 1L << 30; // max bytes mapped at once
+
+	// fsync policies
+	public static final int FSYNC_NO = 0;
+	public static final int FSYNC_EVERYSEC = 1;
+	public static final int FSYNC_ALWAYS = 2;
+
+	private Path path;		// log file
+	private FileChannel chan;	// open for appending to path
+	private ByteBuffer buf;		// encoding buffer for one record
+	private byte[] batch;		// records appended but not yet written
+	private int batchLen;		// bytes of records in batch
+	private byte[] spare;		// the other buffer, or null if it is
+					// being written
+	private long appended;		// bytes appended since the log was opened
+	private long written;		// of those, bytes written to the file
+	private boolean writing;	// a thread is writing a batch
+	private int waiters;		// threads waiting for their write
+	private long liveSize;		// log size right after the last compaction
+	private ByteArrayOutputStream pending; // records appended while
+					       // compacting, or null
+	private int fsync;		// fsync policy
+	private boolean dirty;		// appended to since the last force
+	private boolean broken;		// a write or force failed
+
+	/** Open a log file, creating it if needed, and replay its records.
+	 *  @param fileName is the name of the log file
+	 *  @param store is the store to replay the records into
+	 */
+	public MapLog(String fileName, MapStore store) throws IOException {
+		this(fileName, store, FSYNC_EVERYSEC);
+	}
+
+	/** Open a log file, creating it if needed, and replay its records.
+	 *  @param fileName is the name of the log file
+	 *  @param store is the store to replay the records into
+	 *  @param fsync is the fsync policy, FSYNC_NO, FSYNC_EVERYSEC or
+	 *  FSYNC_ALWAYS
+	 */
+	public MapLog(String fileName, MapStore store, int fsync) throws IOException {
+		this.fsync = fsync;
+		path = Paths.get(fileName);
+		chan = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long end = replay(chan, store);
+		chan.truncate(end);
+		chan.position(end);
+		liveSize = end;
+		buf = ByteBuffer.allocate(4096);
+		batch = new byte[1 << 16]; spare = new byte[1 << 16];
+	}
+
+	/** Replay the records of a log into a store.
+	 *  The file is mapped into memory a window at a time; a record that
+	 *  crosses the end of a window is read from the next window.
+	 *  @param chan is a channel open for reading the log
+	 *  @param store is the store to apply the records to
+	 *  @return the offset just past the last complete record
+	 */
+	static long replay(FileChannel chan, MapStore store) throws IOException {
+		long size = chan.size();
+		long pos = 0;
+		byte[] tmp = new byte[256];
+		while (pos < size) {
+			MappedByteBuffer mb = chan.map(FileChannel.MapMode.READ_ONLY,
+						pos, Math.min(size - pos, WINDOW));
+			while (mb.remaining() >= HEADER) {
+				int start = mb.position();
+				byte type = mb.get();
+				int klen = mb.getInt(), vlen = mb.getInt();
+				if ((type != 'P' && type != 'R') || klen < 0 || vlen < 0)
+					return pos + start;	// corrupt, stop here
+				if (mb.remaining() < (long) klen + vlen) {
+					mb.position(start); break;
+				}
+				if (tmp.length < Math.max(klen, vlen))
+					tmp = new byte[Math.max(klen, vlen)];
+				mb.get(tmp, 0, klen);
+				String key = new String(tmp, 0, klen, CHARSET);
+				if (type == 'P') {
+					mb.get(tmp, 0, vlen);
+					store.put(key, new String(tmp, 0, vlen, CHARSET));
+				} else {
+					store.remove(key);
+				}
+			}
+			if (mb.position() == 0) break;	// incomplete last record
+			pos += mb.position();
+		}
+		return pos;
+	}
+
+	/** Append a put record. */
+	public void put(String key, String val) throws IOException {
+		append((byte) 'P', key, val);
+	}
+
+	/** Append a remove record. */
+	public void remove(String key) throws IOException {
+		append((byte) 'R', key, "");
+	}
+
+	/** Return the current length of the log file in bytes. */
+	public synchronized long size() throws IOException { return chan.size(); }
+
+	/** Force the records appended since the last call to disk. The
+	 *  force is made without holding the log lock, so appends go on
+	 *  meanwhile.
+	 */
+	public void sync() throws IOException {
+		FileChannel c;
+		synchronized (this) {
+			if (!dirty) return;
+			dirty = false; c = chan;
+		}
+		try {
+			c.force(false);
+		} catch(ClosedChannelException e) {
+			// replaced by a compaction, which forced the new file
+		} catch(IOException e) {
+			synchronized (this) { broken = true; }
+			throw e;
+		}
+	}
+
+	/** Test if the log has grown enough to be worth compacting:
+	 *  at least 1 MB, and twice its size after the last compaction;
+	 *  or if it is broken, and only a compaction can repair it.
+	 */
+	public synchronized boolean needsCompaction() throws IOException {
+		if (broken) return true;
+		long size = chan.size();
+		return size >= (1 << 20) && size >= 2 * liveSize;
+	}
+
+	/** Rewrite the log with one put record per pair in a store.
+	 *  The store's pairs are written to a temporary file without
+	 *  holding the log lock, so appends continue meanwhile; those
+	 *  appends are also kept aside and written at the end of the
+	 *  temporary file, which then replaces the log.
+	 *  @param store is the store whose contents the log describes
+	 */
+	public void compact(MapStore store) throws IOException {
+		compact(store, null);
+	}
+
+	/** Rewrite the log with one put record per pair in a store.
+	 *  @param store is the store whose contents the log describes
+	 *  @param started is run once appends are kept aside, before the
+	 *  store is read; it waits for changes appended to the old log only
+	 *  to be made to the store, or null if changes are made first
+	 */
+	public void compact(MapStore store, Runnable started) throws IOException {
+		synchronized (this) {
+			if (pending != null) return;	// already compacting
+			pending = new ByteArrayOutputStream();
+		}
+		if (started != null) started.run();
+		Path tmpPath = Paths.get(path + ".tmp");
+		FileChannel tmp = FileChannel.open(tmpPath,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			final BufferedOutputStream out = new BufferedOutputStream(
+					Channels.newOutputStream(tmp), 1 << 16);
+			final ByteBuffer rec = ByteBuffer.allocate(4096);
+			final IOException[] err = new IOException[1];
+			store.forEach((key, val) -> {
+				if (err[0] != null) return;
+				try {
+					ByteBuffer b = encode(rec, (byte) 'P', key, val);
+					out.write(b.array(), 0, b.limit());
+				} catch(IOException e) { err[0] = e; }
+			});
+			if (err[0] != null) throw err[0];
+			out.flush();
+
+			synchronized (this) {
+				// a batch being written goes to the old file;
+				// after a failure, wait for the appends that
+				// fail with it to return
+				while (writing || (broken && waiters > 0)) idle();
+				tmp.write(ByteBuffer.wrap(pending.toByteArray()));
+				tmp.force(true);
+				Files.move(tmpPath, path,
+					   StandardCopyOption.REPLACE_EXISTING,
+					   StandardCopyOption.ATOMIC_MOVE);
+				chan.close();
+				chan = tmp; tmp = null;
+				liveSize = chan.size();
+				dirty = false;
+				if (broken) { broken = false; written = appended; }
+			}
+		} finally {
+			synchronized (this) { pending = null; }
+			if (tmp != null) tmp.close();
+		}
+	}
+
+	/** Force all appended records to disk and close the log. */
+	public synchronized void close() throws IOException {
+		while (writing) idle();
+		chan.force(true);
+		chan.close();
+	}
+
+	/** Append one record to the batch, and return once it has been
+	 *  written, writing the batch if no other thread is.
+	 */
+	private void append(byte type, String key, String val) throws IOException {
+		long mine;
+		synchronized (this) {
+			if (broken) throw new IOException("log broken by an earlier failure");
+			buf = encode(buf, type, key, val);
+			int n = buf.limit();
+			if (batchLen + n > batch.length)
+				batch = Arrays.copyOf(batch, Math.max(2 * batch.length, batchLen + n));
+			System.arraycopy(buf.array(), 0, batch, batchLen, n);
+			batchLen += n;
+			mine = appended += n;
+		}
+		while (true) {
+			byte[] out; int len; FileChannel c;
+			synchronized (this) {
+				waiters++;
+				while (writing && written < mine && !broken) idle();
+				waiters--;
+				if (broken) notifyAll();	// for compact()
+				if (written >= mine) return;
+				if (broken) throw new IOException("log write failed");
+				writing = true;
+				out = batch; len = batchLen; c = chan;
+				batch = spare; batchLen = 0; spare = null;
+			}
+			boolean ok = false;
+			try {
+				ByteBuffer b = ByteBuffer.wrap(out, 0, len);
+				while (b.hasRemaining()) c.write(b);
+				if (fsync == FSYNC_ALWAYS) c.force(false);
+				ok = true;
+			} finally {
+				synchronized (this) {
+					writing = false; spare = out;
+					if (ok) {
+						written += len;
+						if (fsync != FSYNC_ALWAYS) dirty = true;
+						if (pending != null) pending.write(out, 0, len);
+					} else {
+						// the records in batch fail too
+						broken = true; batchLen = 0;
+					}
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/** Wait for a change in the state of the writes; the caller holds
+	 *  the lock. Interrupts are ignored, as an append whose record is
+	 *  in the batch cannot be taken back.
+	 */
+	private void idle() {
+		try { wait(); } catch(InterruptedException e) { }
+	}
+
+	/** Encode one record.
+	 *  @param b is a heap buffer to encode into, if it is large enough
+	 *  @return the buffer holding the record, ready to be read
+	 */
+	static ByteBuffer encode(ByteBuffer b, byte type,
+					 String key, String val) {
+		int klen = key.length(), vlen = val.length();
+		if (b.capacity() < HEADER + klen + vlen)
+			b = ByteBuffer.allocate(2 * (HEADER + klen + vlen));
+		b.clear();
+		b.put(type).putInt(klen).putInt(vlen);
+		for (int i = 0; i < klen; i++) b.put((byte) key.charAt(i));
+		for (int i = 0; i < vlen; i++) b.put((byte) val.charAt(i));
+		b.flip();
+		return b;
+	}
+}
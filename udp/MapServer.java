@@ -1,5 +1,6 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
 
 /**
@@ -8,33 +9,100 @@ import java.util.*;
  *
  * A server that stores string pairs and waits for requests
  *
- * To use the MapServer, type java MapServer [portNumber]
+ * To use the MapServer, type java MapServer [portNumber] [numWorkers] [store=offheap]
+ *                                          [log=file] [cache=MB] [index=sorted]
+ *                                          [snapshot=file] [stats=N] [fsync=always|everysec|no]
  * Note: if [portNumber] is not provided, the server will use default value 30123
+ * if [numWorkers] is provided, requests are served by that many threads, each
+ * with its own socket bound to the port (0 means one thread per core);
+ * otherwise a single thread serves all requests
+ * if store=offheap is given, the pairs are stored as raw bytes outside the
+ * Java heap (see OffHeapMapStore), which suits very large numbers of pairs
+ * if snapshot=file is given, the pairs are loaded from the snapshot file at
+ * startup if it exists, and the snapshot command writes a point-in-time copy
+ * of the pairs to it in the background (see SnapshotMapStore); if a log is
+ * also given and is not empty, the pairs are restored from the log instead,
+ * and a new log starts with the pairs loaded from the snapshot
+ * if index=sorted is given, the keys are also kept in a sorted index (see
+ * IndexedMapStore), and the range and prefix commands are accepted
+ * if log=file is given, the pairs are restored from the log file at startup
+ * and every change is appended to it (see MapLog), so the pairs survive
+ * a restart; a change that cannot be appended is not made, and is answered
+ * "error:change not logged"
+ * fsync=always|everysec|no says how soon appended changes are forced to
+ * disk, so that they also survive a crash of the machine: before each reply,
+ * about once a second (the default), or when the operating system chooses
+ * if cache=MB is given, the pairs form a cache of about MB megabytes: least
+ * recently used pairs are removed to stay within that size (0 for no bound),
+ * and putex stores pairs that are removed after the given number of seconds
+ * (see CacheMapStore); putex is only accepted with this option. Times to
+ * live are kept in memory only: the log and snapshots hold a putex pair as a
+ * plain pair, so after a restart with log= or snapshot= it never expires
+ * if stats=N is given, a summary of the request statistics is printed every
+ * N seconds; the same summary is the reply to the "stats" command, and it
+ * ends with the state of the last snapshot, if any
  *
  * The server waits for UDP requests to add or retrieve string pairs (str1, str2)
- * stored in the HashMap by the server
+ * stored in a MapStore by the server
  *
  * The server will accept UPD packets with a payload of ASCII strings with command
- * (get, put, remove). The colon character is used as a delimiter.
- * The commands are formatted as follow:
+ * (get, put, remove, mget, mput, mremove). The colon character is used as a
+ * delimiter. The commands are formatted as follow:
  * get: the key string
  * put: key string : corresponding value
+ * putex: seconds : key string : corresponding value
  * remove: key string
+ * mget: key1 \n key2 \n ... \n keyn
+ * mput: key1 : val1 \n key2 : val2 \n ... \n keyn : valn
+ * mremove: key1 \n key2 \n ... \n keyn
+ * range: limit : from : to
+ * prefix: limit : prefix [: from]
+ * stats
+ * snapshot
  *
  * The server will reponse with the following payloads
  * Command     If Found      Payload
  *  get          yes         ok:val     
  *               no          no match
- *  put          yes         updated: str
+ *  put, putex   yes         updated: str
  *               no          ok
  * remove        yes         ok
  *               no          no match
+ *  range,       -           next:key::key1:val1:: ... ::keyn:valn
+ *  prefix
+ *  snapshot     -           ok, or snapshot in progress
+ *  stats        -           request counts, hits, misses, errors and
+ *                           latency percentiles per command (see MapStats)
+ * mget, mput and mremove perform one get, put or remove per line and reply
+ * with the payloads of those operations, one per line, in the same order.
+ * If the replies would not fit in one packet, only the first operations are
+ * performed; the client can tell from the number of reply lines and should
+ * send the remaining operations again. mget answers a value that contains a
+ * newline with "error:value spans lines"; a plain get returns it whole.
+ * "range" and "prefix" return up to limit pairs in key order, with from <= key
+ * < to (to may be empty for no bound) or with keys starting with prefix, as
+ * many as fit in one packet; the reply names the key to pass as from to
+ * continue, empty once all are returned. They need index=sorted.
  * If the server receives a packet that is not well-formed, it will reply
  * error: unrecognizable input: copy of the input's packet payload
+ * A text request may be prefixed with tag:id: where id is a number; the reply
+ * is then prefixed with the same tag:id:, so that clients with many requests
+ * outstanding can match replies to requests (see AsyncMapClient).
+ * A packet whose first byte is BinaryProtocol.MAGIC holds a length-prefixed
+ * binary request instead (see BinaryProtocol), whose key and value may
+ * contain any bytes; it is answered with a binary reply.
  *
  **/
  
 public class MapServer {
+	// largest payload that fits in a UDP datagram, and so the largest
+	// request or reply
+	static final int MAX_REPLY = 65507;
+
+	// socket receive buffer size requested, so that bursts of requests
+	// from clients with many requests outstanding are not dropped
+	static final int RCVBUF = 1 << 22;
+
 	public static void main(String args[]) throws Exception {
         //check if additional port number argument is given for the server
 		int serverPort = 30123;
@@ -42,14 +110,81 @@ public class MapServer {
             serverPort = Integer.parseInt(args[0]);
         }
 
+		//create a store for the pairs; with store=offheap the pairs are
+		//kept outside the Java heap
+		MapStore pairs = new StripedMapStore();
+		if("offheap".equals(option(args, "store"))){
+			pairs = new OffHeapMapStore();
+		}
+
+		//with snapshot=file, load the pairs from the snapshot file if it
+		//exists, and let the snapshot command write a new one; a log that
+		//is not empty holds all the pairs, and removes made since the
+		//snapshot, so then the pairs are restored from the log alone
+		String logFile = option(args, "log");
+		boolean logged = logFile != null && new File(logFile).length() > 0;
+		String snapshotFile = option(args, "snapshot");
+		if(snapshotFile != null){
+			pairs = new SnapshotMapStore(pairs, snapshotFile, !logged);
+		}
+
+		//with index=sorted, also keep the keys in order for range scans;
+		//the index wraps the base store so that every change reaches it,
+		//including those made while loading a snapshot
+		if("sorted".equals(option(args, "index"))){
+			pairs = new IndexedMapStore(pairs);
+		}
+
+		//if a log file is given, restore the pairs from it and log every
+		//change; fsync= says how soon the changes are forced to disk
+		if(logFile != null){
+			String fsync = option(args, "fsync");
+			int policy = MapLog.FSYNC_EVERYSEC;
+			if("always".equals(fsync)){
+				policy = MapLog.FSYNC_ALWAYS;
+			}else if("no".equals(fsync)){
+				policy = MapLog.FSYNC_NO;
+			}
+			pairs = new LoggedMapStore(pairs, logFile, 10, policy);
+		}
+
+		//if a cache size is given, bound the memory used by the pairs
+		//and let them expire; evictions and expiries are logged as removes
+		String cacheMB = option(args, "cache");
+		if(cacheMB != null){
+			pairs = new CacheMapStore(pairs, Long.parseLong(cacheMB) << 20);
+		}
+
+		//record every request; with stats=N, print a summary every N seconds
+		MapStats stats = new MapStats();
+		//the summary ends with the state of snapshots
+		stats.setStatus(pairs::status);
+		String statsSecs = option(args, "stats");
+		if(statsSecs != null){
+			stats.dumpEvery(Integer.parseInt(statsSecs));
+		}
+
+		//if a number of workers is given, serve requests with several threads
+		if(args.length > 1 && args[1].indexOf('=') < 0){
+			int numWorkers = Integer.parseInt(args[1]);
+			if(numWorkers <= 0){
+				numWorkers = Runtime.getRuntime().availableProcessors();
+			}
+			runWorkers(serverPort, numWorkers, pairs, stats);
+			return;
+		}
+
 		//open datagram socket on port
 		DatagramSocket sock = new DatagramSocket(serverPort);
+		sock.setReceiveBufferSize(RCVBUF);
 
-		//create a hashmap to store pairs
-		HashMap<String, String> pairs = new HashMap<String, String>();
+		//create parsers for text and binary requests that write replies
+		//into reusable buffers
+		MapProtocol proto = new MapProtocol(pairs, false, MAX_REPLY, stats);
+		BinaryProtocol bin = new BinaryProtocol(pairs, true, stats);
 
-		//create two packets sharing common buffer
-		byte[] buf = new byte[3000];
+		//create two packets, one for requests and one for replies
+		byte[] buf = new byte[MAX_REPLY];
 		DatagramPacket inPkt = new DatagramPacket(buf, buf.length);
         DatagramPacket outPkt = new DatagramPacket(buf, buf.length);
 	
@@ -60,58 +195,75 @@ public class MapServer {
         	inPkt.setData(buf);
         	sock.receive(inPkt);
 
-            //read command info and split
-        	String command = new String(buf, 0, inPkt.getLength(), "US-ASCII");
-        	String[] split = command.split(":", 2);
-        	String reply = "";
-
-        	//check if command is well-formed, build reply message
-        	if(split.length != 2){
-        		reply += "error:unrecognizable input:"+command;
-        	}else{
-        		String cmdName = split[0];
-				//check command name and perform corresponding operation
-        		if(cmdName.equals("get")){
-				    String ans = pairs.get(split[1]);
-        			if(ans != null){
-        				reply += "ok:" + ans;
-        			}else{
-        				reply += "no match";
-        			}
-        		}else if(cmdName.equals("put")){
-        			String[] splitParam = split[1].split(":",2);
-					if(splitParam.length == 2){
-					   //if the key is already in the hashmap, update the value
-        			   if(pairs.containsKey(splitParam[0])){
-        				   pairs.remove(splitParam[0]);
-        				   pairs.put(splitParam[0], splitParam[1]);
-        				   reply += "updated:" + splitParam[0];
-        			    }else{
-        				   pairs.put(splitParam[0], splitParam[1]);
-        				   reply += "ok";
-        			    }
-					}else{
-					    reply += "error:unrecognizable input:"+command;
-					}
-        		}else if(cmdName.equals("remove")){
-        			if(pairs.containsKey(split[1])){
-        				pairs.remove(split[1]);
-        				reply += "ok";
-        			}else{
-        				reply += "no match";
-        			}
-        		}else{
-        		    reply += "error:unrecognizable input:"+command;
-        		}
-        	}
-            
+            //parse command in place and build reply; a packet starting
+            //with the binary magic byte holds a binary frame
+            int len = inPkt.getLength();
+            if(len > 0 && buf[0] == BinaryProtocol.MAGIC){
+                bin.process(buf, 1, len - 1);
+                outPkt.setData(bin.reply(), 0, Math.min(bin.replyLength(), MAX_REPLY));
+            }else{
+                proto.process(buf, 0, len);
+                outPkt.setData(proto.reply(), 0, proto.replyLength());
+            }
+
             //send packet
             outPkt.setAddress(inPkt.getAddress());
             outPkt.setPort(inPkt.getPort());
-        	outPkt.setData(reply.getBytes("US-ASCII"));
-        	sock.send(outPkt);
+            try{
+                sock.send(outPkt);
+            }catch(IOException e){
+                //a reply that cannot be sent must not stop the server
+                System.err.println("MapServer: send error " + e);
+            }
 
         }
 
 	}
-}
\ No newline at end of file
+
+	/** Find an option of the form name=value among the arguments.
+	 *  @param args is the list of command line arguments
+	 *  @param name is the option name
+	 *  @return the option value, or null if the option is not given
+	 */
+	static String option(String[] args, String name){
+		for(int i=1; i<args.length; i++){
+			if(args[i].startsWith(name + "=")){
+				return args[i].substring(name.length() + 1);
+			}
+		}
+		return null;
+	}
+
+	/** Serve requests with several worker threads sharing one store.
+	 *  Each worker gets its own channel bound to the port with
+	 *  SO_REUSEPORT, so the kernel balances datagrams over the workers.
+	 *  If the platform does not support SO_REUSEPORT, all workers share
+	 *  a single channel instead.
+	 *  @param serverPort is the port number to bind
+	 *  @param numWorkers is the number of worker threads
+	 *  @param pairs is the store holding the pairs
+	 *  @param stats is the object to record requests in
+	 */
+	static void runWorkers(int serverPort, int numWorkers, MapStore pairs,
+			       MapStats stats) throws Exception {
+		UdpWorker[] workers = new UdpWorker[numWorkers];
+		DatagramChannel probe = DatagramChannel.open();
+		boolean reusePort = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		probe.close();
+
+		DatagramChannel shared = null;
+		if(!reusePort){
+			shared = DatagramChannel.open();
+			shared.setOption(StandardSocketOptions.SO_RCVBUF, RCVBUF);
+			shared.bind(new InetSocketAddress(serverPort));
+		}
+		for(int i=0; i<numWorkers; i++){
+			DatagramChannel chan = (shared != null ? shared : UdpWorker.openShared(serverPort));
+			workers[i] = new UdpWorker(chan, pairs, stats);
+			workers[i].start();
+		}
+		for(int i=0; i<numWorkers; i++){
+			workers[i].join();
+		}
+	}
+}
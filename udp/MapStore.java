@@ -0,0 +1,144 @@
+/** Key/value store used by the map servers.
+ *
+ *  A MapStore holds (key,value) string pairs and may be shared by
+ *  several threads serving requests at the same time. Every method is
+ *  a single atomic operation on one key, so a request never needs a
+ *  containsKey/remove/put sequence to decide how to reply.
+ */
+
+import java.util.function.*;
+
+public interface MapStore {
+	/** Look up a key.
+	 *  @param key is the key to look up
+	 *  @return the value paired with key, or null if there is none
+	 */
+	String get(String key);
+
+	/** Add a pair, replacing any existing value for the key.
+	 *  @param key is the key of the pair
+	 *  @param val is the new value
+	 *  @return the previous value, or null if the key was not present
+	 */
+	String put(String key, String val);
+
+	/** Add a pair that expires after a given time, replacing any
+	 *  existing value for the key. Stores that do not support expiry
+	 *  throw UnsupportedOperationException.
+	 *  @param key is the key of the pair
+	 *  @param val is the new value
+	 *  @param ttlMillis is the number of milliseconds after which the
+	 *  pair is removed; must be positive
+	 *  @return the previous value, or null if the key was not present
+	 */
+	default String put(String key, String val, long ttlMillis) {
+		throw new UnsupportedOperationException("expiry not supported");
+	}
+
+	/** Add a pair only if the key is not present yet.
+	 *  @param key is the key of the pair
+	 *  @param val is the value to store
+	 *  @return the existing value (which is left unchanged),
+	 *  or null if the pair was added
+	 */
+	String putIfAbsent(String key, String val);
+
+	/** Replace the value of a key only if the key is present.
+	 *  @param key is the key of the pair
+	 *  @param val is the new value
+	 *  @return the previous value, or null if the key was not present
+	 *  (in which case nothing is stored)
+	 */
+	String replace(String key, String val);
+
+	/** Remove a pair.
+	 *  @param key is the key of the pair to remove
+	 *  @return the removed value, or null if the key was not present
+	 */
+	String remove(String key);
+
+	/** Return the number of stored pairs. */
+	int size();
+
+	/** Return true if no pairs are stored. */
+	boolean isEmpty();
+
+	/** Apply an action to every stored pair.
+	 *  The iteration is weakly consistent: pairs added or removed while
+	 *  it runs may or may not be seen. The action must not call back
+	 *  into the store.
+	 *  @param action is called once with each key and its value
+	 */
+	void forEach(BiConsumer<String, String> action);
+
+	/** Apply an action to a bounded batch of stored pairs, continuing
+	 *  an iteration from a cursor. Start with cursor 0 and pass the
+	 *  returned cursor to the next call, until 0 is returned. Pairs
+	 *  present for the whole iteration and not modified meanwhile are
+	 *  visited exactly once; others may be missed or seen twice. The
+	 *  action must not call back into the store.
+	 *  @param cursor is 0 to start, or the cursor returned by the
+	 *  previous call
+	 *  @param count is the maximum number of pairs to visit
+	 *  @param action is called once with each key and its value
+	 *  @return the cursor to continue from, or 0 if all pairs have been
+	 *  visited
+	 */
+	long scan(long cursor, int count, BiConsumer<String, String> action);
+
+	/** Apply an action to every pair of one part of the store,
+	 *  continuing an iteration over the parts from a cursor. Start with
+	 *  cursor 0 and pass the returned cursor to the next call, until 0
+	 *  is returned. Each part is visited in a single pass, so that going
+	 *  over the whole store costs time in proportion to its size, but a
+	 *  part may hold many pairs. The iteration is weakly consistent, as
+	 *  for forEach(). The action must not call back into the store. The
+	 *  default visits a batch of scan(), for stores whose scan() resumes
+	 *  in time in proportion to the batch.
+	 *  @param cursor is 0 to start, or the cursor returned by the
+	 *  previous call
+	 *  @param action is called once with each key and its value
+	 *  @return the cursor to continue from, or 0 if all parts have been
+	 *  visited
+	 */
+	default long forEachPart(long cursor, BiConsumer<String, String> action) {
+		return scan(cursor, 4096, action);
+	}
+
+	/** Apply an action to the pairs whose keys lie in a range, in
+	 *  increasing key order, until the action declines a pair. Keys are
+	 *  compared as Strings, which for ISO-8859-1 keys is the order of
+	 *  their bytes. The iteration is weakly consistent, as for forEach().
+	 *  Stores that keep no sorted index throw
+	 *  UnsupportedOperationException.
+	 *  @param from is the lowest key in the range
+	 *  @param to is the key just past the range, or null if the range
+	 *  has no upper bound
+	 *  @param action is called with each key and its value, and returns
+	 *  false to decline the pair and end the iteration
+	 *  @return the key of the declined pair, from which the iteration can
+	 *  be continued, or null if every pair in the range was visited
+	 */
+	default String range(String from, String to, BiPredicate<String, String> action) {
+		throw new UnsupportedOperationException("no sorted index");
+	}
+
+	/** Start writing a point-in-time copy of the pairs to the store's
+	 *  snapshot file in the background. Stores that cannot take
+	 *  snapshots throw UnsupportedOperationException.
+	 *  @return true if the snapshot was started, false if one is
+	 *  already being written
+	 */
+	default boolean snapshot() {
+		throw new UnsupportedOperationException("snapshots not supported");
+	}
+
+	/** Describe the state of the store's background work, such as
+	 *  snapshots or replication, for the server's stats summary. A
+	 *  store that wraps another adds its own sections to those of the
+	 *  wrapped store.
+	 *  @return sections of the form "name key=val ...", separated by
+	 *  " | ", or an empty string if there is nothing to report
+	 */
+	default String status() { return ""; }
+}
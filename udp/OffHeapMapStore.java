@@ -0,0 +1,459 @@
+/** Off-heap implementation of MapStore.
+ *
+ *  Keys and values are kept as raw ISO-8859-1 bytes in direct
+ *  ByteBuffers, outside the Java heap, so tens of millions of pairs
+ *  cost the garbage collector nothing to trace, and a pair costs a few
+ *  bytes of overhead rather than the 100 or more of a HashMap entry
+ *  with two Strings. Strings are only created for the keys and values
+ *  handed back to callers.
+ *
+ *  As in StripedMapStore, pairs are spread over segments by key hash,
+ *  each guarded by its own lock. A segment has two buffers:
+ *
+ *    slots   an open-addressing hash table with linear probing; each
+ *            slot holds the key hash (4 bytes) and the offset + 1 of
+ *            the pair's record in the data buffer (4 bytes, 0 = free)
+ *    data    the records, each laid out as key length (4), value
+ *            length (4), key bytes, value bytes
+ *
+ *  Records are appended; a record replaced or removed becomes garbage.
+ *  When the data buffer is full, it is compacted if at least half of
+ *  it is garbage and doubled in size otherwise. Removal shifts later
+ *  slots of the probe sequence back, so the table has no tombstones.
+ *
+ *  The home slot of a pair is given by the bits of its hash just below
+ *  those that pick the segment, so home slots follow the order of the
+ *  hashes, and a pair sits in the run of used slots from its home slot
+ *  on. scan() uses a hash as its cursor, which neither resizing nor
+ *  removal moves, and resumes at the cursor's home slot, so a batch
+ *  costs time in proportion to its size rather than to the segment's.
+ *
+ *  Only ISO-8859-1 strings can be stored, one byte per char; put() and
+ *  the like reject other keys and values with IllegalArgumentException,
+ *  and get() and remove() find no pair for such a key.
+ */
+
+import java.nio.*;
+import java.util.function.*;
+
+public class OffHeapMapStore implements MapStore {
+	private static final int MAX_DATA = 1 << 30; // max data bytes per segment
+
+	private Segment[] segments;
+	private int segShift;	// shift giving a segment number from a hash
+
+	/** Initialize a new store with 64 segments. */
+	public OffHeapMapStore() { this(64); }
+
+	/** Initialize a new store.
+	 *  @param stripes is the minimum number of segments; it is rounded
+	 *  up to a power of 2
+	 */
+	public OffHeapMapStore(int stripes) {
+		int bits = 0;
+		while ((1 << bits) < stripes) bits++;
+		segments = new Segment[1 << bits];
+		for (int i = 0; i < segments.length; i++)
+			segments[i] = new Segment(bits);
+		segShift = 32 - bits;
+	}
+
+	/** Hash a key, mixing all bits of its String hash so that the top
+	 *  bits (segment number, then home slot) are well spread.
+	 */
+	private static int hash(String key) {
+		int h = key.hashCode() * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	private Segment segmentFor(int h) {
+		return (segShift == 32 ? segments[0] : segments[h >>> segShift]);
+	}
+
+	/** Test if a string has only ISO-8859-1 chars. */
+	private static boolean latin1(String s) {
+		for (int i = 0; i < s.length(); i++)
+			if (s.charAt(i) > 0xff) return false;
+		return true;
+	}
+
+	private static void check(String key, String val) {
+		if (!latin1(key) || !latin1(val))
+			throw new IllegalArgumentException("not an ISO-8859-1 string");
+	}
+
+	public String get(String key) {
+		if (!latin1(key)) return null;
+		int h = hash(key);
+		Segment seg = segmentFor(h);
+		synchronized (seg) { return seg.get(key, h); }
+	}
+
+	public String put(String key, String val) {
+		check(key, val);
+		int h = hash(key);
+		Segment seg = segmentFor(h);
+		synchronized (seg) { return seg.put(key, h, val, true, true); }
+	}
+
+	public String putIfAbsent(String key, String val) {
+		check(key, val);
+		int h = hash(key);
+		Segment seg = segmentFor(h);
+		synchronized (seg) { return seg.put(key, h, val, false, true); }
+	}
+
+	public String replace(String key, String val) {
+		check(key, val);
+		int h = hash(key);
+		Segment seg = segmentFor(h);
+		synchronized (seg) { return seg.put(key, h, val, true, false); }
+	}
+
+	public String remove(String key) {
+		if (!latin1(key)) return null;
+		int h = hash(key);
+		Segment seg = segmentFor(h);
+		synchronized (seg) { return seg.remove(key, h); }
+	}
+
+	public int size() {
+		int n = 0;
+		for (Segment seg : segments) {
+			synchronized (seg) { n += seg.count; }
+		}
+		return n;
+	}
+
+	public boolean isEmpty() { return size() == 0; }
+
+	public void forEach(BiConsumer<String, String> action) {
+		for (Segment seg : segments) {
+			synchronized (seg) { seg.visit(0, Integer.MAX_VALUE, action); }
+		}
+	}
+
+	/** Visit a batch of pairs.
+	 *  Within a segment, pairs are visited in the order of their hash,
+	 *  taken as unsigned, rather than of their slot, which resize() and
+	 *  remove() change. The cursor holds the segment number in its upper
+	 *  32 bits and the lowest hash not yet visited in its lower 32 bits;
+	 *  a batch starts at that hash's home slot.
+	 */
+	public long scan(long cursor, int count, BiConsumer<String, String> action) {
+		int segNum = (int) (cursor >>> 32);
+		long from = cursor & 0xffffffffL;
+		while (segNum < segments.length && count > 0) {
+			Segment seg = segments[segNum];
+			synchronized (seg) {
+				from = seg.scan(from, count, action);
+				count -= seg.visited;
+			}
+			if (from >= 0) break;
+			segNum++; from = 0;
+		}
+		if (segNum >= segments.length) return 0;
+		return ((long) segNum << 32) | from;
+	}
+
+	/** Return the number of bytes of direct memory held by the store. */
+	public long offHeapBytes() {
+		long n = 0;
+		for (Segment seg : segments) {
+			synchronized (seg) {
+				n += seg.slots.capacity() + seg.data.capacity();
+			}
+		}
+		return n;
+	}
+
+	/** One segment of the store; callers hold its lock. */
+	private static class Segment {
+		ByteBuffer slots;	// hash and record offset + 1 per slot
+		int mask;		// number of slots - 1
+		int segBits;		// bits of a hash that pick the segment
+		int slotShift;		// 32 - bits of a hash that pick the slot
+		int count;		// number of pairs
+		ByteBuffer data;	// records
+		int used;		// bytes of data in use, including garbage
+		int garbage;		// bytes of data held by dead records
+		byte[] kbuf = new byte[64];	// bytes of the key being looked up
+		int klen;		// length of the key in kbuf
+		int visited;		// number of pairs visited by last visit() or scan()
+
+		Segment(int segBits) {
+			slots = ByteBuffer.allocateDirect(16 * 8); mask = 15;
+			this.segBits = segBits; slotShift = 28;
+			data = ByteBuffer.allocateDirect(4096);
+		}
+
+		/** Return the home slot of a hash: the first slot probed. */
+		private int home(int h) { return (h << segBits) >>> slotShift; }
+
+		private int slotHash(int i) { return slots.getInt(i << 3); }
+		private int slotRef(int i) { return slots.getInt((i << 3) + 4); }
+		private void setSlot(int i, int h, int ref) {
+			slots.putInt(i << 3, h); slots.putInt((i << 3) + 4, ref);
+		}
+
+		/** Find a key's slot.
+		 *  Leaves the key's bytes in kbuf.
+		 *  @return the slot holding the key, or -(free slot) - 1 if the
+		 *  key is not present
+		 */
+		int find(String key, int h) {
+			klen = key.length();
+			if (kbuf.length < klen) kbuf = new byte[2 * klen];
+			for (int i = 0; i < klen; i++) kbuf[i] = (byte) key.charAt(i);
+
+			int i = home(h);
+			while (true) {
+				int ref = slotRef(i);
+				if (ref == 0) return -i - 1;
+				if (slotHash(i) == h && keyEquals(ref - 1)) return i;
+				i = (i + 1) & mask;
+			}
+		}
+
+		/** Test if the record at off has the key in kbuf. */
+		private boolean keyEquals(int off) {
+			if (data.getInt(off) != klen) return false;
+			for (int i = 0; i < klen; i++)
+				if (data.get(off + 8 + i) != kbuf[i]) return false;
+			return true;
+		}
+
+		private int recordLength(int off) {
+			return 8 + data.getInt(off) + data.getInt(off + 4);
+		}
+
+		private String key(int off) {
+			return string(off + 8, data.getInt(off));
+		}
+
+		private String value(int off) {
+			return string(off + 8 + data.getInt(off), data.getInt(off + 4));
+		}
+
+		private String string(int off, int len) {
+			char[] c = new char[len];
+			for (int i = 0; i < len; i++) c[i] = (char) (data.get(off + i) & 0xff);
+			return new String(c);
+		}
+
+		String get(String key, int h) {
+			int s = find(key, h);
+			return (s < 0 ? null : value(slotRef(s) - 1));
+		}
+
+		/** Store a pair.
+		 *  @param ifPresent is true if an existing value is replaced
+		 *  @param ifAbsent is true if a missing key is added
+		 *  @return the previous value, or null if the key was absent
+		 */
+		String put(String key, int h, String val,
+			   boolean ifPresent, boolean ifAbsent) {
+			int s = find(key, h);
+			if (s >= 0) {
+				int off = slotRef(s) - 1;
+				String old = value(off);
+				if (!ifPresent) return old;
+				// the old record is live until the slot moves off it,
+				// since append() may compact the data and keep it
+				int len = recordLength(off);
+				setSlot(s, h, append(val) + 1);
+				garbage += len;
+				return old;
+			}
+			if (!ifAbsent) return null;
+			if (count + 1 > (mask + 1) * 3 / 5) {
+				resize();
+				s = find(key, h);
+			}
+			setSlot(-s - 1, h, append(val) + 1);
+			count++;
+			return null;
+		}
+
+		String remove(String key, int h) {
+			int s = find(key, h);
+			if (s < 0) return null;
+			int off = slotRef(s) - 1;
+			String old = value(off);
+			garbage += recordLength(off);
+			count--;
+
+			// shift back later slots whose probe sequence
+			// passes through the freed slot
+			int free = s;
+			int i = s;
+			while (true) {
+				i = (i + 1) & mask;
+				int ref = slotRef(i);
+				if (ref == 0) break;
+				int home = home(slotHash(i));
+				boolean movable = (free <= i ? (home <= free || home > i)
+							     : (home <= free && home > i));
+				if (movable) {
+					setSlot(free, slotHash(i), ref);
+					free = i;
+				}
+			}
+			setSlot(free, 0, 0);
+			return old;
+		}
+
+		/** Visit pairs starting at a slot.
+		 *  Sets visited to the number of pairs visited.
+		 *  @return the slot after the last one examined
+		 */
+		int visit(int slot, int max, BiConsumer<String, String> action) {
+			visited = 0;
+			while (slot <= mask && visited < max) {
+				int ref = slotRef(slot++);
+				if (ref == 0) continue;
+				action.accept(key(ref - 1), value(ref - 1));
+				visited++;
+			}
+			return slot;
+		}
+
+		/** Visit the pairs whose hash, taken as unsigned, is at least
+		 *  from, in increasing order of hash, stopping after max pairs
+		 *  but never between two pairs with the same hash. The slots
+		 *  are walked from the home slot of from, keeping the pairs
+		 *  with the lowest hashes in a max-heap, until a free slot past
+		 *  the home slot of the highest hash in a full heap: no pair
+		 *  with a lower hash can be beyond it. A run of used slots may
+		 *  wrap around from the last slot to the first; a pair whose
+		 *  home slot is past its slot is taken after the last slot.
+		 *  Sets visited to the number of pairs visited.
+		 *  @return the lowest hash not visited, or -1 if no pairs are
+		 *  left to visit
+		 */
+		long scan(long from, int max, BiConsumer<String, String> action) {
+			int n = Math.min(max, count + 1);
+			long[] hash = new long[n];
+			int[] ref = new int[n];
+			int size = 0;
+			for (int q = home((int) from); ; q++) {
+				int s = q & mask;
+				int r = slotRef(s);
+				if (r == 0) {
+					if (q > mask) break; // past the wrapped run
+					if (size == n && q > home((int) hash[0])) break;
+					continue;
+				}
+				int hs = slotHash(s);
+				long h = hs & 0xffffffffL;
+				if (h < from || (home(hs) > s) != (q > mask)) continue;
+				int i;
+				if (size < n) {
+					// sift up from a new leaf
+					for (i = size++; i > 0 && hash[(i - 1) / 2] < h; i = (i - 1) / 2) {
+						hash[i] = hash[(i - 1) / 2]; ref[i] = ref[(i - 1) / 2];
+					}
+				} else if (h < hash[0]) {
+					// replace the highest hash, and sift down
+					i = 0;
+					for (int c; (c = 2*i + 1) < size; i = c) {
+						if (c + 1 < size && hash[c + 1] > hash[c]) c++;
+						if (hash[c] <= h) break;
+						hash[i] = hash[c]; ref[i] = ref[c];
+					}
+				} else {
+					continue;
+				}
+				hash[i] = h; ref[i] = r;
+			}
+
+			visited = 0;
+			if (size < n) {
+				// the rest of the segment fits
+				for (int i = 0; i < size; i++)
+					action.accept(key(ref[i] - 1), value(ref[i] - 1));
+				visited = size;
+				return -1;
+			}
+			// visit the pairs below the highest hash in the heap, unless
+			// all of them have it; then visit every pair with that hash,
+			// all in the run from its home slot
+			long last = hash[0];
+			for (int i = 0; i < size; i++) {
+				if (hash[i] < last) {
+					action.accept(key(ref[i] - 1), value(ref[i] - 1));
+					visited++;
+				}
+			}
+			if (visited > 0) return last;
+			for (int s = home((int) last); slotRef(s) != 0; s = (s + 1) & mask) {
+				if ((slotHash(s) & 0xffffffffL) == last) {
+					int r = slotRef(s);
+					action.accept(key(r - 1), value(r - 1));
+					visited++;
+				}
+			}
+			return (last == 0xffffffffL ? -1 : last + 1);
+		}
+
+		/** Append a record of the key in kbuf and a value.
+		 *  @return the offset of the record
+		 */
+		private int append(String val) {
+			int vlen = val.length();
+			int need = 8 + klen + vlen;
+			if (used + need > data.capacity()) makeRoom(need);
+			int off = used;
+			data.putInt(off, klen); data.putInt(off + 4, vlen);
+			for (int i = 0; i < klen; i++) data.put(off + 8 + i, kbuf[i]);
+			for (int i = 0; i < vlen; i++)
+				data.put(off + 8 + klen + i, (byte) val.charAt(i));
+			used += need;
+			return off;
+		}
+
+		/** Make room for need more bytes of data, by compacting the
+		 *  live records into a new buffer of the same size if at
+		 *  least half of the data is garbage, or of twice the size
+		 *  otherwise.
+		 */
+		private void makeRoom(int need) {
+			long live = used - garbage;
+			long cap = data.capacity();
+			if (garbage * 2 < used) cap *= 2;
+			while (cap < live + need) cap *= 2;
+			if (cap > MAX_DATA)
+				throw new OutOfMemoryError("OffHeapMapStore segment full");
+
+			ByteBuffer nd = ByteBuffer.allocateDirect((int) cap);
+			ByteBuffer src = data.duplicate();
+			int pos = 0;
+			for (int i = 0; i <= mask; i++) {
+				int ref = slotRef(i);
+				if (ref == 0) continue;
+				int len = recordLength(ref - 1);
+				src.limit(ref - 1 + len).position(ref - 1);
+				nd.position(pos); nd.put(src);
+				setSlot(i, slotHash(i), pos + 1);
+				pos += len;
+			}
+			data = nd; used = pos; garbage = 0;
+		}
+
+		/** Double the number of slots and reinsert all pairs. */
+		private void resize() {
+			ByteBuffer old = slots;
+			int oldSize = mask + 1;
+			slots = ByteBuffer.allocateDirect(oldSize * 2 * 8);
+			mask = oldSize * 2 - 1; slotShift--;
+			for (int j = 0; j < oldSize; j++) {
+				int ref = old.getInt((j << 3) + 4);
+				if (ref == 0) continue;
+				int h = old.getInt(j << 3);
+				int i = home(h);
+				while (slotRef(i) != 0) i = (i + 1) & mask;
+				setSlot(i, h, ref);
+			}
+		}
+	}
+}
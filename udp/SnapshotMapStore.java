@@ -0,0 +1,203 @@
+/** MapStore that can write point-in-time snapshots of its pairs.
+ *
+ *  A SnapshotMapStore wraps another store. snapshot() starts a thread
+ *  that writes every pair to a snapshot file, as MapLog put records,
+ *  while requests continue to be served. The file holds the pairs as
+ *  they were when the snapshot started, even though the store changes
+ *  while it is written: during a snapshot, the first change to each key
+ *  saves the key's value (or its absence) aside before it is changed,
+ *  copy-on-write at the granularity of a pair. The writer goes through
+ *  the wrapped store with forEach(), skipping the keys with a saved
+ *  value; any other key has not changed since the start. At the end, it
+ *  writes the saved values. The cost to requests is one volatile read,
+ *  and during a snapshot, one lookup and one saved value per key
+ *  changed. forEach() locks one segment of the wrapped store at a time,
+ *  so requests to a segment wait while its pairs are copied out.
+ *
+ *  The file is written under a temporary name, forced to disk and then
+ *  renamed, so it always holds a complete snapshot. When the store is
+ *  created, the pairs of an existing snapshot file are loaded through
+ *  a memory mapping, as MapLog replays a log. A compacted log holds no
+ *  remove records, so it cannot be replayed on top of a snapshot taken
+ *  before it: a pair removed since would come back. A server with a
+ *  log that is not empty therefore restores from the log alone and
+ *  does not load the snapshot.
+ *
+ *  Changes that bypass this object are not seen, so it must wrap the
+ *  base store directly, below any IndexedMapStore, LoggedMapStore or
+ *  CacheMapStore.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+public class SnapshotMapStore implements MapStore {
+	// saved value of a key that was absent when the snapshot started
+	private static final String ABSENT = new String("absent");
+
+	private MapStore store;		// store holding the pairs
+	private Path path;		// snapshot file
+	// values at the start of the snapshot being written, of the keys
+	// changed since, or null if no snapshot is being written
+	private volatile ConcurrentHashMap<String, String> saved;
+	private boolean writing;	// a snapshot is being written
+	private String last = "state=none"; // outcome of the last snapshot
+
+	/** Initialize a store, loading the pairs of a snapshot file if it
+	 *  exists.
+	 *  @param store is the store to hold the pairs; normally empty
+	 *  @param fileName is the name of the snapshot file
+	 */
+	public SnapshotMapStore(MapStore store, String fileName) throws IOException {
+		this(store, fileName, true);
+	}
+
+	/** Initialize a store.
+	 *  @param store is the store to hold the pairs; normally empty
+	 *  @param fileName is the name of the snapshot file
+	 *  @param load is true to load the pairs of the snapshot file if it
+	 *  exists, false if the pairs are restored some other way
+	 */
+	public SnapshotMapStore(MapStore store, String fileName, boolean load)
+			throws IOException {
+		this.store = store;
+		path = Paths.get(fileName);
+		if (load && Files.exists(path)) {
+			try (FileChannel chan = FileChannel.open(path, StandardOpenOption.READ)) {
+				MapLog.replay(chan, store);
+			}
+		}
+	}
+
+	public String get(String key) { return store.get(key); }
+
+	public String put(String key, String val) {
+		save(key);
+		return store.put(key, val);
+	}
+
+	public String putIfAbsent(String key, String val) {
+		save(key);
+		return store.putIfAbsent(key, val);
+	}
+
+	public String replace(String key, String val) {
+		save(key);
+		return store.replace(key, val);
+	}
+
+	public String remove(String key) {
+		save(key);
+		return store.remove(key);
+	}
+
+	public int size() { return store.size(); }
+
+	public boolean isEmpty() { return store.isEmpty(); }
+
+	public void forEach(BiConsumer<String, String> action) {
+		store.forEach(action);
+	}
+
+	public long scan(long cursor, int count, BiConsumer<String, String> action) {
+		return store.scan(cursor, count, action);
+	}
+
+	public long forEachPart(long cursor, BiConsumer<String, String> action) {
+		return store.forEachPart(cursor, action);
+	}
+
+	public String range(String from, String to, BiPredicate<String, String> action) {
+		return store.range(from, to, action);
+	}
+
+	public synchronized boolean snapshot() {
+		if (writing) return false;
+		writing = true;
+		saved = new ConcurrentHashMap<String, String>();
+		Thread writer = new Thread(() -> {
+			long t0 = System.currentTimeMillis();
+			String outcome = "state=failed";
+			try {
+				long n = write();
+				outcome = "state=ok pairs=" + n + " ms="
+					  + (System.currentTimeMillis() - t0);
+			} catch(IOException e) {
+				System.err.println("SnapshotMapStore: snapshot failed " + e);
+			} finally {
+				synchronized (this) {
+					saved = null; writing = false; last = outcome;
+				}
+			}
+		});
+		writer.setDaemon(true);
+		writer.start();
+		return true;
+	}
+
+	public synchronized String status() {
+		String s = store.status();
+		return (s.isEmpty() ? "" : s + " | ") + "snapshot "
+		       + (writing ? "state=writing" : last);
+	}
+
+	/** Before a change to a key, save its value, if a snapshot is being
+	 *  written and the key has not changed since it started. Of several
+	 *  threads changing the key at once, the first to save wins; any
+	 *  other read the value after it was saved, so it loses nothing.
+	 */
+	private void save(String key) {
+		ConcurrentHashMap<String, String> s = saved;
+		if (s == null || s.containsKey(key)) return;
+		String val = store.get(key);
+		s.putIfAbsent(key, val == null ? ABSENT : val);
+	}
+
+	/** Write the snapshot to a temporary file, then rename it.
+	 *  @return the number of records written
+	 */
+	private long write() throws IOException {
+		final ConcurrentHashMap<String, String> s = saved;
+		Path tmpPath = Paths.get(path + ".tmp");
+		final long[] n = new long[1];
+		try (FileChannel tmp = FileChannel.open(tmpPath,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			final OutputStream out = new BufferedOutputStream(
+					Channels.newOutputStream(tmp), 1 << 16);
+			final ByteBuffer[] rec = { ByteBuffer.allocate(4096) };
+			final IOException[] err = new IOException[1];
+			// a key is saved before it changes, so a key found here
+			// without a saved value still has its value at the start
+			store.forEach((key, val) -> {
+				if (err[0] != null || s.containsKey(key)) return;
+				try {
+					rec[0] = MapLog.encode(rec[0], (byte) 'P', key, val);
+					out.write(rec[0].array(), 0, rec[0].limit());
+					n[0]++;
+				} catch(IOException e) { err[0] = e; }
+			});
+			if (err[0] != null) throw err[0];
+
+			// every key skipped above was saved before forEach()
+			// reached it; keys saved since were written above with
+			// the same value, and writing them again is harmless
+			for (Map.Entry<String, String> e : s.entrySet()) {
+				if (e.getValue() == ABSENT) continue;
+				rec[0] = MapLog.encode(rec[0], (byte) 'P', e.getKey(), e.getValue());
+				out.write(rec[0].array(), 0, rec[0].limit());
+				n[0]++;
+			}
+			out.flush();
+			tmp.force(true);
+		}
+		Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING,
+			   StandardCopyOption.ATOMIC_MOVE);
+		return n[0];
+	}
+}
@@ -0,0 +1,206 @@
+/** Lock-striped implementation of MapStore.
+ *
+ *  The pairs are spread over a fixed number of segments by key hash.
+ *  Each segment is a plain HashMap guarded by its own lock, so threads
+ *  working on keys in different segments never wait for each other,
+ *  and every operation does a single hash probe in a single segment.
+ */
+
+import java.util.*;
+import java.util.function.*;
+
+public class StripedMapStore implements MapStore {
+	private HashMap<String, String>[] segments;
+	private int mask;	// segments.length - 1, a power of 2 minus 1
+
+	/** Initialize a new store with 64 segments. */
+	public StripedMapStore() { this(64); }
+
+	/** Initialize a new store.
+	 *  @param stripes is the minimum number of segments; it is rounded
+	 *  up to a power of 2
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public StripedMapStore(int stripes) {
+		int n = 1;
+		while (n < stripes) n <<= 1;
+		segments = (HashMap<String, String>[]) new HashMap[n];
+		for (int i = 0; i < n; i++)
+			segments[i] = new HashMap<String, String>();
+		mask = n - 1;
+	}
+
+	/** Find the segment responsible for a key. */
+	private HashMap<String, String> segmentFor(String key) {
+		int h = key.hashCode();
+		return segments[(h ^ (h >>> 16)) & mask];
+	}
+
+	public String get(String key) {
+		HashMap<String, String> seg = segmentFor(key);
+		synchronized (seg) { return seg.get(key); }
+	}
+
+	public String put(String key, String val) {
+		HashMap<String, String> seg = segmentFor(key);
+		synchronized (seg) { return seg.put(key, val); }
+	}
+
+	public String putIfAbsent(String key, String val) {
+		HashMap<String, String> seg = segmentFor(key);
+		synchronized (seg) { return seg.putIfAbsent(key, val); }
+	}
+
+	public String replace(String key, String val) {
+		HashMap<String, String> seg = segmentFor(key);
+		synchronized (seg) { return seg.replace(key, val); }
+	}
+
+	public String remove(String key) {
+		HashMap<String, String> seg = segmentFor(key);
+		synchronized (seg) { return seg.remove(key); }
+	}
+
+	public int size() {
+		int n = 0;
+		for (HashMap<String, String> seg : segments) {
+			synchronized (seg) { n += seg.size(); }
+		}
+		return n;
+	}
+
+	public boolean isEmpty() {
+		for (HashMap<String, String> seg : segments) {
+			synchronized (seg) { if (!seg.isEmpty()) return false; }
+		}
+		return true;
+	}
+
+	/** Apply an action to every stored pair, one segment at a time.
+	 *  Only the segment being visited is locked, so writers to other
+	 *  segments proceed while the iteration runs.
+	 */
+	public void forEach(BiConsumer<String, String> action) {
+		for (HashMap<String, String> seg : segments) {
+			synchronized (seg) {
+				for (Map.Entry<String, String> e : seg.entrySet())
+					action.accept(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	/** Visit a batch of pairs, one segment at a time.
+	 *  Within a segment, pairs are visited in the order of their key's
+	 *  hash, which does not depend on the other pairs or on the layout
+	 *  of the HashMap. The cursor holds the segment index in its upper
+	 *  32 bits and, in its lower 32 bits, the lowest hash not yet
+	 *  visited, so changes made between calls do not move a pair from
+	 *  one side of the cursor to the other. A call makes one pass over
+	 *  each segment it visits, keeping the pairs with the lowest hashes
+	 *  at or past the cursor in a heap; pairs with the same hash are
+	 *  visited in the same call.
+	 */
+	public long scan(long cursor, int count, BiConsumer<String, String> action) {
+		int segNum = (int) (cursor >>> 32);
+		long from = cursor & 0xffffffffL;
+		int visited = 0;
+		while (segNum < segments.length && visited < count) {
+			HashMap<String, String> seg = segments[segNum];
+			synchronized (seg) {
+				Batch b = new Batch(Math.min(count - visited, seg.size() + 1), from);
+				seg.forEach(b::offer);
+				if (b.size < b.hash.length) {
+					// the rest of the segment fits in this batch
+					for (int i = 0; i < b.size; i++)
+						action.accept(b.key[i], b.val[i]);
+					visited += b.size;
+					segNum++; from = 0;
+					continue;
+				}
+				// visit the pairs below the highest hash in the batch,
+				// and continue from that hash, unless all of them have
+				// it; then visit every pair with that hash
+				long last = b.hash[0];
+				int before = visited;
+				for (int i = 0; i < b.size; i++) {
+					if (b.hash[i] < last) {
+						action.accept(b.key[i], b.val[i]); visited++;
+					}
+				}
+				if (visited > before) {
+					from = last;
+				} else {
+					for (Map.Entry<String, String> e : seg.entrySet()) {
+						if (order(e.getKey()) == last)
+							action.accept(e.getKey(), e.getValue());
+					}
+					from = last + 1;
+					if (from > 0xffffffffL) { segNum++; from = 0; }
+				}
+				break;
+			}
+		}
+		if (segNum >= segments.length) return 0;
+		return ((long) segNum << 32) | from;
+	}
+
+	/** Visit the pairs of one segment. The cursor is the segment index.
+	 *  scan() passes over the whole segment for each batch, so going
+	 *  over the store in batches costs time in proportion to the square
+	 *  of its size; this costs one pass.
+	 */
+	public long forEachPart(long cursor, BiConsumer<String, String> action) {
+		HashMap<String, String> seg = segments[(int) cursor];
+		synchronized (seg) {
+			for (Map.Entry<String, String> e : seg.entrySet())
+				action.accept(e.getKey(), e.getValue());
+		}
+		return (cursor + 1 < segments.length ? cursor + 1 : 0);
+	}
+
+	/** Return the hash of a key as used by scan(), from 0 to 2^32-1. */
+	private static long order(String key) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & 0xffffffffL;
+	}
+
+	/** The pairs with the lowest hashes at or past a cursor among those
+	 *  offered, at most a given number, kept in a max-heap on hash.
+	 */
+	private static class Batch {
+		long[] hash; String[] key, val;
+		int size;
+		long from;	// lowest hash to keep
+
+		Batch(int n, long from) {
+			hash = new long[n]; key = new String[n]; val = new String[n];
+			this.from = from;
+		}
+
+		void offer(String k, String v) {
+			long h = order(k);
+			int i;
+			if (h < from) return;
+			if (size < hash.length) {
+				// sift up from a new leaf
+				for (i = size++; i > 0 && hash[(i - 1) / 2] < h; i = (i - 1) / 2)
+					set(i, (i - 1) / 2);
+			} else if (h < hash[0]) {
+				// replace the highest hash, and sift down
+				i = 0;
+				for (int c; (c = 2*i + 1) < size; i = c) {
+					if (c + 1 < size && hash[c + 1] > hash[c]) c++;
+					if (hash[c] <= h) break;
+					set(i, c);
+				}
+			} else {
+				return;
+			}
+			hash[i] = h; key[i] = k; val[i] = v;
+		}
+
+		private void set(int i, int j) {
+			hash[i] = hash[j]; key[i] = key[j]; val[i] = val[j];
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/** Request worker for the multi-threaded MapServer.
+ *
+ *  Each worker runs its own thread with its own datagram channel and
+ *  its own receive and send buffers, and serves requests against the
+ *  shared MapStore. When the channel was bound with SO_REUSEPORT,
+ *  the kernel spreads incoming datagrams over the workers' channels,
+ *  so no two workers ever contend for a socket or a buffer.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+public class UdpWorker implements Runnable {
+	private Thread myThread;	// thread that executes run() method
+
+	private DatagramChannel chan;	// channel to serve requests from
+	private MapStore pairs;		// stored pairs
+	private MapStats stats;		// request statistics
+
+	/** Initialize a new UdpWorker object.
+	 *  @param chan is a bound datagram channel, in blocking mode
+	 *  @param pairs is the store holding the pairs
+	 *  @param stats is the object to record requests in
+	 */
+	UdpWorker(DatagramChannel chan, MapStore pairs, MapStats stats) {
+		this.chan = chan; this.pairs = pairs; this.stats = stats;
+	}
+
+	/** Open a datagram channel bound to a port with SO_REUSEPORT set,
+	 *  so that several channels can share the port.
+	 *  @param port is the port number to bind
+	 *  @return the bound channel
+	 */
+	static DatagramChannel openShared(int port) throws IOException {
+		DatagramChannel chan = DatagramChannel.open();
+		chan.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		chan.setOption(StandardSocketOptions.SO_RCVBUF, MapServer.RCVBUF);
+		chan.bind(new InetSocketAddress(port));
+		return chan;
+	}
+
+	/** Instantiate run() thread and start it running. */
+	public void start() {
+		myThread = new Thread(this); myThread.start();
+	}
+
+	/** Wait for thread to quit. */
+	public void join() throws Exception { myThread.join(); }
+
+	/** Worker thread receives requests and sends replies until the
+	 *  channel is closed.
+	 */
+	public void run() {
+		ByteBuffer inBuf = ByteBuffer.allocate(MapServer.MAX_REPLY);
+		MapProtocol proto = new MapProtocol(pairs, false, MapServer.MAX_REPLY, stats);
+		BinaryProtocol bin = new BinaryProtocol(pairs, true, stats);
+
+		while (true) {
+			SocketAddress client;
+			try {
+				inBuf.clear();
+				client = chan.receive(inBuf);
+			} catch(ClosedChannelException e) {
+				return;
+			} catch(IOException e) {
+				System.err.println("UdpWorker: receive error " + e);
+				continue;
+			}
+
+			// parse the request in place and send the reply back;
+			// a request starting with MAGIC is a binary frame
+			byte[] buf = inBuf.array();
+			int len = inBuf.position();
+			ByteBuffer outBuf;
+			if (len > 0 && buf[0] == BinaryProtocol.MAGIC) {
+				bin.process(buf, 1, len - 1);
+				outBuf = bin.replyBuffer();
+			} else {
+				proto.process(buf, 0, len);
+				outBuf = proto.replyBuffer();
+			}
+			if (outBuf.remaining() > MapServer.MAX_REPLY) outBuf.limit(MapServer.MAX_REPLY);
+			try {
+				chan.send(outBuf, client);
+			} catch(ClosedChannelException e) {
+				return;
+			} catch(IOException e) {
+				System.err.println("UdpWorker: send error " + e);
+			}
+		}
+	}
+}